@@ -18,9 +18,17 @@ package io.rocketpartners.cloud.action.dynamo;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.DoubleAdder;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
@@ -32,10 +40,13 @@ import com.amazonaws.services.dynamodbv2.document.ItemUtils;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
 import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.oracle.truffle.js.builtins.SymbolPrototypeBuiltins.SymbolToStringNode;
@@ -78,10 +89,33 @@ public class DynamoDb extends Db<DynamoDb>
     */
    protected String       blueprintRow;
 
-   protected int          batchMax     = 20;
+   /**
+    * Items per BatchWriteItem call, dynamo allows at most 25
+    */
+   protected int          batchMax     = 25;
+
+   /**
+    * When greater than one, scans of the primary table are split into this
+    * many segments that are read in parallel.
+    */
+   protected int          scanSegments = 1;
+
+   /**
+    * Max attempts at sending back keys or items that dynamo reports as
+    * unprocessed, with an exponential backoff between attempts.
+    */
+   protected int          retryMax     = 10;
+
+   /**
+    * Size of the pool used for parallel scans and batch requests.
+    */
+   protected int          threadMax    = 8;
 
    private AmazonDynamoDB dynamoClient = null;
 
+   transient ExecutorService executor              = null;
+   transient DoubleAdder     consumedWriteCapacity = new DoubleAdder();
+
    public DynamoDb()
    {
       this.withType("dynamodb");
@@ -111,13 +145,17 @@ public class DynamoDb extends Db<DynamoDb>
       return null;
    }
 
+   /**
+    * Puts the rows with BatchWriteItem.  When the same key appears more
+    * than once only the last row for that key is written, since batches
+    * run concurrently and dynamo rejects duplicate keys within a batch.
+    */
    @Override
    public List<String> upsert(Table table, List<Map<String, Object>> rows) throws Exception
    {
-      AmazonDynamoDB dynamoClient = getDynamoClient();
       List keys = new ArrayList();
-      List<WriteRequest> writeRequests = new LinkedList<WriteRequest>();
-      BatchWriteItemRequest batch = new BatchWriteItemRequest();
+      Map<String, WriteRequest> keyed = new LinkedHashMap();
+      List<WriteRequest> writeRequests = new ArrayList();
       for (int i = 0; i < rows.size(); i++)
       {
          Map<String, Object> row = rows.get(i);
@@ -125,35 +163,29 @@ public class DynamoDb extends Db<DynamoDb>
          String key = table.encodeKey(row);
          keys.add(key);
 
-         for (String attr : (List<String>)new ArrayList(row.keySet()))
+         for (String attr : (List<String>) new ArrayList(row.keySet()))
          {
             if (Utils.empty(row.get(attr)))
                row.remove(attr);
          }
 
-         if (i > 0 && i % batchMax == 0)
-         {
-            //write a batch to dynamo
-            batch.addRequestItemsEntry(table.getName(), writeRequests);
-            dynamoClient.batchWriteItem(batch);
-            batch.clearRequestItemsEntries();
-            writeRequests.clear();
-         }
-         //add to the current row to batch 
          Map<String, AttributeValue> item = ItemUtils.fromSimpleMap(row);
          Chain.debug("DynamoDb", "PutRequest", item);
-         PutRequest put = new PutRequest().withItem(item);
-         writeRequests.add(new WriteRequest(put));
-      }
+         WriteRequest put = new WriteRequest(new PutRequest().withItem(item));
 
-      if (writeRequests.size() > 0)
-      {
-         batch.addRequestItemsEntry(table.getName(), writeRequests);
-         getDynamoClient().batchWriteItem(batch);
-         batch.clearRequestItemsEntries();
-         writeRequests.clear();
+         if (key != null)
+         {
+            keyed.remove(key);
+            keyed.put(key, put);
+         }
+         else
+         {
+            writeRequests.add(put);
+         }
       }
+      writeRequests.addAll(keyed.values());
 
+      batchWrite(table, writeRequests);
       return keys;
    }
 
@@ -178,6 +210,124 @@ public class DynamoDb extends Db<DynamoDb>
       }
    }
 
+   /**
+    * Deletes the keys with BatchWriteItem instead of one DeleteItem per key.
+    */
+   @Override
+   public void delete(Table table, List<String> entityKeys) throws Exception
+   {
+      if (entityKeys.size() == 1)
+      {
+         delete(table, entityKeys.get(0));
+         return;
+      }
+
+      List<WriteRequest> writeRequests = new ArrayList();
+      for (String entityKey : new LinkedHashSet<String>(entityKeys))
+      {
+         Row key = table.decodeKey(entityKey);
+         if (key.size() < 1 || key.size() > 2)
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "A dynamo delete must have a hash key and an optional sortKey and that is it: '" + entityKey + "'");
+
+         Map<String, Object> keyMap = new HashMap();
+         for (int i = 0; i < key.size(); i++)
+            keyMap.put(key.getKey(i), cast(table.getColumn(key.getKey(i)), key.get(i)));
+
+         Chain.debug("DynamoDb", "DeleteRequest", keyMap);
+         writeRequests.add(new WriteRequest(new DeleteRequest().withKey(ItemUtils.fromSimpleMap(keyMap))));
+      }
+
+      batchWrite(table, writeRequests);
+   }
+
+   /**
+    * Sends the writes in BatchWriteItem calls of up to batchMax (at most 25)
+    * items, running the batches concurrently on the executor when there is
+    * more than one.  Fails with the first batch error after all batches
+    * have finished or been cancelled.
+    */
+   protected void batchWrite(final Table table, List<WriteRequest> writeRequests) throws Exception
+   {
+      if (writeRequests.isEmpty())
+         return;
+
+      int batchSize = Math.max(1, Math.min(25, batchMax));
+      double capacity = 0;
+
+      if (writeRequests.size() <= batchSize)
+      {
+         capacity = writeBatch(table, writeRequests);
+      }
+      else
+      {
+         List<Future<Double>> futures = new ArrayList();
+         for (int i = 0; i < writeRequests.size(); i += batchSize)
+         {
+            final List<WriteRequest> batch = writeRequests.subList(i, Math.min(i + batchSize, writeRequests.size()));
+            futures.add(getExecutor().submit(new Callable<Double>()
+               {
+                  public Double call() throws Exception
+                  {
+                     return writeBatch(table, batch);
+                  }
+               }));
+         }
+
+         Exception error = null;
+         for (Future<Double> future : futures)
+         {
+            try
+            {
+               if (error == null)
+                  capacity += future.get();
+               else
+                  future.cancel(true);
+            }
+            catch (ExecutionException ex)
+            {
+               error = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+            }
+         }
+
+         if (error != null)
+            throw error;
+      }
+
+      Chain.debug("DynamoDb", "BatchWriteItem", table.getName(), writeRequests.size() + " items", capacity + " write capacity units");
+   }
+
+   /**
+    * Writes one batch, resending UnprocessedItems with backoff, and
+    * returns the write capacity consumed.
+    */
+   protected double writeBatch(Table table, List<WriteRequest> writeRequests) throws Exception
+   {
+      double capacity = 0;
+
+      Map<String, List<WriteRequest>> items = new HashMap();
+      items.put(table.getName(), writeRequests);
+
+      for (int attempt = 1; items != null && items.size() > 0; attempt++)
+      {
+         if (attempt > 1)
+            backoff(attempt - 1, "items");
+
+         BatchWriteItemResult result = getDynamoClient().batchWriteItem(new BatchWriteItemRequest().withRequestItems(items).withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+
+         for (int i = 0; result.getConsumedCapacity() != null && i < result.getConsumedCapacity().size(); i++)
+         {
+            Double units = result.getConsumedCapacity().get(i).getCapacityUnits();
+            if (units != null)
+               capacity += units;
+         }
+
+         items = result.getUnprocessedItems();
+      }
+
+      consumedWriteCapacity.add(capacity);
+      return capacity;
+   }
+
    @Override
    protected void startup0()
    {
@@ -332,6 +482,43 @@ public class DynamoDb extends Db<DynamoDb>
       return new DynamoDB(getDynamoClient()).getTable(tableName);
    }
 
+   /**
+    * @return the total write capacity units consumed by batch writes since startup
+    */
+   public double getConsumedWriteCapacity()
+   {
+      return consumedWriteCapacity.sum();
+   }
+
+   public int getScanSegments()
+   {
+      return scanSegments;
+   }
+
+   public DynamoDb withScanSegments(int scanSegments)
+   {
+      this.scanSegments = scanSegments;
+      return this;
+   }
+
+   public DynamoDb withBatchMax(int batchMax)
+   {
+      this.batchMax = batchMax;
+      return this;
+   }
+
+   public DynamoDb withRetryMax(int retryMax)
+   {
+      this.retryMax = retryMax;
+      return this;
+   }
+
+   public DynamoDb withThreadMax(int threadMax)
+   {
+      this.threadMax = threadMax;
+      return this;
+   }
+
    public DynamoDb withIncludeTables(String includeTables)
    {
       this.includeTables = includeTables;
@@ -542,6 +729,57 @@ public class DynamoDb extends Db<DynamoDb>
       }
    }
 
+   /**
+    * The shared pool for parallel scan segments and batch requests,
+    * created on first use.
+    */
+   public ExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         synchronized (this)
+         {
+            if (executor == null)
+            {
+               executor = Executors.newFixedThreadPool(Math.max(1, threadMax), new ThreadFactory()
+                  {
+                     public Thread newThread(Runnable r)
+                     {
+                        Thread t = new Thread(r, "DynamoDb-" + name);
+                        t.setDaemon(true);
+                        return t;
+                     }
+                  });
+            }
+         }
+      }
+      return executor;
+   }
+
+   @Override
+   protected void shutdown0()
+   {
+      if (executor != null)
+      {
+         executor.shutdownNow();
+         executor = null;
+      }
+   }
+
+   /**
+    * Sleeps before retry <code>attempt</code> of unprocessed keys or items,
+    * doubling from 50ms up to about 5 seconds with jitter, and throws
+    * once retryMax attempts have been made.
+    */
+   protected void backoff(int attempt, String what) throws Exception
+   {
+      if (attempt > retryMax)
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "DynamoDb left " + what + " unprocessed after " + retryMax + " retries");
+
+      long sleep = Math.min(5000, 50L << Math.min(attempt, 7));
+      Thread.sleep(sleep / 2 + (long) (Math.random() * sleep / 2));
+   }
+
    public AmazonDynamoDB getDynamoClient()
    {
       if (this.dynamoClient == null)
@@ -558,6 +796,12 @@ public class DynamoDb extends Db<DynamoDb>
       return dynamoClient;
    }
 
+   public DynamoDb withDynamoClient(AmazonDynamoDB dynamoClient)
+   {
+      this.dynamoClient = dynamoClient;
+      return this;
+   }
+
    public static AmazonDynamoDB buildDynamoClient(String prefix)
    {
       return buildDynamoClient(prefix, null, null, null);
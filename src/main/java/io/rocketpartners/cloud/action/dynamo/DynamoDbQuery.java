@@ -3,23 +3,34 @@
  */
 package io.rocketpartners.cloud.action.dynamo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
 import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 
 import io.rocketpartners.cloud.action.dynamo.DynamoDb.DynamoDbIndex;
 import io.rocketpartners.cloud.model.ApiException;
@@ -95,6 +106,7 @@ public class DynamoDbQuery extends Query<DynamoDbQuery, DynamoDb, Table, Select<
       
       //withFunctions("_key", "and", "or", "not", "eq", "ne", "n", "nn", "like", "sw", "ew", "lt", "le", "gt", "ge", "in", "out", "if", "w", "wo", "emp", "nemp");
       where().withFunctions("_key", "eq", "ne", "gt", "ge", "lt", "le", "w", "sw", "nn", "n", "emp", "nemp", "in", "out", "and", "or", "not", "attribute_not_exists", "attribute_exists");
+      page().withFunctions("segment");
       super.withTerms(terms);
 
       //https://stackoverflow.com/questions/34349135/how-do-you-query-for-a-non-existent-null-attribute-in-dynamodb
@@ -156,6 +168,13 @@ public class DynamoDbQuery extends Query<DynamoDbQuery, DynamoDb, Table, Select<
       Index dynamoIndex = null;
       Results result = new Results(this);
 
+      List<Map<String, Object>> batchKeys = getBatchKeys();
+      if (batchKeys != null)
+      {
+         doBatchGet(result, batchKeys);
+         return result;
+      }
+
       DynamoDbIndex index = getIndex();
       if (index != null && !index.isPrimaryIndex())
       {
@@ -183,6 +202,10 @@ public class DynamoDbQuery extends Query<DynamoDbQuery, DynamoDb, Table, Select<
 
          result.withNext(after(index, queryResult.getLastLowLevelResult().getQueryResult().getLastEvaluatedKey()));
       }
+      else if (spec instanceof ScanSpec && isParallelScan(index))
+      {
+         doParallelScan(result);
+      }
       else if (spec instanceof ScanSpec)
       {
          ScanSpec ss = ((ScanSpec) spec);
@@ -198,6 +221,269 @@ public class DynamoDbQuery extends Query<DynamoDbQuery, DynamoDb, Table, Select<
       return result;
    }
 
+   /**
+    * Finds the primary keys when the only filter is a lookup of two or more
+    * whole primary keys, ie in(hashKey,...) for a hash only table or the
+    * or(and(eq(hashKey,x),eq(sortKey,y)),...) that _key() expands to.
+    * Repeated keys are dropped because BatchGetItem rejects duplicates.
+    * 
+    * @return the distinct keys or null if this is not a pure multi key lookup
+    */
+   protected List<Map<String, Object>> getBatchKeys()
+   {
+      DynamoDbIndex primary = (DynamoDbIndex) table().getPrimaryIndex();
+      List<Term> filters = where().getTerms();
+      if (primary == null || filters.size() != 1 || page().getAfter() != null || order().getProperty(0) != null)
+         return null;
+
+      Term term = filters.get(0);
+      Column hashCol = primary.getHashKey();
+      Column sortCol = primary.getSortKey();
+
+      Set<Map<String, Object>> keys = new LinkedHashSet();
+      if (sortCol == null && term.hasToken("in") && hashCol.getName().equalsIgnoreCase(term.getToken(0)))
+      {
+         for (int i = 1; i < term.size(); i++)
+         {
+            if (!term.getTerm(i).isLeaf())
+               return null;
+
+            Map<String, Object> key = new HashMap();
+            key.put(hashCol.getName(), db().cast(hashCol, term.getToken(i)));
+            keys.add(key);
+         }
+      }
+      else if (sortCol != null && term.hasToken("or"))
+      {
+         for (Term and : term.getTerms())
+         {
+            if (!and.hasToken("and") || and.size() != 2)
+               return null;
+
+            Map<String, Object> key = new HashMap();
+            for (Term eq : and.getTerms())
+            {
+               if (!eq.hasToken("eq") || !eq.getTerm(1).isLeaf())
+                  return null;
+
+               Column col = hashCol.getName().equalsIgnoreCase(eq.getToken(0)) ? hashCol : sortCol.getName().equalsIgnoreCase(eq.getToken(0)) ? sortCol : null;
+               if (col == null)
+                  return null;
+
+               key.put(col.getName(), db().cast(col, eq.getToken(1)));
+            }
+
+            if (key.size() != 2)
+               return null;
+
+            keys.add(key);
+         }
+      }
+
+      return keys.size() > 1 ? new ArrayList(keys) : null;
+   }
+
+   /**
+    * Reads the keys with BatchGetItem, 100 keys per request, resending
+    * any keys dynamo returns as unprocessed.
+    */
+   protected void doBatchGet(Results result, List<Map<String, Object>> keys) throws Exception
+   {
+      AmazonDynamoDB client = db().getDynamoClient();
+      String tableName = dynamoTable.getTableName();
+
+      List columns = select().getColumnNames();
+      String projectionExpression = columns.size() > 0 ? Utils.implode(",", columns) : null;
+
+      Chain.debug("DynamoDb BatchGetItem keys=" + keys.size() + " projectionExpression='" + (projectionExpression != null ? projectionExpression : "") + "'");
+
+      for (int i = 0; i < keys.size(); i += 100)
+      {
+         List<Map<String, AttributeValue>> chunk = new ArrayList();
+         for (Map<String, Object> key : keys.subList(i, Math.min(i + 100, keys.size())))
+            chunk.add(ItemUtils.fromSimpleMap(key));
+
+         KeysAndAttributes keysAndAttrs = new KeysAndAttributes().withKeys(chunk);
+         if (projectionExpression != null)
+            keysAndAttrs.withProjectionExpression(projectionExpression);
+
+         Map<String, KeysAndAttributes> request = new HashMap();
+         request.put(tableName, keysAndAttrs);
+
+         for (int attempt = 1; request != null && request.size() > 0; attempt++)
+         {
+            if (attempt > 1)
+               db().backoff(attempt - 1, "keys");
+
+            BatchGetItemResult batchResult = client.batchGetItem(new BatchGetItemRequest().withRequestItems(request));
+
+            List<Map<String, AttributeValue>> items = batchResult.getResponses().get(tableName);
+            for (int j = 0; items != null && j < items.size(); j++)
+               result.withRow(ItemUtils.toItem(items.get(j)).asMap());
+
+            request = batchResult.getUnprocessedKeys();
+         }
+      }
+   }
+
+   /**
+    * Parallel segments are only used for scans of the primary table so a
+    * page can be continued from a primary key 'after' term, and only when
+    * the page is not continuing a serial scan.
+    */
+   protected boolean isParallelScan(DynamoDbIndex index)
+   {
+      return db().getScanSegments() > 1 //
+            && (index == null || index.isPrimaryIndex()) //
+            && (page().getAfter() == null || page().find("segment") != null);
+   }
+
+   /**
+    * Scans the unfinished segments in parallel, each up to its share of the 
+    * page, and returns every row that was read.  'next' is a 'segment' term 
+    * that lists the segments with rows left in order, each followed by an 
+    * 'after' key when it stopped part way, ie segment(0,after(hk,a),2,3).
+    */
+   protected void doParallelScan(Results result) throws Exception
+   {
+      final int segments = db().getScanSegments();
+      final int pageSize = page().getPageSize();
+
+      Map<Integer, Term> afters = new HashMap();
+      List<Integer> toScan = getScanSegments(segments, afters);
+
+      //-- rows past a share are not thrown away, they are simply never read
+      final int share = Math.max(1, (pageSize + toScan.size() - 1) / toScan.size());
+
+      List<Future<Segment>> futures = new ArrayList();
+      for (int i : toScan)
+      {
+         final ScanSpec spec = (ScanSpec) getSelectSpec();
+         spec.withSegment(i).withTotalSegments(segments);
+         spec.withMaxPageSize(share).withMaxResultSize(share);
+         spec.withExclusiveStartKey(getStartKey(afters.get(i)));
+
+         futures.add(db().getExecutor().submit(new Callable<Segment>()
+            {
+               public Segment call() throws Exception
+               {
+                  Segment segment = new Segment();
+                  ItemCollection<ScanOutcome> scanResult = dynamoTable.scan(spec);
+                  for (Item item : scanResult)
+                     segment.items.add(item);
+
+                  //-- the sdk stops part way through a low level page once the share
+                  //-- is read so a full share may have more without a LastEvaluatedKey
+                  segment.more = segment.items.size() >= share;
+                  if (scanResult.getLastLowLevelResult() != null && scanResult.getLastLowLevelResult().getScanResult().getLastEvaluatedKey() != null)
+                     segment.more = true;
+                  return segment;
+               }
+            }));
+      }
+
+      try
+      {
+         List<Integer> unfinished = new ArrayList();
+         Map<Integer, Term> nextAfters = new HashMap();
+         for (int j = 0; j < toScan.size(); j++)
+         {
+            int i = toScan.get(j);
+            Segment segment = futures.get(j).get();
+            Item last = null;
+            for (Item item : segment.items)
+            {
+               result.withRow(item.asMap());
+               last = item;
+            }
+
+            if (segment.more)
+            {
+               unfinished.add(i);
+               Term after = last != null ? afterKey(last) : afters.get(i);
+               if (after != null)
+                  nextAfters.put(i, after);
+            }
+         }
+
+         if (unfinished.size() > 0)
+            result.withNext(segmentNext(unfinished, nextAfters));
+      }
+      finally
+      {
+         for (Future future : futures)
+            future.cancel(true);
+      }
+   }
+
+   /**
+    * Reads the segments to scan, and the 'after' key of each one that stopped 
+    * part way, from the 'segment' term.  Without one every segment is scanned 
+    * from the start.
+    */
+   protected List<Integer> getScanSegments(int segments, Map<Integer, Term> afters)
+   {
+      List<Integer> toScan = new ArrayList();
+
+      Term segmentTerm = page().find("segment");
+      if (segmentTerm == null)
+      {
+         for (int i = 0; i < segments; i++)
+            toScan.add(i);
+         return toScan;
+      }
+
+      for (Term child : segmentTerm.getTerms())
+      {
+         if (child.hasToken("after") && toScan.size() > 0)
+            afters.put(toScan.get(toScan.size() - 1), child);
+         else if (child.isLeaf() && child.getToken().matches("\\d{1,9}") && Integer.parseInt(child.getToken()) < segments)
+            toScan.add(Integer.parseInt(child.getToken()));
+         else
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "Invalid scan 'segment': " + child);
+      }
+
+      if (toScan.isEmpty())
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "Invalid scan 'segment': " + segmentTerm);
+
+      return toScan;
+   }
+
+   protected Term segmentNext(List<Integer> unfinished, Map<Integer, Term> afters)
+   {
+      Term next = Term.term(null, "segment");
+      for (int i : unfinished)
+      {
+         next.withTerm(Term.term(next, i + ""));
+         if (afters.get(i) != null)
+            next.withTerm(afters.get(i));
+      }
+      return next;
+   }
+
+   /**
+    * @return an 'after' term with the primary key of <code>last</code>
+    */
+   protected Term afterKey(Item last)
+   {
+      DynamoDbIndex primary = (DynamoDbIndex) table().getPrimaryIndex();
+      Term after = Term.term(null, "after");
+      after.withTerm(Term.term(after, primary.getHashKeyName()));
+      after.withTerm(Term.term(after, last.get(primary.getHashKeyName()).toString()));
+      if (primary.getSortKey() != null)
+      {
+         after.withTerm(Term.term(after, primary.getSortKeyName()));
+         after.withTerm(Term.term(after, last.get(primary.getSortKeyName()).toString()));
+      }
+      return after;
+   }
+
+   static class Segment
+   {
+      List<Item> items = new ArrayList();
+      boolean    more  = false;
+   }
+
    protected List<Term> after(DynamoDbIndex index, java.util.Map<String, AttributeValue> attrs)
    {
       if (attrs == null)
@@ -514,24 +800,7 @@ public class DynamoDbQuery extends Query<DynamoDbQuery, DynamoDb, Table, Select<
          Term after = page().getAfter();
          if (after != null)
          {
-            DynamoDbIndex index = (DynamoDbIndex) table().getPrimaryIndex();
-            Column afterHashKeyCol = table().getColumn(after.getToken(0));
-            Column afterSortKeyCol = after.size() > 2 ? table().getColumn(after.getToken(2)) : null;
-
-            if (afterHashKeyCol == null || (after.size() > 2 && afterSortKeyCol == null))
-               throw new ApiException(SC.SC_400_BAD_REQUEST, "Invalid column in 'after' key: " + after);
-
-            Object hashValue = db.cast(afterHashKeyCol, after.getToken(1));
-            Object sortValue = afterSortKeyCol != null ? db.cast(afterSortKeyCol, after.getToken(3)) : null;
-
-            if (afterSortKeyCol != null)
-            {
-               scanSpec.withExclusiveStartKey(afterHashKeyCol.getName(), hashValue, afterSortKeyCol.getName(), sortValue);
-            }
-            else
-            {
-               scanSpec.withExclusiveStartKey(afterHashKeyCol.getName(), hashValue);
-            }
+            scanSpec.withExclusiveStartKey(getStartKey(after));
          }
 
          if (!Utils.empty(projectionExpression))
@@ -557,6 +826,29 @@ public class DynamoDbQuery extends Query<DynamoDbQuery, DynamoDb, Table, Select<
       }
    }
 
+   /**
+    * @return the exclusive start key named by an 'after' term or null if there is no term
+    */
+   protected PrimaryKey getStartKey(Term after)
+   {
+      if (after == null)
+         return null;
+
+      Column afterHashKeyCol = table().getColumn(after.getToken(0));
+      Column afterSortKeyCol = after.size() > 2 ? table().getColumn(after.getToken(2)) : null;
+
+      if (afterHashKeyCol == null || (after.size() > 2 && afterSortKeyCol == null))
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "Invalid column in 'after' key: " + after);
+
+      Object hashValue = db.cast(afterHashKeyCol, after.getToken(1));
+      Object sortValue = afterSortKeyCol != null ? db.cast(afterSortKeyCol, after.getToken(3)) : null;
+
+      if (afterSortKeyCol != null)
+         return new PrimaryKey(afterHashKeyCol.getName(), hashValue, afterSortKeyCol.getName(), sortValue);
+
+      return new PrimaryKey(afterHashKeyCol.getName(), hashValue);
+   }
+
    String toString(StringBuffer buff, Term term, Map nameMap, Map valueMap)
    {
       space(buff);
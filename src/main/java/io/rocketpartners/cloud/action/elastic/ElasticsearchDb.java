@@ -15,16 +15,21 @@
  */
 package io.rocketpartners.cloud.action.elastic;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+
 import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Collection;
 import io.rocketpartners.cloud.model.Column;
 import io.rocketpartners.cloud.model.Db;
 import io.rocketpartners.cloud.model.Entity;
+import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
@@ -32,7 +37,9 @@ import io.rocketpartners.cloud.model.Results;
 import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.rql.Term;
+import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.utils.HttpUtils;
+import io.rocketpartners.cloud.utils.HttpUtils.HttpClientConfig;
 import io.rocketpartners.cloud.utils.Rows.Row;
 import io.rocketpartners.cloud.utils.Utils;
 
@@ -44,6 +51,27 @@ public class ElasticsearchDb extends Db<ElasticsearchDb>
 
    protected static final int[] allowedFailResponseCodes = {400, 401, 403, 404};
 
+   /**
+    * Connection pool settings for the long lived HttpClient 
+    * shared by all requests to this Db's url
+    */
+   protected int                httpMaxConnections       = 100;
+   protected int                httpMaxPerRoute          = 100;
+   protected long               httpKeepAlive            = 60000;               // in milliseconds
+   protected long               httpIdleTimeout          = 30000;               // in milliseconds
+
+   /**
+    * Writes are sent to the _bulk api in batches of at most
+    * bulkMaxRows items or about bulkMaxBytes of request body
+    */
+   protected int                bulkMaxRows              = 1000;
+   protected int                bulkMaxBytes             = 5 * 1024 * 1024;
+
+   /**
+    * Optional _bulk 'refresh' policy: "true", "false" or "wait_for"
+    */
+   protected String             refresh                  = null;
+
    public ElasticsearchDb()
    {
 
@@ -59,23 +87,177 @@ public class ElasticsearchDb extends Db<ElasticsearchDb>
    {
       this.withType("elasticsearch");
 
+      configHttpClient();
       reflectDb();
       configApi();
    }
 
+   @Override
    public Results<Row> select(Table table, List<Term> columnMappedTerms) throws Exception
    {
-      return null;
+      ElasticsearchQuery query = new ElasticsearchQuery(table, columnMappedTerms).withDb(this);
+      return query.doSelect();
    }
 
-   public String upsert(Table table, Map<String, Object> values) throws Exception
+   @Override
+   public String upsert(Table table, Map<String, Object> row) throws Exception
    {
+      List<String> keys = upsert(table, Arrays.asList(row));
+      if (keys != null && keys.size() > 0)
+         return keys.get(0);
+
       return null;
    }
 
+   /**
+    * Writes the rows through the _bulk api, one request per
+    * <code>bulkMaxRows</code> rows or <code>bulkMaxBytes</code> of body.
+    * Rows with a key are merged into any existing document (doc_as_upsert),
+    * rows without one are indexed under an elastic generated _id.
+    * 
+    * @return the _id of each row in order
+    */
+   @Override
+   public List<String> upsert(Table table, List<Map<String, Object>> rows) throws Exception
+   {
+      List<String> keys = new ArrayList();
+      List<String> lines = new ArrayList();
+      for (Map<String, Object> row : rows)
+      {
+         JSNode doc = row instanceof JSNode ? (JSNode) row : new JSNode(row);
+         String key = getKey(table, row);
+         if (key != null)
+         {
+            lines.add(new JSNode("update", new JSNode("_id", key)).toString(false));
+            lines.add(new JSNode("doc", doc, "doc_as_upsert", true).toString(false));
+         }
+         else
+         {
+            lines.add(new JSNode("index", new JSNode()).toString(false));
+            lines.add(doc.toString(false));
+         }
+      }
+
+      bulk(table, lines, 2, keys);
+      return keys;
+   }
+
+   @Override
    public void delete(Table table, String entityKey) throws Exception
    {
+      delete(table, Arrays.asList(entityKey));
+   }
+
+   /**
+    * Deletes the documents with a single _bulk request per batch.  
+    * Documents that are already gone are not an error.
+    */
+   @Override
+   public void delete(Table table, List<String> entityKeys) throws Exception
+   {
+      List<String> lines = new ArrayList();
+      for (String entityKey : entityKeys)
+         lines.add(new JSNode("delete", new JSNode("_id", entityKey)).toString(false));
 
+      bulk(table, lines, 1, null);
+   }
+
+   /**
+    * Uses the table's primary index when it has one, otherwise an 'id' property.
+    */
+   protected String getKey(Table table, Map<String, Object> row)
+   {
+      String key = table.encodeKey(row);
+      if (key == null && !Utils.empty(row.get("id")))
+         key = row.get("id").toString();
+
+      return key;
+   }
+
+   /**
+    * Posts the ndjson action lines to the table's _bulk endpoint in batches,
+    * never splitting the <code>linesPerItem</code> lines of one item.  The _id
+    * of each item is added to <code>keys</code> when not null.  Failed items
+    * are reported together after every batch has been sent.
+    */
+   protected void bulk(Table table, List<String> lines, int linesPerItem, List<String> keys) throws Exception
+   {
+      String url = getUrl() + "/" + table.getName() + "/_bulk" + (refresh != null ? "?refresh=" + refresh : "");
+
+      List<String> errors = new ArrayList();
+      boolean serverError = false;
+      int items = 0;
+      StringBuilder body = new StringBuilder();
+      int batchItems = 0;
+
+      for (int i = 0; i < lines.size(); i += linesPerItem)
+      {
+         for (int j = i; j < i + linesPerItem; j++)
+            body.append(lines.get(j)).append('\n');
+         batchItems += 1;
+
+         if (batchItems >= bulkMaxRows || body.length() >= bulkMaxBytes || i + linesPerItem >= lines.size())
+         {
+            Chain.debug("ElasticsearchDb", "_bulk", url, batchItems + " items");
+
+            Response r = HttpUtils.rest("POST", url, body.toString(), getNdjsonHeaders(), -1).get(maxRequestDuration, TimeUnit.SECONDS);
+            if (!r.isSuccess())
+               throw new ApiException(SC.matches(r.getStatusCode(), allowedFailResponseCodes) ? SC.SC_MAP.get(r.getStatusCode()) : SC.SC_500_INTERNAL_SERVER_ERROR, r.getErrorContent());
+
+            serverError |= parseBulkResults(r.getJson(), items, keys, errors);
+
+            items += batchItems;
+            batchItems = 0;
+            body = new StringBuilder();
+         }
+      }
+
+      if (errors.size() > 0)
+         throw new ApiException(serverError ? SC.SC_500_INTERNAL_SERVER_ERROR : SC.SC_400_BAD_REQUEST, errors.size() + " of " + items + " bulk items failed: " + String.join(", ", errors));
+   }
+
+   /**
+    * Adds the _id of each item of a _bulk response to <code>keys</code>, 
+    * when not null, and a description of each failed item to <code>errors</code>.
+    * A missing document is only an error for updates, <code>keys</code> 
+    * is null for deletes.
+    * 
+    * @param offset the number of items sent in earlier batches
+    * @return true if any item failed with a 5xx status
+    */
+   static boolean parseBulkResults(JSNode json, int offset, List<String> keys, List<String> errors)
+   {
+      boolean serverError = false;
+      JSArray results = json.getArray("items");
+      for (int k = 0; results != null && k < results.length(); k++)
+      {
+         JSNode item = (JSNode) results.getObject(k).values().iterator().next();
+         int status = item.getInt("status");
+         if (keys != null)
+            keys.add(item.getString("_id"));
+
+         if (status >= 300 && !(status == 404 && keys == null))
+         {
+            serverError |= status >= 500;
+            JSNode error = item.getNode("error");
+            errors.add("item " + (offset + k) + " '" + item.getString("_id") + "' " + status + (error != null ? " " + error.getString("type") + ": " + error.getString("reason") : ""));
+         }
+      }
+      return serverError;
+   }
+
+   static ArrayListValuedHashMap<String, String> getJsonHeaders()
+   {
+      ArrayListValuedHashMap<String, String> headers = new ArrayListValuedHashMap<String, String>();
+      headers.put("Content-Type", "application/json");
+      return headers;
+   }
+
+   static ArrayListValuedHashMap<String, String> getNdjsonHeaders()
+   {
+      ArrayListValuedHashMap<String, String> headers = new ArrayListValuedHashMap<String, String>();
+      headers.put("Content-Type", "application/x-ndjson");
+      return headers;
    }
 
    private void reflectDb()
@@ -202,6 +384,29 @@ public class ElasticsearchDb extends Db<ElasticsearchDb>
       }
    }
 
+   /**
+    * Registers a pooled, keep-alive HttpClient for this Db's host
+    * so that calls to the backing service reuse connections.
+    */
+   protected void configHttpClient()
+   {
+      String url = getUrl();
+      if (!Utils.empty(url))
+      {
+         HttpUtils.withClientConfig(url, new HttpClientConfig()//
+                                                               .withMaxTotal(httpMaxConnections)//
+                                                               .withMaxPerRoute(httpMaxPerRoute)//
+                                                               .withKeepAlive(httpKeepAlive)//
+                                                               .withIdleTimeout(httpIdleTimeout));
+      }
+   }
+
+   @Override
+   protected void shutdown0()
+   {
+      HttpUtils.closeHttpClient(getUrl());
+   }
+
    public String getUrl()
    {
       return Utils.findSysEnvPropStr(getName() + ".url", url);
@@ -212,4 +417,37 @@ public class ElasticsearchDb extends Db<ElasticsearchDb>
       this.url = url;
       return this;
    }
-}
\ No newline at end of file
+
+   public int getBulkMaxRows()
+   {
+      return bulkMaxRows;
+   }
+
+   public ElasticsearchDb withBulkMaxRows(int bulkMaxRows)
+   {
+      this.bulkMaxRows = bulkMaxRows;
+      return this;
+   }
+
+   public int getBulkMaxBytes()
+   {
+      return bulkMaxBytes;
+   }
+
+   public ElasticsearchDb withBulkMaxBytes(int bulkMaxBytes)
+   {
+      this.bulkMaxBytes = bulkMaxBytes;
+      return this;
+   }
+
+   public String getRefresh()
+   {
+      return refresh;
+   }
+
+   public ElasticsearchDb withRefresh(String refresh)
+   {
+      this.refresh = refresh;
+      return this;
+   }
+}
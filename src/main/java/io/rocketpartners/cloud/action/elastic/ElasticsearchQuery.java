@@ -15,13 +15,21 @@
  */
 package io.rocketpartners.cloud.action.elastic;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
-import io.rocketpartners.cloud.action.sql.SqlDb;
+import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Collection;
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.Results;
+import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.rql.Group;
 import io.rocketpartners.cloud.rql.Order;
@@ -30,13 +38,16 @@ import io.rocketpartners.cloud.rql.Query;
 import io.rocketpartners.cloud.rql.Select;
 import io.rocketpartners.cloud.rql.Term;
 import io.rocketpartners.cloud.rql.Where;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.utils.HttpUtils;
+import io.rocketpartners.cloud.utils.Rows.Row;
 
 /**
  * @author kfrankic
  * @see https://www.elastic.co/guide/en/elasticsearch/reference/current/query-dsl.html
  */
 // 
-public class ElasticsearchQuery extends Query<ElasticsearchQuery, SqlDb, Table, Select<Select<Select, ElasticsearchQuery>, ElasticsearchQuery>, Where<Where<Where, ElasticsearchQuery>, ElasticsearchQuery>, Group<Group<Group, ElasticsearchQuery>, ElasticsearchQuery>, Order<Order<Order, ElasticsearchQuery>, ElasticsearchQuery>, Page<Page<Page, ElasticsearchQuery>, ElasticsearchQuery>>
+public class ElasticsearchQuery extends Query<ElasticsearchQuery, ElasticsearchDb, Table, Select<Select<Select, ElasticsearchQuery>, ElasticsearchQuery>, Where<Where<Where, ElasticsearchQuery>, ElasticsearchQuery>, Group<Group<Group, ElasticsearchQuery>, ElasticsearchQuery>, Order<Order<Order, ElasticsearchQuery>, ElasticsearchQuery>, Page<Page<Page, ElasticsearchQuery>, ElasticsearchQuery>>
 {
    // identifies a nested path
    @JsonIgnore
@@ -61,27 +72,188 @@ public class ElasticsearchQuery extends Query<ElasticsearchQuery, SqlDb, Table,
       withTerms(terms);
    }
 
+   public ElasticsearchQuery(Table table, List<Term> terms)
+   {
+      super(table, terms);
+   }
+
    protected ElasticsearchPage createPage()
    {
       return new ElasticsearchPage(this);
    }
 
-   protected void push(List<JSNode> stack, JSNode child)
+   /**
+    * Runs the search and returns the _source of each hit.  When a full
+    * page is returned, 'next' holds an after() term with the sort values
+    * of the last hit so the following page is a search_after query.
+    */
+   protected Results<Row> doSelect() throws Exception
    {
+      Results result = new Results(this);
+
+      String url = getDb().getUrl() + "/" + table().getName() + "/_search";
+      String json = getJson().toString();
+      Chain.debug("ElasticsearchDb", url, json);
+
+      Response r = HttpUtils.rest("POST", url, json, ElasticsearchDb.getJsonHeaders(), -1).get(ElasticsearchDb.maxRequestDuration, TimeUnit.SECONDS);
+      if (!r.isSuccess())
+         throw new ApiException(SC.matches(r.getStatusCode(), ElasticsearchDb.allowedFailResponseCodes) ? SC.SC_MAP.get(r.getStatusCode()) : SC.SC_500_INTERNAL_SERVER_ERROR, r.getErrorContent());
+
+      JSNode hits = r.getJson().getNode("hits");
+
+      //-- 6.x returns an int total, 7.x an object with a 'value'
+      Object total = hits.get("total");
+      if (total instanceof JSNode)
+         total = ((JSNode) total).get("value");
+      if (total instanceof Number)
+         result.withFoundRows(((Number) total).intValue());
+
+      JSArray hitArr = hits.getArray("hits");
+      JSNode lastHit = null;
+      for (int i = 0; hitArr != null && i < hitArr.length(); i++)
+      {
+         lastHit = hitArr.getObject(i);
+         JSNode source = lastHit.getNode("_source");
+         result.withRow(source != null ? source : new JSNode());
+      }
+
+      if (lastHit != null && hitArr.length() == page().getLimit() && lastHit.getArray("sort") != null)
+      {
+         //-- string values are quoted and escaped so that commas, parens
+         //-- and quotes survive the round trip through the next url
+         Term after = Term.term(null, "after");
+         for (Object value : lastHit.getArray("sort").asList())
+            Term.term(after, value instanceof Number ? value + "" : "'" + escape(value + "") + "'");
+
+         result.withNext(after);
+      }
 
+      return result;
    }
 
+   /**
+    * Builds the _search request body from the where, select, order and page terms.
+    */
    public JSNode getJson()
    {
       JSNode root = new JSNode();
-      for (Term term : getTerms())
+
+      JSArray filters = new JSArray();
+      for (Term term : where().filters())
       {
          JSNode child = toJson(null, term);
+         if (child != null)
+            filters.add(child);
+      }
+      if (filters.length() > 0)
+         root.put("query", new JSNode("bool", new JSNode("filter", filters)));
+
+      List<String> columns = select().getColumnNames();
+      if (columns.size() > 0)
+         root.put("_source", new JSArray(columns));
+
+      //-- search_after needs a total ordering so the key column is always the 
+      //-- last sort, unless it is an analyzed text field which can't be sorted
+      JSArray sort = new JSArray();
+      List<String> sorted = new ArrayList();
+      for (Order.Sort s : (List<Order.Sort>) order().getSorts())
+      {
+         sort.add(new JSNode(s.getProperty(), s.isAsc() ? "asc" : "desc"));
+         sorted.add(s.getProperty());
+      }
+      String keyName = table() != null ? table().getKeyName() : null;
+      if (keyName == null && table() != null && table().getColumn("id") != null)
+         keyName = "id";
+      if (keyName != null && !sorted.contains(keyName) && isSortable(table().getColumn(keyName)))
+         sort.add(new JSNode(keyName, "asc"));
+      if (sort.length() == 0)
+         sort.add("_doc");
+      root.put("sort", sort);
+
+      root.put("size", page().getLimit());
+
+      Term after = page().getAfter();
+      if (after != null)
+      {
+         JSArray searchAfter = new JSArray();
+         for (Term value : after.getTerms())
+            searchAfter.add(value.isQuoted() ? value.getToken() : toNumber(value.getToken()));
+         root.put("search_after", searchAfter);
+      }
+      else
+      {
+         root.put("from", page().getOffset());
       }
 
       return root;
    }
 
+   /**
+    * Keyword, numeric, date and boolean fields have doc values and can be 
+    * sorted on, text fields would need fielddata enabled.
+    */
+   public static boolean isSortable(Column column)
+   {
+      if (column == null || column.getType() == null)
+         return false;
+
+      switch (column.getType().toLowerCase())
+      {
+         case "keyword":
+         case "long":
+         case "integer":
+         case "short":
+         case "byte":
+         case "double":
+         case "float":
+         case "half_float":
+         case "scaled_float":
+         case "date":
+         case "boolean":
+            return true;
+         default :
+            return false;
+      }
+   }
+
+   /**
+    * Backslash escapes the characters that would end a quoted rql token.
+    */
+   static String escape(String value)
+   {
+      StringBuilder buff = new StringBuilder(value.length() + 4);
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if (c == '\\' || c == '\'' || c == '"')
+            buff.append('\\');
+         buff.append(c);
+      }
+      return buff.toString();
+   }
+
+   /**
+    * Unquoted search_after values were numeric sort values.
+    */
+   static Object toNumber(String value)
+   {
+      try
+      {
+         return Long.parseLong(value);
+      }
+      catch (NumberFormatException ex)
+      {
+         try
+         {
+            return Double.parseDouble(value);
+         }
+         catch (NumberFormatException ex2)
+         {
+            return value;
+         }
+      }
+   }
+
    public JSNode toJson(Term parent, Term child)
    {
       JSNode query = null;
@@ -89,7 +261,7 @@ public class ElasticsearchQuery extends Query<ElasticsearchQuery, SqlDb, Table,
       String token = child.getToken().toLowerCase();
       String field = child.getToken(0);
 
-      Object value = child.getTerm(1).isLeaf() ? child.getToken(1) : toJson(child, child.getTerm(1));
+      Object value = child.size() < 2 ? null : child.getTerm(1).isLeaf() ? child.getToken(1) : toJson(child, child.getTerm(1));
 
       switch (token)
       {
@@ -103,7 +275,7 @@ public class ElasticsearchQuery extends Query<ElasticsearchQuery, SqlDb, Table,
             //                "lte" : 20,
             //            }
             //        }
-            query = new JSNode("range", new JSNode(field, new JSNode(token, value)));
+            query = new JSNode("range", new JSNode(field, new JSNode("ge".equals(token) ? "gte" : "le".equals(token) ? "lte" : token, value)));
             break;
          case "eq": // equal
          case "ne": // not equal
@@ -138,16 +310,16 @@ public class ElasticsearchQuery extends Query<ElasticsearchQuery, SqlDb, Table,
                query = new JSNode("bool", new JSNode("must_not", query));
             }
             break;
-         //         case "and":
-         //            elastic = new BoolQuery();
-         //            ((BoolQuery) elastic).divvyElasticList(elasticList);
-         //            break;
-         //         case "or":
-         //            elastic = new BoolQuery();
-         //            // add everything in the list to the 'should' to 'or' the list together.
-         //            for (ElasticQuery eq : elasticList)
-         //               ((BoolQuery) elastic).addShould(eq);
-         //            break;
+         case "and":
+         case "or":
+         case "not":
+            JSArray children = new JSArray();
+            for (Term t : child.getTerms())
+               children.add(toJson(child, t));
+            query = new JSNode("bool", new JSNode("and".equals(token) ? "filter" : "or".equals(token) ? "should" : "must_not", children));
+            if ("or".equals(token))
+               query.getNode("bool").put("minimum_should_match", 1);
+            break;
          case "sw":
             query = new JSNode("wildcard", new JSNode(field, value + "*"));
             break;
@@ -158,52 +330,29 @@ public class ElasticsearchQuery extends Query<ElasticsearchQuery, SqlDb, Table,
             query = new JSNode("wildcard", new JSNode(field, "*" + value + "*"));
             break;
          case "wo":
-
-            //        "bool" : {
-            //            "must_not" : {
-            //              "range" : {
-            //                "age" : { "gte" : 10, "lte" : 20 }
-            //              }
-            //            }
-            //         }
+            query = new JSNode("bool", new JSNode("must_not", new JSNode("wildcard", new JSNode(field, "*" + value + "*"))));
+            break;
+         case "nn": // NOT NULL
+            query = new JSNode("exists", new JSNode("field", field));
+            break;
+         case "n": // NULL
+            query = new JSNode("bool", new JSNode("must_not", new JSNode("exists", new JSNode("field", field))));
+            break;
+         case "emp": // checks for empty strings AND null values
+            query = new JSNode("bool", new JSNode("should", new JSArray(new JSNode("term", new JSNode(field, "")), new JSNode("bool", new JSNode("must_not", new JSNode("exists", new JSNode("field", field))))), "minimum_should_match", 1));
+            break;
+         case "nemp": // not an empty string and not null
+            query = new JSNode("bool", new JSNode("filter", new JSNode("exists", new JSNode("field", field)), "must_not", new JSNode("term", new JSNode(field, ""))));
+            break;
+         case "in":
+         case "out":
+            JSArray values = new JSArray();
+            for (int i = 1; i < child.size(); i++)
+               values.add(child.getToken(i));
+            query = new JSNode("terms", new JSNode(field, values));
+            if ("out".equals(token))
+               query = new JSNode("bool", new JSNode("must_not", query));
             break;
-         //         case "emp": // checks for empty strings AND null values
-         //            elastic = new BoolQuery();
-         //            ((BoolQuery) elastic).addShould(new Term(pred.getTerms().get(0).token, "", "emp"));
-         //            mustNotBool = new BoolQuery();
-         //            mustNotBool.addMustNot(new ExistsQuery(pred.getTerms().get(0).token));
-         //            ((BoolQuery) elastic).addShould(mustNotBool);
-         //            break;
-         //         case "nemp": // checks for empty strings AND null values
-         //            elastic = new BoolQuery();
-         //            mustNotBool = new BoolQuery(); // 'mustNotBool' is used even-though it should be named 'mustBool'
-         //            mustNotBool.addMustNot(new Term(pred.getTerms().get(0).token, "", "nemp"));
-         //            ((BoolQuery) elastic).addMust(mustNotBool);
-         //            BoolQuery mustBool = new BoolQuery();
-         //            mustBool.addMust(new ExistsQuery(pred.getTerms().get(0).token));
-         //            ((BoolQuery) elastic).addMust(mustBool);
-         //            break;
-         //         case "nn": // NOT NULL
-         //            query = new ObjectNode("exists", new ObjectNode("field", field));
-         //            break;
-         //         case "n": // NULL
-         //            elastic = new BoolQuery();
-         //            ((BoolQuery) elastic).addMustNot(new ExistsQuery(pred.getTerms().get(0).token));
-         //            break;
-         //         case "in":
-         //            termsList = new ArrayList<Term>(pred.terms);
-         //            elastic = new Term(termsList.remove(0).token, pred.token);
-         //            for (Term pTerm : termsList)
-         //               ((Term) elastic).addValue(Parser.dequote(pTerm.token));
-         //            break;
-         //         case "out":
-         //            elastic = new BoolQuery();
-         //            termsList = new ArrayList<Term>(pred.terms);
-         //            Term term = new Term(termsList.remove(0).token, pred.token);
-         //            for (Term pTerm : termsList)
-         //               term.addValue(Parser.dequote(pTerm.token));
-         //            ((BoolQuery) elastic).addMustNot(term);
-         //            break;
          case "search":
             //            "query": {
             //               "fuzzy" : { "user" : "ki" }
@@ -33,6 +33,7 @@ import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.rql.Term;
 import io.rocketpartners.cloud.utils.HttpUtils;
+import io.rocketpartners.cloud.utils.HttpUtils.HttpClientConfig;
 import io.rocketpartners.cloud.utils.HttpUtils.FutureResponse;
 import io.rocketpartners.cloud.utils.Rows.Row;
 import io.rocketpartners.cloud.utils.Utils;
@@ -59,6 +60,15 @@ public class ElasticDb extends Db<ElasticDb>
 
    protected static final int[] allowedFailResponseCodes = {400, 401, 403, 404};
 
+   /**
+    * Connection pool settings for the long lived HttpClient 
+    * shared by all requests to this Db's url
+    */
+   protected int                httpMaxConnections       = 100;
+   protected int                httpMaxPerRoute          = 100;
+   protected long               httpKeepAlive            = 60000;               // in milliseconds
+   protected long               httpIdleTimeout          = 30000;               // in milliseconds
+
    public ElasticDb()
    {
       super();
@@ -70,6 +80,7 @@ public class ElasticDb extends Db<ElasticDb>
    {
       try
       {
+         configHttpClient();
          reflectDb();
          configApi();
       }
@@ -213,11 +224,34 @@ public class ElasticDb extends Db<ElasticDb>
          // potential types include: keyword, long, nested, object, boolean
          if (propValue.hasProperty("type") && table.getColumn(colName) == null)
          {
-            table.makeColumn(colName, colName);
+            table.makeColumn(colName, propValue.getString("type"));
          }
       }
    }
 
+   /**
+    * Registers a pooled, keep-alive HttpClient for this Db's host
+    * so that calls to the backing service reuse connections.
+    */
+   protected void configHttpClient()
+   {
+      String url = getUrl();
+      if (!Utils.empty(url))
+      {
+         HttpUtils.withClientConfig(url, new HttpClientConfig()//
+                                                               .withMaxTotal(httpMaxConnections)//
+                                                               .withMaxPerRoute(httpMaxPerRoute)//
+                                                               .withKeepAlive(httpKeepAlive)//
+                                                               .withIdleTimeout(httpIdleTimeout));
+      }
+   }
+
+   @Override
+   protected void shutdown0()
+   {
+      HttpUtils.closeHttpClient(getUrl());
+   }
+
    public String getUrl()
    {
       return Utils.findSysEnvPropStr(getName() + ".url", url);
@@ -15,10 +15,13 @@
  */
 package io.rocketpartners.cloud.action.elastic.v03x;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
@@ -27,7 +30,9 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.rocketpartners.cloud.action.elastic.ElasticsearchQuery;
 import io.rocketpartners.cloud.action.elastic.v03x.dsl.ElasticRql;
+import io.rocketpartners.cloud.action.elastic.v03x.dsl.Order;
 import io.rocketpartners.cloud.action.elastic.v03x.dsl.QueryDsl;
 import io.rocketpartners.cloud.action.elastic.v03x.rql.Rql;
 import io.rocketpartners.cloud.model.Action;
@@ -44,6 +49,7 @@ import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.HttpUtils;
+import io.rocketpartners.cloud.utils.Utils;
 
 /**
  * Accepts RQL parameters and streams back the elastic query result to the http client
@@ -60,6 +66,13 @@ public class ElasticDbGetAction extends Action
    String  defaultSource = null;
    boolean isOneSrcArray = true;
 
+   /**
+    * The doc values field appended as the last sort key of cursor pages so 
+    * every hit has a unique sort position and search_after never skips or 
+    * repeats tied rows.  Defaults to the table's key, or 'id', when sortable.
+    */
+   String  tiebreaker    = null;
+
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
    {
@@ -89,6 +102,10 @@ public class ElasticDbGetAction extends Action
    /**
     * Converts a request from RQL into an Elastic query that is then sent to ElasticSearch.
     * The Elastic response is converted into the snooze format.
+    * <p>
+    * Pages beyond the normal from/size window are addressed with an opaque
+    * 'cursor' param holding the sort values of the hit adjacent to the page,
+    * so a deep 'next' or 'prev' page costs a single search_after query.
     * @param req
     * @param res
     * @param paths
@@ -112,100 +129,115 @@ public class ElasticDbGetAction extends Action
          {
             // remove the start param as it wont be used.
             req.removeParam("start");
-            req.removeParam("prevstart");
          }
       }
+      req.removeParam("prevstart");
+
+      String token = req.removeParam("cursor");
 
       QueryDsl dsl = elasticRQL.toQueryDsl(req.getParams());
       dsl.getStmt().setMaxRows(maxRows);
 
-      if (wantedPage != null)
+      int size = dsl.getStmt().pagesize < 0 ? maxRows : dsl.getStmt().pagesize;
+      int pageNum = dsl.getStmt().pagenum < 1 ? 1 : dsl.getStmt().pagenum;
+
+      // only cursor pages, and deep pages whose links will be cursors, need a
+      // unique sort.  A legacy 'start' param may already have set search_after
+      // with one value per requested sort key so it can not take a tiebreaker
+      List<Object> after = dsl.getSearchAfter();
+      boolean reverse = false;
+
+      String tiebreaker = null;
+      int lastPage = Math.max(pageNum, wantedPage != null ? wantedPage : 0);
+      if (after == null && (token != null || (long) size * (lastPage + 1) > ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE))
       {
-         // wantedPage < MAX query size, get that page.
-         if (wantedPage * dsl.getStmt().pagesize <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE)
+         tiebreaker = getTiebreaker(table);
+         if (tiebreaker != null && !addTiebreaker(dsl, tiebreaker))
+            tiebreaker = null;
+      }
+
+      ObjectMapper mapper = new ObjectMapper();
+      String queryKey = getQueryKey(mapper, dsl);
+
+      if (token != null)
+      {
+         Cursor cursor = Cursor.decode(token, queryKey);
+
+         pageNum = cursor.page;
+         after = cursor.after;
+         reverse = cursor.prev;
+      }
+
+      ArrayListValuedHashMap<String, String> headers = new ArrayListValuedHashMap<String, String>();
+      String url = buildSearchUrlAndHeaders(table, paths, headers);
+
+      if (wantedPage != null && wantedPage != pageNum)
+      {
+         if (wantedPage * size <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE)
          {
-            // to directly load the page, set pagenum = wantedPage
-            dsl.getStmt().pagenum = wantedPage;
+            // to directly load the page, use from/size
+            after = null;
+            reverse = false;
          }
          else
          {
-            // wantedPage > 10k, start traversal at the last page BEFORE the MAX query index
-            if (wantedPage < dsl.getStmt().pagenum)
+            // skip forward from the current position when possible, otherwise from the first row
+            long skip = 0;
+            if (after != null && !reverse && wantedPage > pageNum)
             {
-               int newPageNum = 1;
-               while (newPageNum * dsl.getStmt().pagesize <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE)
-               {
-                  newPageNum++;
-               }
-
-               dsl.getStmt().pagenum = newPageNum - 1;
+               skip = (long) (wantedPage - pageNum) * size;
+            }
+            else
+            {
+               after = null;
+               skip = (long) (wantedPage - 1) * size;
             }
+
+            after = seek(res, url, headers, mapper, dsl, after, skip);
+            reverse = false;
          }
+         pageNum = wantedPage;
       }
 
-      ObjectMapper mapper = new ObjectMapper();
+      dsl.getStmt().pagenum = pageNum;
+      dsl.setSearchAfter(after);
+      if (reverse)
+         dsl.getOrder().reverseOrdering();
 
       String json = mapper.writeValueAsString(dsl.toDslMap());
 
+      if (reverse)
+         dsl.getOrder().reverseOrdering();
+
       // uses a http client to deliver the dsl/json as the payload...
       // ... the elastic response is then piped into the Response 'res'
       // and returned to the client 
-      // HttpClient httpClient = Web.getHttpClient();
-
-      ArrayListValuedHashMap<String, String> headers = new ArrayListValuedHashMap<String, String>();
-      String url = buildSearchUrlAndHeaders(table, paths, headers);
-
       res.debug(url, json, headers);
 
-      Response r = HttpUtils.rest("POST", url, json, headers, -1).get(ElasticDb.maxRequestDuration, TimeUnit.SECONDS);
+      Response r = search(url, json, headers);
       if (r.isSuccess())
       {
-
-         // TODO how do we want to handle a failed elastic result?
-
          JSNode jsObj = r.getJson();
 
          int totalHits = jsObj.findInt("hits.total");
-         JSArray hits = jsObj.findArray("hits.hits");
+         List<JSNode> hits = new ArrayList<JSNode>(jsObj.findArray("hits.hits").asList());
+
+         // a 'prev' cursor searches backwards from the first hit of the following page
+         if (reverse)
+            Collections.reverse(hits);
 
          boolean isAll = "all".equalsIgnoreCase(table.getName());//paths[paths.length - 1].toLowerCase().equals("no-type");
          boolean isOneSrcArr = (isOneSrcArray && dsl.getSources() != null && dsl.getSources().size() == 1) ? true : false;
 
          JSArray data = createDataJsArray(isAll, isOneSrcArr, hits, dsl);
 
-         // if the query contains a wantedPage and it differs from the pagenum 
-         // loop until pagenum==wantedPage.  Use the query, and only adjust the 
-         // 'from' for each request.  While this method maybe more verbose, it 
-         // will do half the work than re-invoking the this handler as it will 
-         // not have to query the 'prev' value multiple times.
-         int pageNum = dsl.getStmt().pagenum;
-         List<String> sortList = dsl.getOrder() != null ? dsl.getOrder().getOrderAsStringList() : new ArrayList<String>();
-         while (wantedPage != null && wantedPage != pageNum)
-         {
-            // get the last object
-            JSNode lastHit = data.getObject(data.length() - 1);
-
-            // get that object's 'sort' values
-            String startStr = srcObjectFieldsToStringBySortList(lastHit, sortList);
-
-            // update 'search after' starting position on the dsl
-            dsl.setSearchAfter(new ArrayList<String>(Arrays.asList(startStr.split(","))));
-            json = mapper.writeValueAsString(dsl.toDslMap());
+         List firstSort = hits.size() > 0 ? getSortValues(hits.get(0)) : null;
+         List lastSort = hits.size() > 0 ? getSortValues(hits.get(hits.size() - 1)) : null;
 
-            r = HttpUtils.rest("POST", url, json, headers, -1).get(ElasticDb.maxRequestDuration, TimeUnit.SECONDS);
-            jsObj = r.getJson();
-            hits = jsObj.getNode("hits").getArray("hits");
-
-            data = createDataJsArray(isAll, isOneSrcArr, hits, dsl);
-
-            pageNum++;
-         }
-
-         JSNode meta = buildMeta(dsl.getStmt().pagesize, pageNum, totalHits, apiUrl, dsl, (data.length() > 0 ? data.get(data.length() - 1) : null), url, headers);
+         JSNode meta = buildMeta(size, pageNum, totalHits, apiUrl, dsl, queryKey, tiebreaker, firstSort, lastSort);
 
          JSNode wrapper = new JSNode("meta", meta, "data", data);
          res.withJson(wrapper);
-
       }
       else
       {
@@ -216,6 +248,100 @@ public class ElasticDbGetAction extends Action
 
    }
 
+   /**
+    * Walks forward <code>skip</code> rows from <code>after</code> using
+    * search_after hops of up to MAX_NORMAL_ELASTIC_QUERY_SIZE rows that only
+    * fetch each hit's sort values, and returns the sort values of the last
+    * row skipped.
+    */
+   List<Object> seek(Response res, String url, ArrayListValuedHashMap<String, String> headers, ObjectMapper mapper, QueryDsl dsl, List<Object> after, long skip) throws Exception
+   {
+      url = url + "?filter_path=hits.hits.sort";
+
+      while (skip > 0)
+      {
+         int hop = (int) Math.min(skip, ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE);
+
+         dsl.setSearchAfter(after);
+         Map<String, Object> dslMap = dsl.toDslMap();
+         dslMap.put("_source", false);
+         dslMap.put("size", hop);
+         if (after == null)
+            dslMap.put("from", 0);
+
+         String json = mapper.writeValueAsString(dslMap);
+         res.debug(url, json, headers);
+
+         Response r = search(url, json, headers);
+         if (!r.isSuccess())
+         {
+            res.debug("", "Elastic Error Response", r.getErrorContent());
+            throw new ApiException(SC.matches(r.getStatusCode(), ElasticDb.allowedFailResponseCodes) ? SC.SC_MAP.get(r.getStatusCode()) : SC.SC_500_INTERNAL_SERVER_ERROR);
+         }
+
+         JSArray hits = r.getJson().findArray("hits.hits");
+         if (hits == null || hits.length() < hop)
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "The 'wantedPage' param is beyond the last page of results.");
+
+         after = getSortValues(hits.getObject(hits.length() - 1));
+         skip -= hop;
+      }
+
+      return after;
+   }
+
+   /**
+    * Posts the search <code>json</code> to elastic.
+    */
+   Response search(String url, String json, ArrayListValuedHashMap<String, String> headers) throws Exception
+   {
+      return HttpUtils.rest("POST", url, json, headers, -1).get(ElasticDb.maxRequestDuration, TimeUnit.SECONDS);
+   }
+
+   /**
+    * The configured tiebreaker, otherwise the table's key or 'id' field 
+    * when it has doc values.  _id is never used, sorting on it needs 
+    * fielddata and is disabled by default in newer versions of elastic.
+    */
+   String getTiebreaker(Table table)
+   {
+      if (tiebreaker != null)
+         return tiebreaker;
+
+      if (table == null)
+         return null;
+
+      String keyName = table.getKeyName();
+      if (keyName == null && table.getColumn("id") != null)
+         keyName = "id";
+
+      return keyName != null && ElasticsearchQuery.isSortable(table.getColumn(keyName)) ? keyName : null;
+   }
+
+   /**
+    * Adds <code>field</code> as the last sort key unless the 
+    * sort already includes it.
+    * 
+    * @return true if the sort was changed
+    */
+   static boolean addTiebreaker(QueryDsl dsl, String field)
+   {
+      Order order = dsl.getOrder();
+      if (order == null)
+      {
+         dsl.setOrder(new Order(field, "asc"));
+         return true;
+      }
+
+      for (Map<String, String> sort : order.getOrderList())
+      {
+         if (sort.containsKey(field))
+            return false;
+      }
+      order.addOrder(field, "asc");
+      return true;
+   }
+
    /**
     * Converts a request into an Elastic auto-completion search used for obtaining 
     * suggested values.  The request path is expected to end with 'suggest'.  The 
@@ -310,7 +436,7 @@ public class ElasticDbGetAction extends Action
          else
          {
             JSNode data = new JSNode("field", field, "results", resultArray);
-            JSNode meta = buildMeta(resultArray.length(), 1, resultArray.length(), null, null, null, null, null);
+            JSNode meta = buildMeta(resultArray.length(), 1, resultArray.length(), null, null, null, null, null, null);
             res.withJson(new JSNode("meta", meta, "data", data));
          }
       }
@@ -350,7 +476,7 @@ public class ElasticDbGetAction extends Action
     * @param totalHits
     * @return
     */
-   private JSNode buildMeta(int size, int pageNum, int totalHits, String apiUrl, QueryDsl dsl, Object sources, String elasticUrl, ArrayListValuedHashMap<String, String> headers)
+   private JSNode buildMeta(int size, int pageNum, int totalHits, String apiUrl, QueryDsl dsl, String queryKey, String tiebreaker, List firstSort, List lastSort)
    {
       JSNode meta = new JSNode();
 
@@ -383,7 +509,13 @@ public class ElasticDbGetAction extends Action
             apiUrl = apiUrl.substring(0, apiUrl.length() - 1);
          }
 
+         // an added tiebreaker is added back by cursor requests so it stays out of the urls
          List<String> sortList = dsl.getOrder() != null ? dsl.getOrder().getOrderAsStringList() : new ArrayList<String>();
+         if (tiebreaker != null)
+         {
+            sortList.remove(tiebreaker);
+            sortList.remove("-" + tiebreaker);
+         }
 
          // add the original query back onto the url
          List<String> rqlQuery = new ArrayList<String>();
@@ -406,101 +538,50 @@ public class ElasticDbGetAction extends Action
             url = url + "&source=" + String.join(",", dsl.getSources());
 
          // 'prev' & 'next' can easily be determined if pageSize*pageNum < 10k
-         if ((size * prevPageNum <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE) && (prevPageNum > 0))
-            meta.put("prev", url + "&pageNum=" + prevPageNum);
-
-         if ((size * nextPageNum <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE) && (pages > pageNum))
-            meta.put("next", url + "&pageNum=" + nextPageNum);
-
-         // if next is still null & the size > 10k
-         if (meta.get("next") == null && ((size * nextPageNum) > ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE))
+         // otherwise the cursor continues from the first or last hit of this page
+         if (prevPageNum > 0)
          {
-            // the start values for the 'next' search should be pulled from the lastHit object using the sort order to obtain the correct fields
-            String startString = null;
-            if (sources != null)
-               startString = srcObjectFieldsToStringBySortList(sources, sortList);
-
-            if (prevPageNum == 1)
-               // the first page only requires the original rql query because there is no 'search after' that 
-               // would retrieve the proper values.
-               meta.put("prev", (pageNum == 1) ? null : url + "&pageNum=" + prevPageNum);
-
-            // prevStart was set as a req param, use that value instead of running another query
-            else if (dsl.getPreviousStart() != null)
-            {
-               meta.put("prev", (pageNum == 1) ? null : url + "&pageNum=" + prevPageNum + "&start=" + dsl.getPreviousStart());
-            }
-
-            else
-            {
-               String prevStartString = null;
-
-               // the start values for the 'previous' search need to be pulled from a separate query.
-               if ((size * prevPageNum > (ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE - 1)))
-               {
-                  try
-                  {
-                     dsl.getOrder().reverseOrdering();
-                     ObjectMapper mapper = new ObjectMapper();
-                     String json = mapper.writeValueAsString(dsl.toDslMap());
-                     Response r = HttpUtils.rest("POST", elasticUrl, json, headers, -1).get(ElasticDb.maxRequestDuration, TimeUnit.SECONDS);
-
-                     if (r.isSuccess())
-                     {
-                        JSNode jsObj = r.getJson();
-                        JSArray hits = jsObj.getArray("hits.hits");
-                        JSNode prevLastHit = hits.getObject(hits.length() - 1);
-
-                        prevStartString = srcObjectFieldsToStringBySortList(prevLastHit.getNode("_source"), sortList);
-
-                        meta.put("prev", (pageNum == 1) ? null : url + "&pageNum=" + prevPageNum + "&start=" + prevStartString);
-                     }
-                  }
-                  catch (Exception e)
-                  {
-                     log.error("error determining the meta 'prev' url ", e);
-                  }
-               }
-            }
-
-            if (pages > pageNum)
-            {
-               meta.put("next", url + "&pageNum=" + nextPageNum + "&start=" + startString + "&prevStart=" + dsl.getSearchAfterAsString());
-            }
+            if (size * prevPageNum <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE)
+               meta.put("prev", url + "&pageNum=" + prevPageNum);
+            else if (firstSort != null)
+               meta.put("prev", url + "&pageNum=" + prevPageNum + "&cursor=" + new Cursor(queryKey, prevPageNum, true, firstSort).encode());
          }
 
+         if (pages > pageNum)
+         {
+            if (size * nextPageNum <= ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE)
+               meta.put("next", url + "&pageNum=" + nextPageNum);
+            else if (lastSort != null)
+               meta.put("next", url + "&pageNum=" + nextPageNum + "&cursor=" + new Cursor(queryKey, nextPageNum, false, lastSort).encode());
+         }
       }
 
       return meta;
    }
 
-   private String srcObjectFieldsToStringBySortList(Object sourceObj, List<String> sortList)
+   /**
+    * Identifies the query, sort and page size a cursor was issued for
+    * so a token can not be replayed against a different search.
+    */
+   static String getQueryKey(ObjectMapper mapper, QueryDsl dsl) throws Exception
    {
+      Map<String, Object> dslMap = dsl.toDslMap();
+      dslMap.remove("from");
+      dslMap.remove("search_after");
+      return Integer.toHexString(mapper.writeValueAsString(new TreeMap<String, Object>(dslMap)).hashCode());
+   }
 
-      List<String> list = new ArrayList<String>();
-
-      for (String field : sortList)
-      {
-         if (sourceObj instanceof JSNode && ((JSNode) sourceObj).get(field) != null)
-         {
-            list.add(((JSNode) sourceObj).get(field).toString().toLowerCase());
-         }
-         else if (sourceObj instanceof String)
-         {
-            list.add((String) sourceObj);
-         }
-         else
-            list.add("[NULL]");
-      }
-
-      return String.join(",", list);
+   static List getSortValues(JSNode hit)
+   {
+      JSArray sort = hit.getArray("sort");
+      return sort != null ? sort.asList() : null;
    }
 
-   private JSArray createDataJsArray(boolean isAll, boolean isOneSrcArr, JSArray hits, QueryDsl dsl)
+   private JSArray createDataJsArray(boolean isAll, boolean isOneSrcArr, List<JSNode> hits, QueryDsl dsl)
    {
       JSArray data = new JSArray();
 
-      for (JSNode obj : (List<JSNode>) hits.asList())
+      for (JSNode obj : hits)
       {
          JSNode src = obj.getNode("_source");
 
@@ -543,4 +624,60 @@ public class ElasticDbGetAction extends Action
 
    }
 
+   /**
+    * An opaque paging token: the sort values of the hit to search after,
+    * the page it resolves to and whether it pages backwards.
+    */
+   static class Cursor
+   {
+      static final int VERSION = 1;
+
+      String           query   = null;
+      int              page    = 1;
+      boolean          prev    = false;
+      List             after   = null;
+
+      Cursor(String query, int page, boolean prev, List after)
+      {
+         this.query = query;
+         this.page = page;
+         this.prev = prev;
+         this.after = after;
+      }
+
+      String encode()
+      {
+         JSNode json = new JSNode("v", VERSION, "q", query, "p", page, "d", prev ? "prev" : "next", "a", new JSArray(after));
+         return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+      }
+
+      static Cursor decode(String token)
+      {
+         try
+         {
+            JSNode json = Utils.parseJsonMap(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            if (json.getInt("v") == VERSION)
+               return new Cursor(json.getString("q"), json.getInt("p"), "prev".equals(json.getString("d")), json.getArray("a").asList());
+         }
+         catch (Exception ex)
+         {
+            //-- falls through to the bad request below
+         }
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "The 'cursor' param is not a valid paging token.");
+      }
+
+      /**
+       * Decodes <code>token</code> and checks it was issued for the query 
+       * identified by <code>queryKey</code>.
+       */
+      static Cursor decode(String token, String queryKey)
+      {
+         Cursor cursor = decode(token);
+         if (!queryKey.equals(cursor.query))
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "The 'cursor' param does not belong to this query.");
+
+         return cursor;
+      }
+   }
+
 }
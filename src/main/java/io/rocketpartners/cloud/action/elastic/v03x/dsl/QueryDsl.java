@@ -15,6 +15,7 @@
  */
 package io.rocketpartners.cloud.action.elastic.v03x.dsl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -52,7 +53,7 @@ public class QueryDsl extends ElasticQuery
    private NestedQuery  nested;
 
    @JsonIgnore
-   private List<String> searchAfter;
+   private List<Object> searchAfter;
 
    @JsonIgnore
    private String       prevStart;
@@ -207,9 +208,19 @@ public class QueryDsl extends ElasticQuery
       return searchAfter == null;
    }
    
-   public void setSearchAfter(List<String> searchAfter)
+   /**
+    * Values may be the raw 'sort' values of a hit so numeric and
+    * date sort keys round trip without being stringified.
+    */
+   public void setSearchAfter(List<?> searchAfter)
+   {
+      this.searchAfter = searchAfter != null ? new ArrayList<Object>(searchAfter) : null;
+   }
+
+   @JsonIgnore
+   public List<Object> getSearchAfter()
    {
-      this.searchAfter = searchAfter;
+      return searchAfter;
    }
 
    @JsonIgnore
@@ -21,12 +21,19 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.kinesisfirehose.AmazonKinesisFirehose;
 import com.amazonaws.services.kinesisfirehose.AmazonKinesisFirehoseClientBuilder;
 import com.amazonaws.services.kinesisfirehose.model.PutRecordBatchRequest;
+import com.amazonaws.services.kinesisfirehose.model.PutRecordBatchResponseEntry;
+import com.amazonaws.services.kinesisfirehose.model.PutRecordBatchResult;
 import com.amazonaws.services.kinesisfirehose.model.Record;
 
 import io.rocketpartners.cloud.model.ApiException;
@@ -52,9 +59,19 @@ import io.rocketpartners.cloud.utils.Utils;
  * Unless <code>jsonPrettyPrint</code> is set to <code>true</code> all JSON
  * records are stringified without return characters.
  * 
- * All records are always submitted in batches of up to <code>batchMax</code>.  
- * You can submit more than <code>batchMax</code> to the handler and it will try to
- * send as many batches as required. 
+ * All records are always submitted in batches of up to <code>batchMax</code> records
+ * and <code>batchMaxBytes</code> bytes.  You can submit more than <code>batchMax</code> 
+ * to the handler and it will try to send as many batches as required.  Records 
+ * Firehose reports as failed are resent up to <code>retryMax</code> times.
+ * 
+ * When <code>async</code> is true, upserts only enqueue their records and return.  
+ * A background producer per stream aggregates records across requests and sends a 
+ * batch when it is full or when its oldest record has waited <code>lingerMillis</code>.
+ * At most <code>queueMax</code> records are buffered per stream; when the buffer 
+ * does not have room for all of an upsert's records it waits up to 
+ * <code>queueWaitMillis</code> and then fails with a 429 without having queued any
+ * of them, so a client retry can't duplicate records.  Buffered records are 
+ * flushed on shutdown.
  * 
  * If <code>jsonSeparator</code> is not null (it is '\n' by default) and the 
  * stringified record does not end in <code>separator</code>,
@@ -90,10 +107,21 @@ public class FirehoseDb extends Db<FirehoseDb>
    protected AmazonKinesisFirehose firehoseClient     = null;
 
    protected int                   batchMax           = 500;
+   protected int                   batchMaxBytes      = 4 * 1024 * 1024;
+   protected int                   retryMax           = 5;
    protected String                jsonSeparator      = "\n";
    protected boolean               jsonPrettyPrint    = false;
    protected boolean               jsonLowercaseNames = true;
 
+   protected boolean               async              = false;
+   protected int                   queueMax           = 10000;
+   protected long                  queueWaitMillis    = 1000;
+   protected long                  lingerMillis       = 500;
+   protected long                  shutdownMillis     = 30000;
+
+   transient Map<String, Producer> producers          = new ConcurrentHashMap();
+   transient LongAdder             failedRecords      = new LongAdder();
+
    public FirehoseDb()
    {
       this.withType("firehose");
@@ -154,7 +182,7 @@ public class FirehoseDb extends Db<FirehoseDb>
    @Override
    public List upsert(Table table, List<Map<String, Object>> rows) throws Exception
    {
-      List<Record> batch = new ArrayList();
+      List<Record> records = new ArrayList();
       for (int i = 0; i < rows.size(); i++)
       {
          String string = new JSNode(rows.get(i)).toString(jsonPrettyPrint, jsonLowercaseNames);
@@ -162,21 +190,253 @@ public class FirehoseDb extends Db<FirehoseDb>
          if (jsonSeparator != null && !string.endsWith(jsonSeparator))
             string += jsonSeparator;
 
-         batch.add(new Record().withData(ByteBuffer.wrap(string.getBytes())));
+         records.add(new Record().withData(ByteBuffer.wrap(string.getBytes())));
+      }
+
+      if (async)
+      {
+         getProducer(table.getName()).offer(records);
+      }
+      else
+      {
+         List<Record> failed = put(table.getName(), records);
+         if (failed.size() > 0)
+            throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Firehose failed to accept " + failed.size() + " of " + records.size() + " records");
+      }
+
+      return Collections.emptyList();
+   }
 
-         if (i > 0 && i % batchMax == 0)
+   /**
+    * Sends the records in batches of up to batchMax records and
+    * batchMaxBytes bytes, resending the records of each batch that
+    * Firehose reports as failed.
+    * 
+    * @return the records that still failed after retryMax attempts
+    */
+   protected List<Record> put(String streamName, List<Record> records) throws Exception
+   {
+      List<Record> failed = new ArrayList();
+      List<Record> batch = new ArrayList();
+      int bytes = 0;
+      for (Record record : records)
+      {
+         int size = record.getData().remaining();
+         if (batch.size() > 0 && (batch.size() >= batchMax || bytes + size > batchMaxBytes))
          {
-            getFirehoseClient().putRecordBatch(new PutRecordBatchRequest().withDeliveryStreamName(table.getName()).withRecords(batch));
-            batch.clear();
+            failed.addAll(putBatch(streamName, batch));
+            batch = new ArrayList();
+            bytes = 0;
          }
+         batch.add(record);
+         bytes += size;
       }
 
       if (batch.size() > 0)
+         failed.addAll(putBatch(streamName, batch));
+
+      return failed;
+   }
+
+   protected List<Record> putBatch(String streamName, List<Record> batch) throws Exception
+   {
+      for (int attempt = 0; batch.size() > 0; attempt++)
       {
-         getFirehoseClient().putRecordBatch(new PutRecordBatchRequest().withDeliveryStreamName(table.getName()).withRecords(batch));
+         if (attempt > 0)
+         {
+            if (attempt > retryMax)
+               break;
+
+            long sleep = Math.min(5000, 100L << Math.min(attempt, 6));
+            Thread.sleep(sleep / 2 + (long) (Math.random() * sleep / 2));
+         }
+
+         PutRecordBatchResult result = getFirehoseClient().putRecordBatch(new PutRecordBatchRequest().withDeliveryStreamName(streamName).withRecords(batch));
+         if (result.getFailedPutCount() == null || result.getFailedPutCount() == 0)
+            return Collections.emptyList();
+
+         //-- responses line up with the request records, failed ones carry an error code
+         List<Record> retry = new ArrayList();
+         List<PutRecordBatchResponseEntry> responses = result.getRequestResponses();
+         for (int i = 0; i < responses.size() && i < batch.size(); i++)
+         {
+            if (responses.get(i).getErrorCode() != null)
+               retry.add(batch.get(i));
+         }
+         batch = retry;
       }
+      return batch;
+   }
 
-      return Collections.emptyList();
+   Producer getProducer(String streamName)
+   {
+      Producer producer = producers.get(streamName);
+      if (producer == null)
+      {
+         synchronized (this)
+         {
+            producer = producers.get(streamName);
+            if (producer == null)
+            {
+               if (isShutdown())
+                  throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "FirehoseDb '" + getName() + "' has been shutdown");
+
+               producer = new Producer(streamName);
+               producers.put(streamName, producer);
+               producer.thread.start();
+            }
+         }
+      }
+      return producer;
+   }
+
+   /**
+    * Flushes any buffered async records, waiting up to shutdownMillis.
+    */
+   @Override
+   protected void shutdown0()
+   {
+      long deadline = System.currentTimeMillis() + shutdownMillis;
+      for (Producer producer : producers.values())
+         producer.closed = true;
+
+      for (Producer producer : producers.values())
+      {
+         try
+         {
+            producer.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+         }
+
+         if (producer.thread.isAlive())
+         {
+            producer.thread.interrupt();
+            log.warn("FirehoseDb '" + getName() + "' shutdown with " + producer.queue.size() + " unsent records for stream '" + producer.streamName + "'");
+         }
+      }
+   }
+
+   /**
+    * @return the number of async records dropped after retryMax attempts
+    */
+   public long getFailedRecords()
+   {
+      return failedRecords.sum();
+   }
+
+   /**
+    * Buffers records for one stream and sends them from a daemon thread.
+    */
+   class Producer implements Runnable
+   {
+      String                        streamName = null;
+      ArrayBlockingQueue<Record>    queue      = null;
+      Semaphore                     capacity   = null;
+      Thread                        thread     = null;
+      volatile boolean              closed     = false;
+
+      Producer(String streamName)
+      {
+         this.streamName = streamName;
+         this.queue = new ArrayBlockingQueue(Math.max(1, queueMax));
+         this.capacity = new Semaphore(Math.max(1, queueMax), true);
+         this.thread = new Thread(this, "FirehoseDb-" + getName() + "-" + streamName);
+         this.thread.setDaemon(true);
+      }
+
+      /**
+       * Reserves room for every record before queueing any of them so 
+       * the records of a request are either all buffered or none are.
+       */
+      void offer(List<Record> records) throws Exception
+      {
+         if (records.size() > Math.max(1, queueMax))
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "Unable to buffer " + records.size() + " records, the Firehose buffer for '" + streamName + "' holds " + queueMax);
+
+         if (closed || !capacity.tryAcquire(records.size(), queueWaitMillis, TimeUnit.MILLISECONDS))
+            throw new ApiException(SC.SC_429_TOO_MANY_REQUESTS, "The Firehose buffer for '" + streamName + "' is full");
+
+         if (closed)
+         {
+            capacity.release(records.size());
+            throw new ApiException(SC.SC_429_TOO_MANY_REQUESTS, "The Firehose buffer for '" + streamName + "' is closed");
+         }
+
+         //-- the permits guarantee the queue has room
+         for (Record record : records)
+            queue.add(record);
+      }
+
+      public void run()
+      {
+         List<Record> batch = new ArrayList();
+         int bytes = 0;
+         long first = 0;
+
+         while (!(closed && queue.isEmpty() && batch.isEmpty()))
+         {
+            try
+            {
+               long wait = batch.isEmpty() ? lingerMillis : Math.max(0, first + lingerMillis - System.currentTimeMillis());
+               Record record = queue.poll(closed ? 0 : wait, TimeUnit.MILLISECONDS);
+
+               if (record != null)
+               {
+                  capacity.release();
+
+                  int size = record.getData().remaining();
+                  if (batch.size() > 0 && bytes + size > batchMaxBytes)
+                  {
+                     send(batch);
+                     batch = new ArrayList();
+                     bytes = 0;
+                  }
+
+                  if (batch.isEmpty())
+                     first = System.currentTimeMillis();
+
+                  batch.add(record);
+                  bytes += size;
+               }
+
+               if (batch.size() > 0 && (record == null || batch.size() >= batchMax || System.currentTimeMillis() - first >= lingerMillis))
+               {
+                  send(batch);
+                  batch = new ArrayList();
+                  bytes = 0;
+               }
+            }
+            catch (InterruptedException ex)
+            {
+               break;
+            }
+         }
+      }
+
+      void send(List<Record> batch)
+      {
+         try
+         {
+            List<Record> failed = putBatch(streamName, batch);
+            if (failed.size() > 0)
+            {
+               failedRecords.add(failed.size());
+               log.error("FirehoseDb dropped " + failed.size() + " records for stream '" + streamName + "' after " + retryMax + " retries");
+            }
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+         }
+         catch (Exception ex)
+         {
+            failedRecords.add(batch.size());
+            log.error("FirehoseDb dropped " + batch.size() + " records for stream '" + streamName + "'", ex);
+         }
+      }
    }
 
    public AmazonKinesisFirehose getFirehoseClient()
@@ -262,4 +522,46 @@ public class FirehoseDb extends Db<FirehoseDb>
       this.jsonLowercaseNames = jsonLowercaseNames;
       return this;
    }
+
+   public FirehoseDb withBatchMaxBytes(int batchMaxBytes)
+   {
+      this.batchMaxBytes = batchMaxBytes;
+      return this;
+   }
+
+   public FirehoseDb withRetryMax(int retryMax)
+   {
+      this.retryMax = retryMax;
+      return this;
+   }
+
+   public FirehoseDb withAsync(boolean async)
+   {
+      this.async = async;
+      return this;
+   }
+
+   public FirehoseDb withQueueMax(int queueMax)
+   {
+      this.queueMax = queueMax;
+      return this;
+   }
+
+   public FirehoseDb withQueueWaitMillis(long queueWaitMillis)
+   {
+      this.queueWaitMillis = queueWaitMillis;
+      return this;
+   }
+
+   public FirehoseDb withLingerMillis(long lingerMillis)
+   {
+      this.lingerMillis = lingerMillis;
+      return this;
+   }
+
+   public FirehoseDb withShutdownMillis(long shutdownMillis)
+   {
+      this.shutdownMillis = shutdownMillis;
+      return this;
+   }
 }
@@ -15,13 +15,24 @@
  */
 package io.rocketpartners.cloud.action.misc;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,15 +51,47 @@ import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.SqlUtils;
 import io.rocketpartners.cloud.utils.Utils;
 
+/**
+ * Writes an audit row to <code>logTable</code> and one row per changed 
+ * entity to <code>logChangeTable</code> after each successful request.
+ * <p>
+ * By default the rows are inserted synchronously inside the request's 
+ * transaction.  When <code>async</code> is true, entries are instead 
+ * offered to a bounded queue of <code>queueMax</code> entries and a background 
+ * writer inserts them in multi-row batches of up to <code>batchMax</code> 
+ * entries on its own connection, at least every <code>flushMillis</code>.  
+ * If the queue is full the entry is written synchronously so nothing is lost.
+ * <p>
+ * Async entries are not part of the request's transaction.  They are queued 
+ * when the request finishes its action chain, before the Engine commits, so 
+ * a request whose commit later fails or that is rolled back by an outer 
+ * action can still have an audit row, and queued entries that have not been 
+ * flushed are lost if the process dies.  Leave <code>async</code> false if the 
+ * audit log has to match committed changes exactly.
+ * <p>
+ * If a batch can not be written and <code>spillFile</code> is set, the 
+ * entries are appended to that file as json lines and replayed after the 
+ * next successful flush.
+ */
 public class LogAction extends Action<LogAction>
 {
-   Logger                               log            = LoggerFactory.getLogger(getClass());
+   Logger                                     log            = LoggerFactory.getLogger(getClass());
+
+   protected String                           logMask        = "* * * * * * * * * *";
+   protected String                           logTable       = null;
+   protected String                           logChangeTable = null;;
+
+   protected Set<String>                      logMaskFields  = new HashSet<>();
 
-   protected String                     logMask        = "* * * * * * * * * *";
-   protected String                     logTable       = null;
-   protected String                     logChangeTable = null;;
+   protected boolean                          async          = false;
+   protected int                              queueMax       = 10000;
+   protected int                              batchMax       = 100;
+   protected long                             flushMillis    = 1000;
+   protected String                           spillFile      = null;
 
-   protected Set<String> logMaskFields  = new HashSet<>();
+   transient volatile Writer                  writer         = null;
+   transient Map<String, SqlDb>               dbs            = new ConcurrentHashMap();
+   transient LongAdder                        spilledEntries = new LongAdder();
 
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
@@ -90,7 +133,6 @@ public class LogAction extends Action<LogAction>
 
                if (changes.size() > 0)
                {
-                  Connection conn = ((SqlDb)req.getCollection().getDb()).getConnection();
                   Map<String, Object> logParams = new HashMap<>();
                   logParams.put("method", req.getMethod());
                   logParams.put("userId", req.getUser() == null ? null : req.getUser().getId());
@@ -112,13 +154,11 @@ public class LogAction extends Action<LogAction>
                   {
                      logParams.put("tenantId", tenantId);
                   }
-                  Long logId = (Long) SqlUtils.insertMap(conn, logTable, logParams);
 
                   List<Map> changeMap = new ArrayList();
                   for (Change c : changes)
                   {
                      Map<String, Object> changeParams = new HashMap<>();
-                     changeParams.put("logId", logId);
                      changeParams.put("method", c.getMethod());
                      changeParams.put("collectionKey", c.getCollectionKey());
                      changeParams.put("entityKey", c.getEntityKey());
@@ -128,7 +168,18 @@ public class LogAction extends Action<LogAction>
                      }
                      changeMap.add(changeParams);
                   }
-                  SqlUtils.insertMaps(conn, logChangeTable, changeMap);
+
+                  SqlDb db = (SqlDb) req.getCollection().getDb();
+                  Entry entry = new Entry(db.getName(), logTable, logChangeTable, logParams, changeMap);
+
+                  //-- async entries are written on the writer's own connection
+                  //-- so they do not commit or roll back with this request
+                  if (!async || !getWriter().offer(db, entry))
+                  {
+                     //-- synchronous mode or the queue is full, write
+                     //-- inside the request's transaction
+                     write(db.getConnection(), entry);
+                  }
                }
             }
          }
@@ -139,6 +190,355 @@ public class LogAction extends Action<LogAction>
       }
    }
 
+   /**
+    * Inserts the log row and its change rows on <code>conn</code> without committing.
+    */
+   void write(Connection conn, Entry entry) throws Exception
+   {
+      Object logId = SqlUtils.insertMap(conn, entry.logTable, entry.log);
+      for (Map change : entry.changes)
+         change.put("logId", logId);
+
+      SqlUtils.insertMaps(conn, entry.logChangeTable, entry.changes);
+   }
+
+   /**
+    * Writes <code>entries</code>, which must all share the same db and
+    * tables, in one transaction on a connection owned by the calling thread.
+    */
+   void writeBatch(SqlDb db, List<Entry> entries) throws Exception
+   {
+      try
+      {
+         writeBatch(db.getConnection(), entries);
+         SqlDb.ConnectionLocal.commit();
+      }
+      catch (Exception ex)
+      {
+         SqlDb.ConnectionLocal.rollback();
+         for (Entry entry : entries)
+         {
+            for (Map change : entry.changes)
+               change.remove("logId");
+         }
+         throw ex;
+      }
+      finally
+      {
+         SqlDb.ConnectionLocal.close(db);
+      }
+   }
+
+   /**
+    * Inserts the log rows and then their change rows on <code>conn</code> 
+    * in batches without committing.  If the driver does not return a key 
+    * for every batched log row, the batch is rolled back and the log rows 
+    * are inserted one at a time.
+    */
+   void writeBatch(Connection conn, List<Entry> entries) throws Exception
+   {
+      Entry first = entries.get(0);
+
+      List<Map> logRows = new ArrayList();
+      for (Entry entry : entries)
+         logRows.add(entry.log);
+
+      List<Object> logIds = SqlUtils.insertBatch(conn, first.logTable, logRows);
+      if (logIds == null)
+      {
+         //-- the driver did not return a key per batched row so
+         //-- fall back to one insert per log row
+         conn.rollback();
+         logIds = new ArrayList();
+         for (Map row : logRows)
+            logIds.add(SqlUtils.insertMap(conn, first.logTable, row));
+      }
+
+      List<Map> changeRows = new ArrayList();
+      for (int i = 0; i < entries.size(); i++)
+      {
+         for (Map change : entries.get(i).changes)
+         {
+            change.put("logId", logIds.get(i));
+            changeRows.add(change);
+         }
+      }
+      if (changeRows.size() > 0)
+         SqlUtils.insertBatch(conn, first.logChangeTable, changeRows);
+   }
+
+   /**
+    * Groups <code>entries</code> by db and tables and writes each group, 
+    * spilling any group that fails.
+    * 
+    * @return true if every group was written
+    */
+   boolean flush(List<Entry> entries)
+   {
+      Map<String, List<Entry>> groups = new LinkedHashMap();
+      for (Entry entry : entries)
+      {
+         String key = entry.db + "|" + entry.logTable + "|" + entry.logChangeTable;
+         List<Entry> group = groups.get(key);
+         if (group == null)
+         {
+            group = new ArrayList();
+            groups.put(key, group);
+         }
+         group.add(entry);
+      }
+
+      boolean success = true;
+      for (List<Entry> group : groups.values())
+      {
+         SqlDb db = dbs.get(group.get(0).db);
+         try
+         {
+            if (db == null)
+               throw new Exception("Unknown db '" + group.get(0).db + "'");
+
+            writeBatch(db, group);
+         }
+         catch (Exception ex)
+         {
+            success = false;
+            log.error("Unable to write " + group.size() + " audit log entries to db '" + group.get(0).db + "'", ex);
+            spill(group);
+         }
+      }
+      return success;
+   }
+
+   synchronized void spill(List<Entry> entries)
+   {
+      if (spillFile == null)
+      {
+         log.error("Dropping " + entries.size() + " audit log entries, no spillFile is configured");
+         return;
+      }
+
+      try (PrintWriter out = new PrintWriter(new FileWriter(spillFile, true)))
+      {
+         for (Entry entry : entries)
+            out.println(entry.toJson().toString(false));
+
+         spilledEntries.add(entries.size());
+      }
+      catch (Exception ex)
+      {
+         log.error("Dropping " + entries.size() + " audit log entries, unable to write to spillFile '" + spillFile + "'", ex);
+      }
+   }
+
+   /**
+    * Moves any spilled entries aside and flushes them.  Entries that still 
+    * can not be written are spilled again by {@link #flush(List)} so the 
+    * replay file is deleted once every entry has been handed to flush.
+    * Lines that can not be parsed are logged and dropped.
+    */
+   void replay()
+   {
+      File replay = null;
+      synchronized (this)
+      {
+         if (spillFile == null)
+            return;
+
+         File spill = new File(spillFile);
+         if (!spill.exists() || spill.length() == 0)
+            return;
+
+         replay = new File(spillFile + ".replay");
+         if (!replay.exists() && !spill.renameTo(replay))
+            return;
+      }
+
+      //-- read everything before flushing so a read error can not
+      //-- leave the file behind after some entries were written
+      List<Entry> entries = new ArrayList();
+      try (BufferedReader in = new BufferedReader(new FileReader(replay)))
+      {
+         String line = null;
+         while ((line = in.readLine()) != null)
+         {
+            if (Utils.empty(line.trim()))
+               continue;
+
+            try
+            {
+               entries.add(Entry.fromJson(Utils.parseJsonMap(line)));
+            }
+            catch (Exception ex)
+            {
+               log.error("Dropping unparseable audit log entry from spillFile '" + replay + "': " + line, ex);
+            }
+         }
+      }
+      catch (Exception ex)
+      {
+         log.error("Unable to replay audit log spillFile '" + replay + "'", ex);
+         return;
+      }
+
+      for (int i = 0; i < entries.size(); i += Math.max(1, batchMax))
+         flush(entries.subList(i, Math.min(entries.size(), i + Math.max(1, batchMax))));
+
+      replay.delete();
+   }
+
+   synchronized Writer getWriter()
+   {
+      if (writer == null)
+      {
+         writer = new Writer();
+         Thread thread = new Thread(writer, "LogAction-writer");
+         thread.setDaemon(true);
+         writer.thread = thread;
+         thread.start();
+
+         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+               @Override
+               public void run()
+               {
+                  shutdown();
+               }
+            }, "LogAction-shutdown"));
+      }
+      return writer;
+   }
+
+   /**
+    * Stops the background writer after it drains the queue.
+    */
+   public void shutdown()
+   {
+      Writer writer = null;
+      synchronized (this)
+      {
+         writer = this.writer;
+         this.writer = null;
+      }
+
+      if (writer != null)
+      {
+         writer.closed = true;
+         try
+         {
+            writer.thread.join(Math.max(flushMillis * 5, 5000));
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   public long getQueueSize()
+   {
+      Writer writer = this.writer;
+      return writer == null ? 0 : writer.queue.size();
+   }
+
+   public long getSpilledEntries()
+   {
+      return spilledEntries.sum();
+   }
+
+   class Writer implements Runnable
+   {
+      BlockingQueue<Entry> queue  = new ArrayBlockingQueue(Math.max(1, queueMax));
+      volatile boolean     closed = false;
+      Thread               thread = null;
+
+      boolean offer(SqlDb db, Entry entry)
+      {
+         dbs.put(entry.db, db);
+         return !closed && queue.offer(entry);
+      }
+
+      @Override
+      public void run()
+      {
+         List<Entry> batch = new ArrayList();
+         long lastFlush = System.currentTimeMillis();
+
+         while (!closed || !queue.isEmpty())
+         {
+            try
+            {
+               Entry entry = queue.poll(Math.max(1, flushMillis), TimeUnit.MILLISECONDS);
+               if (entry != null)
+               {
+                  batch.add(entry);
+                  queue.drainTo(batch, batchMax - batch.size());
+               }
+
+               long now = System.currentTimeMillis();
+               if (batch.size() >= batchMax || (batch.size() > 0 && (now - lastFlush >= flushMillis || closed)))
+               {
+                  boolean success = flush(batch);
+                  batch.clear();
+                  lastFlush = now;
+
+                  if (success)
+                     replay();
+               }
+            }
+            catch (InterruptedException ex)
+            {
+               closed = true;
+            }
+            catch (Throwable ex)
+            {
+               log.error("Unexpected error in audit log writer", ex);
+            }
+         }
+
+         if (batch.size() > 0)
+            flush(batch);
+      }
+   }
+
+   static class Entry
+   {
+      String    db             = null;
+      String    logTable       = null;
+      String    logChangeTable = null;
+      Map       log            = null;
+      List<Map> changes        = null;
+
+      Entry(String db, String logTable, String logChangeTable, Map log, List<Map> changes)
+      {
+         this.db = db;
+         this.logTable = logTable;
+         this.logChangeTable = logChangeTable;
+         this.log = log;
+         this.changes = changes;
+      }
+
+      JSNode toJson()
+      {
+         JSArray changes = new JSArray();
+         for (Map change : this.changes)
+            changes.add(new JSNode(change));
+
+         return new JSNode("db", db, "logTable", logTable, "logChangeTable", logChangeTable, "log", new JSNode(log), "changes", changes);
+      }
+
+      static Entry fromJson(JSNode json)
+      {
+         List<Map> changes = new ArrayList();
+         JSArray arr = json.getArray("changes");
+         if (arr != null)
+         {
+            for (Object change : arr)
+               changes.add(((JSNode) change).asMap());
+         }
+         return new Entry(json.getString("db"), json.getString("logTable"), json.getString("logChangeTable"), json.getNode("log").asMap(), changes);
+      }
+   }
+
    JSNode maskFields(JSNode json, String mask)
    {
       if (json != null)
@@ -231,4 +631,44 @@ public class LogAction extends Action<LogAction>
       setLogChangeTable(logChangeTable);
       return this;
    }
+
+   public boolean isAsync()
+   {
+      return async;
+   }
+
+   public LogAction withAsync(boolean async)
+   {
+      this.async = async;
+      return this;
+   }
+
+   public LogAction withQueueMax(int queueMax)
+   {
+      this.queueMax = queueMax;
+      return this;
+   }
+
+   public LogAction withBatchMax(int batchMax)
+   {
+      this.batchMax = batchMax;
+      return this;
+   }
+
+   public LogAction withFlushMillis(long flushMillis)
+   {
+      this.flushMillis = flushMillis;
+      return this;
+   }
+
+   public String getSpillFile()
+   {
+      return spillFile;
+   }
+
+   public LogAction withSpillFile(String spillFile)
+   {
+      this.spillFile = spillFile;
+      return this;
+   }
 }
@@ -3,7 +3,11 @@
  */
 package io.rocketpartners.cloud.action.redis;
 
-import java.util.Set;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,14 +15,26 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.rocketpartners.cloud.action.security.AuthSessionCache;
+import io.rocketpartners.cloud.action.security.ShardedAuthSessionCache;
 import io.rocketpartners.cloud.model.User;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 /**
  * This is to be used with the AuthHandler to provide a central session cache, which 
  * is needed when running Snooze on multiple instances behind a load balancer
+ * <p>
+ * Sessions read from Redis are held in a local near cache for <code>nearCacheExp</code>
+ * millis so most requests do not touch Redis at all.  A read that misses the near cache
+ * fetches the session and resets its ttl in a single pipelined round trip.  Removing a 
+ * session (logout) publishes the session key on <code>keyPrefix + "invalidate"</code> so
+ * every instance drops it from its near cache.
+ * <p>
+ * Users are stored in a compact binary encoding, JSON written by earlier versions is still read. 
  * 
  * @author tc-rocket
  */
@@ -46,26 +62,43 @@ public class RedisAuthSessionCache implements AuthSessionCache
 
    protected String  keyPrefix                          = "RedisAuthSess-";
 
+   protected int     nearCacheMax                       = 10000;
+   protected int     nearCacheExp                       = 5000;                                                // in millis, zero disables the near cache
+
+   static final byte ENCODING_VERSION                   = 1;
+
    JedisPool         jedisPool;
+   AuthSessionCache  nearCache;
+   Thread            subscriber;
 
    @Override
    public User get(String sessionKey)
    {
-      return (User) execute(new JedisCallback()
+      AuthSessionCache near = getNearCache();
+      User user = near != null ? near.get(sessionKey) : null;
+      if (user != null)
+         return user;
+
+      user = (User) execute(new JedisCallback()
          {
             public Object doWithJedis(Jedis jedis) throws Exception
             {
-               User user = null;
-               String userJson = jedis.get(key(sessionKey));
-               if (userJson != null)
-               {
-                  // reset the ttl after a successful get call
-                  jedis.expire(key(sessionKey), redisTtl);
-                  user = om.readValue(userJson, User.class);
-               }
-               return user;
+               byte[] key = key(sessionKey).getBytes("UTF-8");
+
+               // get and reset the ttl in one round trip
+               Pipeline pipe = jedis.pipelined();
+               Response<byte[]> value = pipe.get(key);
+               pipe.expire(key, redisTtl);
+               pipe.sync();
+
+               return value.get() != null ? decode(value.get()) : null;
             }
          });
+
+      if (user != null && near != null)
+         near.put(sessionKey, user);
+
+      return user;
    }
 
    @Override
@@ -77,27 +110,187 @@ public class RedisAuthSessionCache implements AuthSessionCache
             {
                public Object doWithJedis(Jedis jedis) throws Exception
                {
-                  String userJson = om.writeValueAsString(user);
-                  jedis.setex(key(sessionKey), redisTtl, userJson);
+                  jedis.setex(key(sessionKey).getBytes("UTF-8"), redisTtl, encode(user));
                   return null;
                }
             });
+
+         AuthSessionCache near = getNearCache();
+         if (near != null)
+            near.put(sessionKey, user);
       }
    }
 
    @Override
    public void remove(String sessionKey)
    {
+      AuthSessionCache near = getNearCache();
+      if (near != null)
+         near.remove(sessionKey);
+
       execute(new JedisCallback()
          {
             public Object doWithJedis(Jedis jedis) throws Exception
             {
-               jedis.del(key(sessionKey));
+               Pipeline pipe = jedis.pipelined();
+               pipe.del(key(sessionKey));
+               pipe.publish(keyPrefix + "invalidate", sessionKey);
+               pipe.sync();
                return null;
             }
          });
    }
 
+   protected byte[] encode(User user) throws Exception
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeByte(ENCODING_VERSION);
+      out.writeInt(user.getId());
+      writeStr(out, user.getUsername());
+      writeStr(out, user.getPassword());
+      writeStr(out, user.getDisplayName());
+      writeStr(out, user.getAccessKey());
+      writeStr(out, user.getSecretKey());
+      out.writeInt(user.getTenantId());
+      writeStr(out, user.getTenantCode());
+      out.writeLong(user.getRequestAt());
+      writeStr(out, user.getRemoteAddr());
+      out.writeInt(user.getFailedNum());
+      writeStrs(out, user.getPermissions());
+      writeStrs(out, user.getRoles());
+
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   protected User decode(byte[] bytes) throws Exception
+   {
+      if (bytes.length > 0 && bytes[0] == '{')
+         return om.readValue(bytes, User.class);
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readByte() != ENCODING_VERSION)
+         return null;
+
+      User user = new User();
+      user.withId(in.readInt());
+      user.withUsername(readStr(in));
+      user.withPassword(readStr(in));
+      user.withDisplayName(readStr(in));
+      user.withAccessKey(readStr(in));
+      user.withSecretKey(readStr(in));
+      user.withTenantId(in.readInt());
+      user.withTenantCode(readStr(in));
+      user.withRequestAt(in.readLong());
+      user.withRemoteAddr(readStr(in));
+      user.withFailedNum(in.readInt());
+      user.withPermissions(readStrs(in));
+      user.withRoles(readStrs(in));
+      return user;
+   }
+
+   void writeStr(DataOutputStream out, String str) throws Exception
+   {
+      out.writeBoolean(str != null);
+      if (str != null)
+         out.writeUTF(str);
+   }
+
+   String readStr(DataInputStream in) throws Exception
+   {
+      return in.readBoolean() ? in.readUTF() : null;
+   }
+
+   void writeStrs(DataOutputStream out, Collection<String> strs) throws Exception
+   {
+      out.writeInt(strs.size());
+      for (String str : strs)
+         out.writeUTF(str);
+   }
+
+   String[] readStrs(DataInputStream in) throws Exception
+   {
+      String[] strs = new String[in.readInt()];
+      for (int i = 0; i < strs.length; i++)
+         strs[i] = in.readUTF();
+      return strs;
+   }
+
+   AuthSessionCache getNearCache()
+   {
+      if (nearCacheExp <= 0)
+         return null;
+
+      if (nearCache == null)
+      {
+         synchronized (this)
+         {
+            if (nearCache == null)
+               nearCache = new ShardedAuthSessionCache(nearCacheMax, nearCacheExp);
+         }
+      }
+      return nearCache;
+   }
+
+   /**
+    * Listens for sessions removed by any instance and drops them from the near cache.
+    * If the subscription is lost the near cache is cleared as invalidations may have been missed.
+    */
+   void startSubscriber()
+   {
+      subscriber = new Thread(new Runnable()
+         {
+            public void run()
+            {
+               while (true)
+               {
+                  Jedis jedis = null;
+                  try
+                  {
+                     jedis = jedisPool.getResource();
+                     jedis.subscribe(new JedisPubSub()
+                        {
+                           @Override
+                           public void onMessage(String channel, String sessionKey)
+                           {
+                              AuthSessionCache near = nearCache;
+                              if (near != null)
+                                 near.remove(sessionKey);
+                           }
+                        }, keyPrefix + "invalidate");
+                  }
+                  catch (Exception ex)
+                  {
+                     log.warn("Lost the Redis session invalidation subscription", ex);
+                  }
+                  finally
+                  {
+                     if (jedis != null)
+                        jedis.close();
+                  }
+
+                  synchronized (RedisAuthSessionCache.this)
+                  {
+                     nearCache = null;
+                  }
+
+                  try
+                  {
+                     Thread.sleep(1000);
+                  }
+                  catch (InterruptedException ex)
+                  {
+                     return;
+                  }
+               }
+            }
+         }, "RedisAuthSessionCache-invalidate");
+      subscriber.setDaemon(true);
+      subscriber.start();
+   }
+
    String key(String sessionKey)
    {
       return keyPrefix + sessionKey;
@@ -150,6 +343,9 @@ public class RedisAuthSessionCache implements AuthSessionCache
       {
          synchronized (this)
          {
+            if (jedisPool != null)
+               return jedisPool.getResource();
+
             JedisPoolConfig poolConfig = new JedisPoolConfig();
             poolConfig.setMaxTotal(this.redisPoolMax);
             poolConfig.setMaxIdle(this.redisPoolMax);
@@ -163,6 +359,9 @@ public class RedisAuthSessionCache implements AuthSessionCache
             poolConfig.setBlockWhenExhausted(this.redisBlockWhenExhausted);
 
             jedisPool = new JedisPool(poolConfig, this.redisHost, this.redisPort, this.redisReadSocketTimeout);
+
+            if (nearCacheExp > 0)
+               startSubscriber();
          }
       }
 
@@ -312,6 +511,28 @@ public class RedisAuthSessionCache implements AuthSessionCache
       return this;
    }
 
+   public void setNearCacheMax(int nearCacheMax)
+   {
+      this.nearCacheMax = nearCacheMax;
+   }
+
+   public RedisAuthSessionCache withNearCacheMax(int nearCacheMax)
+   {
+      setNearCacheMax(nearCacheMax);
+      return this;
+   }
+
+   public void setNearCacheExp(int nearCacheExp)
+   {
+      this.nearCacheExp = nearCacheExp;
+   }
+
+   public RedisAuthSessionCache withNearCacheExp(int nearCacheExp)
+   {
+      setNearCacheExp(nearCacheExp);
+      return this;
+   }
+
    public void setKeyPrefix(String keyPrefix)
    {
       this.keyPrefix = keyPrefix;
@@ -61,7 +61,7 @@ public class RedisDb extends Db<RedisDb>
       return null;
    }
 
-   protected Jedis getRedisClient()
+   public Jedis getRedisClient()
    {
       if (jedis == null)
       {
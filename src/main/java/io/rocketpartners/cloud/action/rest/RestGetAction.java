@@ -1,11 +1,14 @@
 package io.rocketpartners.cloud.action.rest;
 
+import java.io.Closeable;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -16,6 +19,8 @@ import org.apache.commons.collections4.keyvalue.DefaultKeyValue;
 import org.apache.commons.collections4.map.MultiKeyMap;
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 
+import io.rocketpartners.cloud.action.security.AclAction;
+import io.rocketpartners.cloud.action.sql.SqlDb;
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
 import io.rocketpartners.cloud.model.ApiException;
@@ -47,12 +52,19 @@ import io.rocketpartners.cloud.utils.Utils;
 public class RestGetAction extends Action<RestGetAction>
 {
 
-   protected int maxRows        = 100;
+   protected int     maxRows         = 100;
+
+   /**
+    * When true, relationships are expanded by selecting straight from the related
+    * Collection's Db instead of running a nested GET through the Engine, as long as
+    * the nested GET would have been handled by the same Endpoint and Actions.
+    */
+   protected boolean expandInProcess = true;
 
    /**
     * These params are specifically NOT passed to the Query for parsing.  These are either dirty worlds like sql injection tokens or the are used by actions themselves 
     */
-   protected Set reservedParams = new HashSet(Arrays.asList("select", "insert", "update", "delete", "drop", "union", "truncate", "exec", "explain", /*"includes",*/ "excludes", "expands"));
+   protected Set     reservedParams  = new HashSet(Arrays.asList("select", "insert", "update", "delete", "drop", "union", "truncate", "exec", "explain", /*"includes",*/ "excludes", "expands"));
 
    public RestGetAction()
    {
@@ -168,9 +180,31 @@ public class RestGetAction extends Action<RestGetAction>
          req.getUrl().withParams(term.toString(), null);
       }
 
-      Results<JSNode> results = select(req, req.getCollection(), req.getParams(), api);
+      //-- large collection queries can be streamed from the db straight to the
+      //-- response when nothing needs the whole result set in memory
+      boolean streamRows = Chain.getDepth() == 1 //
+            && req.getCollection() != null //
+            && req.getEntityKey() == null //
+            && chain.mergeEndpointActionParamsConfig("expands").isEmpty();
+
+      if (streamRows)
+         chain.put("streamRows", true);
+
+      Results<JSNode> results = null;
+      try
+      {
+         results = select(req, req.getCollection(), req.getParams(), api);
+      }
+      finally
+      {
+         chain.remove("streamRows");
+      }
 
-      if (results.size() == 0 && req.getEntityKey() != null && req.getCollectionKey() != null)
+      if (results.isCursor())
+      {
+         writeCursor(req, res, results);
+      }
+      else if (results.size() == 0 && req.getEntityKey() != null && req.getCollectionKey() != null)
       {
          res.withStatus(SC.SC_404_NOT_FOUND);
       }
@@ -197,53 +231,147 @@ public class RestGetAction extends Action<RestGetAction>
          if (foundRows >= 0)
          {
             //  Chain.peek().put("foundRows", foundRows);
-            res.withFoundRows(foundRows);
+            res.withFoundRows(foundRows, results.getCountPolicy());
          }
 
-         if (results.size() > 0)
+         if (results.size() > 0 && req.getCollection() != null && req.getEntityKey() == null)
          {
-            if (req.getCollection() != null && req.getEntityKey() == null)
+            String next = buildNext(req, results.getNext(), page, results.size(), foundRows);
+            if (next != null)
+               res.withNext(next);
+         }
+      }
+
+   }
+
+   /**
+    * Builds the url of the next page from the continuation terms if there 
+    * are any, otherwise from the pageNum when the page was full and there
+    * may be more rows.  Returns null if this is the last page.
+    */
+   protected String buildNext(Request req, List<Term> nextTerms, Page page, int size, int foundRows) throws Exception
+   {
+      if (nextTerms != null && !nextTerms.isEmpty())
+      {
+         //-- continuation terms replace offset based paging
+         String next = req.getUrl().getOriginal();
+         next = stripTerms(next, "offset", "page", "pageNum");
+
+         for (Term nextTerm : nextTerms)
+         {
+            String toStrip = nextTerm.getToken();
+            next = stripTerms(next, toStrip);
+
+            if (next.indexOf("?") < 0)
+               next += "?";
+            if (!next.endsWith("?"))
+               next += "&";
+
+            //-- continuation values can hold spaces, quotes, commas etc.
+            next += URLEncoder.encode(nextTerm.toString(), "UTF-8");
+         }
+         return next;
+      }
+      else if (size == page.getLimit() && (foundRows < 0 || (page.getOffset() + page.getLimit()) < foundRows))
+      {
+         String next = req.getUrl().getOriginal();
+
+         next = stripTerms(next, "offset", "page", "pageNum");
+
+         if (next.indexOf("?") < 0)
+            next += "?";
+         if (!next.endsWith("?"))
+            next += "&";
+
+         next += "pageNum=" + (page.getPageNum() + 1);
+
+         return next;
+      }
+      return null;
+   }
+
+   /**
+    * Sets up the response for Results backed by a cursor.  The number of rows
+    * and any 'after' continuation are not known until the cursor has been 
+    * written so the next link is set once the last record has been read.
+    * The response writes the data array before the meta section for cursors.
+    */
+   protected void writeCursor(final Request req, final Response res, final Results<JSNode> results)
+   {
+      final Page page = results.getQuery().page();
+      res.withPageSize(page.getPageSize());
+      res.withPageNum(page.getPageNum());
+
+      final int foundRows = results.getFoundRows();
+      if (foundRows >= 0)
+         res.withFoundRows(foundRows, results.getCountPolicy());
+
+      final Iterator<JSNode> cursor = results.iterator();
+      res.withCursor(new CloseableIterator<JSNode>()
+         {
+            int     count = 0;
+            boolean done  = false;
+
+            @Override
+            public boolean hasNext()
             {
-               List<Term> nextTerms = results.getNext();
-               if (nextTerms != null && !nextTerms.isEmpty())
+               boolean hasNext = cursor.hasNext();
+               if (!hasNext && !done)
                {
-                  String next = req.getUrl().getOriginal();
-                  for (Term nextTerm : nextTerms)
+                  done = true;
+                  try
                   {
-                     String toStrip = nextTerm.getToken();
-                     next = stripTerms(next, toStrip);
-
-                     if (next.indexOf("?") < 0)
-                        next += "?";
-                     if (!next.endsWith("?"))
-                        next += "&";
+                     List<Term> nextTerms = results.getNext();
+                     for (Term term : nextTerms)
+                        mapToAttributes(req.getCollection(), term);
 
-                     next += nextTerm;
+                     String next = buildNext(req, nextTerms, page, count, foundRows);
+                     if (next != null)
+                        res.withNext(next);
+                  }
+                  catch (Exception ex)
+                  {
+                     Utils.rethrow(ex);
                   }
-                  res.withNext(next);
                }
-               else if (results.size() == limit && (foundRows < 0 || (offest + limit) < foundRows))
-               {
-                  String next = req.getUrl().getOriginal();
-
-                  next = stripTerms(next, "offset", "page", "pageNum");
-
-                  if (next.indexOf("?") < 0)
-                     next += "?";
-                  if (!next.endsWith("?"))
-                     next += "&";
+               return hasNext;
+            }
 
-                  next += "pageNum=" + (page.getPageNum() + 1);
+            @Override
+            public JSNode next()
+            {
+               JSNode node = cursor.next();
+               count += 1;
+               return node;
+            }
 
-                  res.withNext(next);
-               }
+            @Override
+            public void close()
+            {
+               Utils.close(cursor);
             }
-         }
-      }
+         });
+   }
 
+   /**
+    * An Iterator that releases its resources when closed.
+    */
+   interface CloseableIterator<T> extends Iterator<T>, Closeable
+   {
+      @Override
+      void close();
    }
 
    protected Results<JSNode> select(Request req, Collection collection, Map<String, String> params, Api api) throws Exception
+   {
+      return select(req, collection, params, api, true);
+   }
+
+   /**
+    * @param expand false when selecting related entities for an expansion that 
+    *        is already in progress, the caller expands the whole document
+    */
+   protected Results<JSNode> select(Request req, Collection collection, Map<String, String> params, Api api, boolean expand) throws Exception
    {
       //------------------------------------------------
       // Normalize all of the params and convert attribute
@@ -344,87 +472,21 @@ public class RestGetAction extends Action<RestGetAction>
          results = collection.getDb().select(collection.getTable(), terms);
       }
 
-      if (results.size() > 0)
+      if (results.isCursor())
+      {
+         //-- the rows are converted one at a time as the response is written
+         results.withCursor(new NodeCursor(req, collection, results.iterator()));
+      }
+      else if (results.size() > 0)
       {
-
          for (int i = 0; i < results.size(); i++)
          {
             //convert the map into a JSMap
             Map<String, Object> row = results.getRow(i);
-
-            if (collection == null)
-            {
-               JSNode node = new JSNode(row);
-               results.setRow(i, node);
-            }
-            else
-            {
-               JSNode node = new JSNode();
-               results.setRow(i, node);
-
-               String entityKey = req.getCollection().getTable().encodeKey(row);
-
-               if (Utils.empty(entityKey))
-                  throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine entity key for " + row);
-
-               //------------------------------------------------
-               //copy over defined attributes first, if the select returned 
-               //extra columns they will be copied over last
-               for (Attribute attr : collection.getEntity().getAttributes())
-               {
-                  String attrName = attr.getName();
-                  String colName = attr.getColumn().getName();
-                  Object val = row.remove(colName);
-                  node.put(attrName, val);
-               }
-
-               //------------------------------------------------
-               //next turn all relationships into links that will 
-               //retrieve the related entities
-               for (Relationship rel : collection.getEntity().getRelationships())
-               {
-                  String link = null;
-                  if (rel.isOneToMany())
-                  {
-                     //Object fkval = node.remove(rel.getFk1Col1().getName());
-                     Object fkval = node.get(rel.getFk1Col1().getName());
-                     if (fkval != null)
-                     {
-                        link = Chain.buildLink(rel.getRelated().getCollection(), fkval.toString(), null);
-                     }
-                  }
-                  else
-                  {
-                     link = Chain.buildLink(req.getCollection(), entityKey, rel.getName());
-                  }
-                  node.put(rel.getName(), link);
-               }
-
-               //------------------------------------------------
-               // next, if the db returned extra columns that 
-               // are not mapped to attributes, just straight copy them
-               for (String key : row.keySet())
-               {
-                  if (!key.equalsIgnoreCase("href") && !node.containsKey(key))
-                  {
-                     Object value = row.get(key);
-                     node.put(key, value);
-                  }
-               }
-
-               //------------------------------------------------
-               // finally make sure the entity key is encoded as
-               // the href
-               String href = node.getString("href");
-               if (Utils.empty(href))
-               {
-                  href = Chain.buildLink(collection, entityKey, null);
-                  node.put("href", href);
-               }
-            }
-
+            results.setRow(i, toNode(req, collection, row));
          }
-         if (collection != null)
+
+         if (expand && collection != null)
             expand(req, collection, results.getRows(), null, null, null);
          exclude(results.getRows());
 
@@ -441,6 +503,132 @@ public class RestGetAction extends Action<RestGetAction>
       return results;
    }
 
+   protected JSNode toNode(Request req, Collection collection, Map<String, Object> row) throws Exception
+   {
+      if (collection == null)
+         return new JSNode(row);
+
+      JSNode node = new JSNode();
+
+      String entityKey = req.getCollection().getTable().encodeKey(row);
+
+      if (Utils.empty(entityKey))
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine entity key for " + row);
+
+      //------------------------------------------------
+      //copy over defined attributes first, if the select returned 
+      //extra columns they will be copied over last
+      for (Attribute attr : collection.getEntity().getAttributes())
+      {
+         String attrName = attr.getName();
+         String colName = attr.getColumn().getName();
+         Object val = row.remove(colName);
+         node.put(attrName, val);
+      }
+
+      //------------------------------------------------
+      //next turn all relationships into links that will 
+      //retrieve the related entities
+      for (Relationship rel : collection.getEntity().getRelationships())
+      {
+         String link = null;
+         if (rel.isOneToMany())
+         {
+            //Object fkval = node.remove(rel.getFk1Col1().getName());
+            Object fkval = node.get(rel.getFk1Col1().getName());
+            if (fkval != null)
+            {
+               link = Chain.buildLink(rel.getRelated().getCollection(), fkval.toString(), null);
+            }
+         }
+         else
+         {
+            link = Chain.buildLink(req.getCollection(), entityKey, rel.getName());
+         }
+         node.put(rel.getName(), link);
+      }
+
+      //------------------------------------------------
+      // next, if the db returned extra columns that 
+      // are not mapped to attributes, just straight copy them
+      for (String key : row.keySet())
+      {
+         if (!key.equalsIgnoreCase("href") && !node.containsKey(key))
+         {
+            Object value = row.get(key);
+            node.put(key, value);
+         }
+      }
+
+      //------------------------------------------------
+      // finally make sure the entity key is encoded as
+      // the href
+      String href = node.getString("href");
+      if (Utils.empty(href))
+      {
+         href = Chain.buildLink(collection, entityKey, null);
+         node.put("href", href);
+      }
+
+      return node;
+   }
+
+   /**
+    * Lazily converts the rows of a cursor backed select into 
+    * JSNodes as they are written to the response.
+    */
+   class NodeCursor implements Iterator<JSNode>, Closeable
+   {
+      Request       req        = null;
+      Collection    collection = null;
+      Iterator<Map> rows       = null;
+      Set           includes   = null;
+      Set           excludes   = null;
+
+      NodeCursor(Request req, Collection collection, Iterator<Map> rows)
+      {
+         this.req = req;
+         this.collection = collection;
+         this.rows = rows;
+
+         includes = Chain.peek().mergeEndpointActionParamsConfig("includes");
+         excludes = Chain.peek().mergeEndpointActionParamsConfig("excludes");
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         return rows.hasNext();
+      }
+
+      @Override
+      public JSNode next()
+      {
+         try
+         {
+            JSNode node = toNode(req, collection, rows.next());
+            if (includes.size() > 0 || excludes.size() > 0)
+               exclude(node, includes, excludes, null);
+
+            return node;
+         }
+         catch (ApiException ex)
+         {
+            throw ex;
+         }
+         catch (Exception ex)
+         {
+            throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, ex.getMessage(), ex);
+         }
+      }
+
+      @Override
+      public void close()
+      {
+         Utils.close(rows);
+      }
+   }
+
    public void exclude(List<JSNode> nodes)
    {
       Set includes = Chain.peek().mergeEndpointActionParamsConfig("includes");
@@ -719,6 +907,7 @@ public class RestGetAction extends Action<RestGetAction>
       //-- Nested param support
       //TODO: don't remember the use case here.  need to find and make a test case
       Map<String, String> params = Chain.peek().getRequest().getParams();
+      Map<String, String> nestedParams = new LinkedHashMap();
       String lcPath = expandsPath.toLowerCase();
       for (String key : params.keySet())
       {
@@ -731,6 +920,7 @@ public class RestGetAction extends Action<RestGetAction>
          {
             String value = params.get(key);
             lcKey = key.replaceAll("\\b" + (lcPath + "\\."), "");
+            nestedParams.put(lcKey, value);
 
             if (url.indexOf("?") < 0)
                url += "?";
@@ -740,38 +930,135 @@ public class RestGetAction extends Action<RestGetAction>
          }
       }
 
-      Response res = Chain.peek().getEngine().get(url);
-      int sc = res.getStatusCode();
-      if (sc == 401 || sc == 403)//unauthorized || forbidden
-         return null;
+      List<JSNode> nodes = null;
 
-      if (sc == 404)
+      Request related = getExpandRequest(collection, nestedParams);
+      if (related != null)
       {
-         return Collections.EMPTY_LIST;
+         nodes = selectRelated(related, collection, new ArrayList(entityKeys), nestedParams);
       }
-      else if (sc == 500)
+      else
       {
-         if (res.getError() != null)
-            throw res.getError();
-         else
-            throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, res.getText());
+         Response res = Chain.peek().getEngine().get(url);
+         int sc = res.getStatusCode();
+         if (sc == 401 || sc == 403)//unauthorized || forbidden
+            return null;
+
+         if (sc == 404)
+         {
+            return Collections.EMPTY_LIST;
+         }
+         else if (sc == 500)
+         {
+            if (res.getError() != null)
+               throw res.getError();
+            else
+               throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, res.getText());
+         }
+         else if (sc != 200)
+         {
+            throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unknow repose code \"" + sc + "\" or body type from nested query.");
+         }
+
+         nodes = (List<JSNode>) res.data().asList();
       }
-      else if (sc == 200)
+
+      for (JSNode node : nodes)
       {
-         List<JSNode> nodes = (List<JSNode>) res.data().asList();
+         Object entityKey = getEntityKey((JSNode) node);
+         if (pkCache.containsKey(collection, entityKey))
+            throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "FIX ME IF FOUND.  Algorithm Implementation Error");
 
-         for (JSNode node : nodes)
+         pkCache.put(collection, entityKey, node);
+      }
+      return nodes;
+   }
+
+   /**
+    * Routes a GET for <code>collection</code> the same way the Engine would and 
+    * returns the Request only if it would be handled by the same Endpoint and 
+    * Actions as the current request, those Actions are only this RestGetAction 
+    * (or a RestAction delegating to it) and AclActions, and the AclActions would
+    * allow it without requires or restricts.  Any other Action could change the
+    * result of a real request so otherwise this returns null and the expansion 
+    * has to go through the Engine.
+    */
+   protected Request getExpandRequest(Collection collection, Map<String, String> nestedParams) throws Exception
+   {
+      if (!expandInProcess)
+         return null;
+
+      Request req = Chain.peek().getRequest();
+      Engine engine = Chain.peek().getEngine();
+
+      Request related = new Request(engine, "GET", Chain.buildLink(collection, null, null), null);
+      related.withApi(req.getApi());
+      related.withApiPath(req.getApiPath());
+      related.withTenantCode(req.getTenantCode());
+      related.withUser(req.getUser());
+
+      related.getUrl().withParams(nestedParams);
+
+      //-- the link must be under the current api url for the routing below to be valid
+      if (req.getApiPath() != null && !req.getApiPath().startsWith(related.getUrl().getPath()))
+         return null;
+
+      engine.matchEndpoint(related, req.getApi(), related.getPath().parts());
+      if (related.getEndpoint() != req.getEndpoint() || related.getCollection() != collection || related.getEntityKey() != null)
+         return null;
+
+      List<Action> actions = engine.findActions(related);
+      if (!actions.equals(engine.findActions(req)))
+         return null;
+
+      for (Action action : actions)
+      {
+         if (action == this || (action.getClass() == RestAction.class && ((RestAction) action).getGet() == this))
+            continue;
+
+         if (action.getClass() != AclAction.class || !((AclAction) action).allows("GET", related.getPath(), related.getUser()))
+            return null;
+      }
+
+      return related;
+   }
+
+   /**
+    * Selects the entities for <code>entityKeys</code> straight from the Db with one 
+    * query per <code>relatedMax</code> keys.  A child Chain for <code>related</code>
+    * is pushed so links and config resolve exactly as they would for a nested GET.
+    */
+   protected List<JSNode> selectRelated(Request related, Collection collection, List entityKeys, Map<String, String> nestedParams) throws Exception
+   {
+      int batchSize = Page.DEFAULT_LIMIT;
+      if (collection.getDb() instanceof SqlDb && ((SqlDb) collection.getDb()).getRelatedMax() > 0)
+         batchSize = ((SqlDb) collection.getDb()).getRelatedMax();
+
+      String pkName = collection.getTable().getPrimaryIndex().getName();
+
+      List<JSNode> nodes = new ArrayList();
+
+      Chain.push(Chain.peek().getEngine(), related, new Response());
+      try
+      {
+         for (int i = 0; i < entityKeys.size(); i += batchSize)
          {
-            Object entityKey = getEntityKey((JSNode) node);
-            if (pkCache.containsKey(collection, entityKey))
-               throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "FIX ME IF FOUND.  Algorithm Implementation Error");
+            List batch = entityKeys.subList(i, Math.min(i + batchSize, entityKeys.size()));
 
-            pkCache.put(collection, entityKey, node);
+            Map<String, String> params = new LinkedHashMap();
+            params.put(Term.term(null, "_key", pkName, batch.toArray()).toString(), null);
+            params.put("limit", batch.size() + "");
+            params.putAll(nestedParams);
+
+            nodes.addAll(select(related, collection, params, related.getApi(), false).getRows());
          }
-         return nodes;
+      }
+      finally
+      {
+         Chain.pop();
       }
 
-      throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unknow repose code \"" + sc + "\" or body type from nested query.");
+      return nodes;
    }
 
    public int getMaxRows()
@@ -15,26 +15,42 @@
  */
 package io.rocketpartners.cloud.action.s3;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
@@ -69,18 +85,33 @@ import io.rocketpartners.cloud.service.Engine;
  * and are uploading everyting to your own AWS account, you should 
  * consider using IAM roles to authenticate.  Than way you don't need
  * to config the credentials at all.
+ * 
+ * Uploads are streamed to S3 in <code>partSize</code> chunks.  Files that
+ * fit in a single part are sent with one putObject, larger files are sent
+ * as a multipart upload with up to <code>partThreads</code> parts in flight 
+ * at once.  Heap use per upload is bounded by partSize * (partThreads + 1)
+ * regardless of the file size.  If any part fails the multipart upload is 
+ * aborted so no orphaned parts are left in the bucket.
  *
  */
 public class S3UploadAction extends Action<S3UploadAction>
 {
+   static final int          MIN_PART_SIZE = 5 * 1024 * 1024;
+   static final int          MAX_PARTS     = 10000;
+
+   protected String          s3AccessKey   = null;
+   protected String          s3SecretKey   = null;
+   protected String          s3AwsRegion   = null;
+
+   protected String          s3Bucket      = null;
+   protected String          s3BasePath    = "uploads";
+   protected String          s3DatePath    = "yyyy/MM/dd";
 
-   protected String s3AccessKey = null;
-   protected String s3SecretKey = null;
-   protected String s3AwsRegion = null;
+   protected int             partSize      = 8 * 1024 * 1024;
+   protected int             partThreads   = 4;
+   protected int             threadMax     = 16;
 
-   protected String s3Bucket    = null;
-   protected String s3BasePath  = "uploads";
-   protected String s3DatePath  = "yyyy/MM/dd";
+   transient ExecutorService executor      = null;
 
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
@@ -159,7 +190,7 @@ public class S3UploadAction extends Action<S3UploadAction>
       String bucket = chain.getConfig("s3Bucket", this.s3Bucket);
       String pathAndFileName = buildFullPath(chain, requestPath, fileName);
 
-      s3.putObject(new PutObjectRequest(bucket, pathAndFileName, inputStream, new ObjectMetadata()));
+      upload(chain, s3, bucket, pathAndFileName, inputStream);
 
       Map<String, Object> resp = new HashMap<>();
       resp.put("url", "http://" + bucket + ".s3.amazonaws.com/" + pathAndFileName);
@@ -169,6 +200,161 @@ public class S3UploadAction extends Action<S3UploadAction>
       return resp;
    }
 
+   /**
+    * Streams <code>in</code> to <code>bucket/key</code>, using a single put 
+    * when the content fits in one part and a parallel multipart upload otherwise.
+    */
+   void upload(Chain chain, final AmazonS3 s3, final String bucket, final String key, InputStream in) throws Exception
+   {
+      int partSize = Math.max(MIN_PART_SIZE, chain.getConfig("partSize", this.partSize));
+      int partThreads = Math.max(1, chain.getConfig("partThreads", this.partThreads));
+
+      byte[] buffer = new byte[partSize];
+      int len = read(in, buffer);
+      if (len < partSize)
+      {
+         //-- the whole file fits in one part
+         ObjectMetadata meta = new ObjectMetadata();
+         meta.setContentLength(len);
+         s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, len), meta));
+         return;
+      }
+
+      final String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+
+      ArrayDeque<byte[]> free = new ArrayDeque();
+      ArrayDeque<Part> inFlight = new ArrayDeque();
+      List<PartETag> etags = new ArrayList();
+      try
+      {
+         int partNumber = 1;
+         while (len > 0)
+         {
+            if (partNumber > MAX_PARTS)
+               throw new ApiException(SC.SC_400_BAD_REQUEST, "Upload exceeds the maximum size of " + ((long) partSize * MAX_PARTS) + " bytes");
+
+            inFlight.add(new Part(buffer, getExecutor().submit(newPartUpload(s3, bucket, key, uploadId, partNumber, buffer, len))));
+            partNumber += 1;
+
+            //-- bound memory by waiting for the oldest part before
+            //-- reading another when partThreads are already in flight
+            if (inFlight.size() >= partThreads)
+               free.add(finish(inFlight.poll(), etags));
+
+            buffer = free.isEmpty() ? new byte[partSize] : free.poll();
+            len = read(in, buffer);
+         }
+
+         while (!inFlight.isEmpty())
+            finish(inFlight.poll(), etags);
+
+         s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+      }
+      catch (Exception ex)
+      {
+         for (Part part : inFlight)
+            part.future.cancel(true);
+
+         try
+         {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+         }
+         catch (Exception abortEx)
+         {
+            ex.addSuppressed(abortEx);
+         }
+         throw ex;
+      }
+   }
+
+   Callable<PartETag> newPartUpload(final AmazonS3 s3, final String bucket, final String key, final String uploadId, final int partNumber, final byte[] buffer, final int len)
+   {
+      return new Callable<PartETag>()
+         {
+            @Override
+            public PartETag call() throws Exception
+            {
+               UploadPartRequest req = new UploadPartRequest()//
+                                                               .withBucketName(bucket)//
+                                                               .withKey(key)//
+                                                               .withUploadId(uploadId)//
+                                                               .withPartNumber(partNumber)//
+                                                               .withInputStream(new ByteArrayInputStream(buffer, 0, len))//
+                                                               .withPartSize(len);
+               return s3.uploadPart(req).getPartETag();
+            }
+         };
+   }
+
+   /**
+    * Waits for <code>part</code> and returns its buffer for reuse.
+    */
+   byte[] finish(Part part, List<PartETag> etags) throws Exception
+   {
+      try
+      {
+         etags.add(part.future.get());
+         return part.buffer;
+      }
+      catch (ExecutionException ex)
+      {
+         Throwable cause = ex.getCause();
+         if (cause instanceof Exception)
+            throw (Exception) cause;
+         throw ex;
+      }
+   }
+
+   /**
+    * Fills <code>buffer</code> from <code>in</code> until it is full or the stream ends. 
+    * 
+    * @return the number of bytes read
+    */
+   static int read(InputStream in, byte[] buffer) throws IOException
+   {
+      int len = 0;
+      while (len < buffer.length)
+      {
+         int read = in.read(buffer, len, buffer.length - len);
+         if (read < 0)
+            break;
+         len += read;
+      }
+      return len;
+   }
+
+   synchronized ExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         executor = Executors.newFixedThreadPool(Math.max(1, threadMax), new ThreadFactory()
+            {
+               AtomicInteger count = new AtomicInteger(0);
+
+               @Override
+               public Thread newThread(Runnable r)
+               {
+                  Thread t = new Thread(r, "S3UploadAction-" + count.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      }
+      return executor;
+   }
+
+   static class Part
+   {
+      byte[]           buffer = null;
+      Future<PartETag> future = null;
+
+      Part(byte[] buffer, Future<PartETag> future)
+      {
+         this.buffer = buffer;
+         this.future = future;
+      }
+   }
+
    private String buildFullPath(Chain chain, String requestPath, String name)
    {
       StringBuilder sb = new StringBuilder();
@@ -243,4 +429,22 @@ public class S3UploadAction extends Action<S3UploadAction>
 
       return output;
    }
-}
\ No newline at end of file
+
+   public S3UploadAction withPartSize(int partSize)
+   {
+      this.partSize = partSize;
+      return this;
+   }
+
+   public S3UploadAction withPartThreads(int partThreads)
+   {
+      this.partThreads = partThreads;
+      return this;
+   }
+
+   public S3UploadAction withThreadMax(int threadMax)
+   {
+      this.threadMax = threadMax;
+      return this;
+   }
+}
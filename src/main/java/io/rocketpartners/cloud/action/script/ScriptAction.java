@@ -16,9 +16,12 @@
 package io.rocketpartners.cloud.action.script;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.JarURLConnection;
 import java.net.URI;
 import java.net.URL;
@@ -35,6 +38,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.velocity.Template;
@@ -44,6 +48,7 @@ import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.app.event.implement.IncludeRelativePath;
 import org.apache.velocity.runtime.RuntimeConstants;
 import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Source;
 import org.graalvm.polyglot.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,14 +84,19 @@ public class ScriptAction extends Action<ScriptAction>
    String                           scriptsCollection  = "scripts";
 
    long                             cacheExpireSeconds = 60 * 30;
-   Map<String, JSNode>            CACHE;
+   int                              cacheMax           = 500;
+   long                             cacheCheckMillis   = 2000;     // how often a cached script's files are checked for changes
+   Map<String, CachedScript>        CACHE;
+
+   org.graalvm.polyglot.Engine      jsEngine           = null;
+   Map<String, Source>              sources            = new ConcurrentHashMap();
 
    boolean                          inited             = false;
 
    String                           scriptsDir         = "/WEB-INF/scripts";
    Map                              scriptTypes        = new LinkedHashMap();
 
-   VelocityEngine                   velocity           = null;
+   Map<String, VelocityEngine>      velocities         = new ConcurrentHashMap();
 
    List<String>                     reservedNames      = new ArrayList(Arrays.asList("switch", "layout", "settings"));
 
@@ -103,20 +113,9 @@ public class ScriptAction extends Action<ScriptAction>
          inited = true;
          if (cacheExpireSeconds > 0)
          {
-            CACHE = ExpiringMap.builder().maxSize(500).expiration(cacheExpireSeconds, TimeUnit.SECONDS).build();
+            CACHE = ExpiringMap.builder().maxSize(cacheMax).expiration(cacheExpireSeconds, TimeUnit.SECONDS).build();
          }
 
-         //---------------------------------------------------------
-         //-- Initialize Velocity Engine Support
-         VelocityResourceLoader vrl = new VelocityResourceLoader();
-
-         velocity = new VelocityEngine();
-
-         velocity.setProperty(RuntimeConstants.RESOURCE_LOADER, "inversion");
-         velocity.setProperty("inversion.resource.loader.class", VelocityResourceLoader.class.getName());
-         velocity.setProperty("userdirective", SwitchDirective.class.getName() + ", " + SaveDirective.class.getName() + ", " + LayoutDirective.class.getName());
-         velocity.init();
-
          //---------------------------------------------------------
          //-- Initialize JS Support through GraalVM
 
@@ -152,24 +151,121 @@ public class ScriptAction extends Action<ScriptAction>
          {
             log.error("Error initializing the javascript language file system", e);
          }
+
+         //-- contexts share one engine so parsed and compiled scripts are reused across requests
+         try
+         {
+            jsEngine = org.graalvm.polyglot.Engine.create();
+         }
+         catch (Throwable e)
+         {
+            log.error("Error initializing the javascript engine", e);
+         }
+      }
+   }
+
+   /**
+    * Velocity caches parsed templates by name so there is one engine per 
+    * script source, see {@link #getScriptSource(Chain)}.  Cached templates
+    * are checked for changes through VelocityResourceLoader.
+    */
+   VelocityEngine getVelocity(Chain chain)
+   {
+      String scriptSource = getScriptSource(chain);
+      VelocityEngine velocity = velocities.get(scriptSource);
+      if (velocity == null)
+      {
+         synchronized (this)
+         {
+            velocity = velocities.get(scriptSource);
+            if (velocity == null)
+            {
+               velocity = new VelocityEngine();
+
+               velocity.setProperty(RuntimeConstants.RESOURCE_LOADER, "inversion");
+               velocity.setProperty("inversion.resource.loader.class", VelocityResourceLoader.class.getName());
+               velocity.setProperty("inversion.resource.loader.cache", (cacheExpireSeconds > 0) + "");
+               velocity.setProperty("inversion.resource.loader.modificationCheckInterval", Math.max(1, cacheCheckMillis / 1000) + "");
+               velocity.setProperty("userdirective", SwitchDirective.class.getName() + ", " + SaveDirective.class.getName() + ", " + LayoutDirective.class.getName());
+               velocity.init();
+
+               //-- tenant codes come from the url so the engines are bounded like sources
+               if (velocities.size() >= cacheMax)
+                  velocities.clear();
+               velocities.put(scriptSource, velocity);
+            }
+         }
       }
+      return velocity;
+   }
+
+   /**
+    * @return where scripts for this chain are found, the same path can resolve 
+    *         to different scripts for different apis, tenants or script configs.
+    *         This is built from the api and not the request url so the Host 
+    *         header can't mint new cache keys.
+    */
+   static String getScriptSource(Chain chain)
+   {
+      String scriptsDir = chain.getConfig("scriptsDir", scriptLocal.get().scriptsDir);
+      String scriptsCollection = chain.getConfig("scriptsCollection", scriptLocal.get().scriptsCollection);
+
+      Request req = chain.getRequest();
+      Api api = req.getApi();
+      String tenantCode = api.isMultiTenant() ? req.getTenantCode() : null;
+      return api.getId() + "|" + api.getApiCode() + "|" + tenantCode + "|" + scriptsDir + "|" + scriptsCollection;
+   }
+
+   /**
+    * Each request gets a new context so globals, prototypes and let/const 
+    * declarations from one request can never be seen by another.  The contexts
+    * share one engine so the compiled code of a Source is still reused.
+    */
+   Context createContext()
+   {
+      return jsEngine != null ? Context.newBuilder("js").engine(jsEngine).build() : Context.create("js");
+   }
+
+   Source getSource(String path, String script) throws Exception
+   {
+      Source source = sources.get(script);
+      if (source == null)
+      {
+         source = Source.newBuilder("js", script, path).build();
+         if (sources.size() >= cacheMax)
+            sources.clear();
+         sources.put(script, source);
+      }
+      return source;
    }
 
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
    {
+      //-- findScript() can run a nested request through this action so the 
+      //-- caller's script state is put back when this one is done
+      ScriptAction prevScript = scriptLocal.get();
+      Chain prevChain = chainLocal.get();
+
       scriptLocal.set(this);
       chainLocal.set(chain);
-
-      if (!inited)
+      try
       {
-         init(engine);
-      }
+         if (!inited)
+         {
+            init(engine);
+         }
 
-      LinkedHashMap<String, JSNode> scripts = findScripts(engine, chain, req);
-      if (scripts.size() > 0)
+         LinkedHashMap<String, JSNode> scripts = findScripts(engine, chain, req);
+         if (scripts.size() > 0)
+         {
+            runScripts(engine, api, endpoint, chain, req, res, scripts);
+         }
+      }
+      finally
       {
-         runScripts(engine, api, endpoint, chain, req, res, scripts);
+         scriptLocal.set(prevScript);
+         chainLocal.set(prevChain);
       }
    }
 
@@ -180,12 +276,18 @@ public class ScriptAction extends Action<ScriptAction>
       try
       {
          String content = null;
+         String contentType = null;
+         List<String> paths = new ArrayList(scripts.keySet());
 
-         for (String path : scripts.keySet())
+         for (int i = 0; i < paths.size(); i++)
          {
+            String path = paths.get(i);
             JSNode script = scripts.get(path);
             String type = script.getString("type");
 
+            //-- a script can declare its content type, the last one declared wins
+            contentType = script.getString("contentType") != null ? script.getString("contentType") : contentType;
+
             List<String> parts = Utils.explode("/", path);
             String componentStr = parts.size() > 1 ? parts.get(parts.size() - 2) : parts.get(0);
             String actionStr = parts.size() > 1 ? parts.get(parts.size() - 1) : null;
@@ -199,7 +301,7 @@ public class ScriptAction extends Action<ScriptAction>
 
                if (context == null)
                {
-                  context = Context.create("js");
+                  context = createContext();
                   contexts.put("javascript", context);
 
                   Value bindings = context.getBindings("js");
@@ -218,7 +320,7 @@ public class ScriptAction extends Action<ScriptAction>
 
                context.getBindings("js").putMember("content", content);
 
-               context.eval("js", script.getString("script"));
+               context.eval(getSource(path, script.getString("script")));
 
                content = context.getBindings("js").getMember("content").asString();
             }
@@ -249,17 +351,49 @@ public class ScriptAction extends Action<ScriptAction>
 
                context.put("content", content);
 
-               Template template = velocity.getTemplate(path);
+               Template template = getVelocity(chain).getTemplate(path);
 
-               ByteArrayOutputStream baos = new ByteArrayOutputStream();
-               BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(baos));
+               if (i == paths.size() - 1 && contentType != null && Utils.empty(res.getText()) && (res.getJson() == null || res.getJson().getProperties().size() == 0))
+               {
+                  //-- the final layout of a script that declared its content type is merged
+                  //-- straight onto the container's OutputStream after the chain completes
+                  //-- so it can not change the status or headers.  Templates it includes
+                  //-- are loaded through findScript() which needs this request's state.
+                  final VelocityContext streamContext = context;
+                  final ScriptAction streamScript = this;
+                  final Chain streamChain = chain;
+                  res.withContentType(contentType);
+                  res.withStreamer(new Response.Streamer()
+                     {
+                        @Override
+                        public void stream(OutputStream out) throws Exception
+                        {
+                           ScriptAction prevScript = scriptLocal.get();
+                           Chain prevChain = chainLocal.get();
+
+                           scriptLocal.set(streamScript);
+                           chainLocal.set(streamChain);
+                           try
+                           {
+                              Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                              template.merge(streamContext, writer);
+                              writer.flush();
+                           }
+                           finally
+                           {
+                              scriptLocal.set(prevScript);
+                              chainLocal.set(prevChain);
+                           }
+                        }
+                     });
+                  content = null;
+                  break;
+               }
 
+               StringWriter writer = new StringWriter();
                template.merge(context, writer);
 
-               writer.flush();
-               writer.close();
-
-               content = baos.toString();
+               content = writer.toString();
                context.put("content", content);
             }
          }
@@ -267,7 +401,12 @@ public class ScriptAction extends Action<ScriptAction>
          if (!Utils.empty(content) && Utils.empty(res.getText()) && (res.getJson() == null || res.getJson().getProperties().size() == 0))
          {
             boolean setText = true;
-            if (content.startsWith("{") || content.startsWith("["))
+            if (contentType != null)
+            {
+               //-- the script said what it is, no need to sniff for json
+               res.withContentType(contentType);
+            }
+            else if (content.startsWith("{") || content.startsWith("["))
             {
                try
                {
@@ -390,9 +529,6 @@ public class ScriptAction extends Action<ScriptAction>
       ScriptAction handler = scriptLocal.get();
       Chain chain = chainLocal.get();
 
-      //      if (handler.CACHE.containsKey(path))
-      //         return handler.CACHE.get(path);
-
       String ext = path.indexOf(".") > 0 ? path.substring(path.lastIndexOf(".") + 1, path.length()).toLowerCase() : null;
       if (ext != null && !handler.scriptTypes.containsKey(ext))
       {
@@ -402,6 +538,16 @@ public class ScriptAction extends Action<ScriptAction>
       String scriptsDir = chain.getConfig("scriptsDir", handler.scriptsDir);
       String scriptsCollection = chain.getConfig("scriptsCollection", handler.scriptsCollection);
 
+      //-- misses are cached too so guessed paths that don't exist aren't probed every request
+      String cacheKey = getScriptSource(chain) + "|" + path;
+      CachedScript cached = null;
+      if (handler.CACHE != null)
+      {
+         cached = handler.CACHE.get(cacheKey);
+         if (cached != null && !cached.isModified(handler.cacheCheckMillis))
+            return cached.script;
+      }
+
       List<String> exts = new ArrayList();
       if (ext != null)
          exts.add(ext);
@@ -420,21 +566,32 @@ public class ScriptAction extends Action<ScriptAction>
       }
 
       JSNode script = null;
+      List<File> files = new ArrayList();
+
+      //-- Engine.getResource() tries the ResourceLoader, then user.dir, then the 
+      //-- classpath so only a script read from a user.dir file, or a miss with no 
+      //-- ResourceLoader, can be checked for changes by the files' lastModified
+      boolean watchFiles = chain.getEngine().getResourceLoader() == null;
 
       for (String p : paths)
       {
+         File file = new File(System.getProperty("user.dir"), Utils.implode("/", scriptsDir, p));
+         files.add(file);
 
          ext = handler.ext(p);
          InputStream is = chain.getEngine().getResource(Utils.implode("/", scriptsDir, p));
          if (is != null)
          {
             script = new JSNode("type", handler.scriptTypes.get(ext), "script", Utils.read(is));
+            watchFiles = watchFiles && file.exists();
             break;
          }
       }
 
+      boolean fromCollection = false;
       if (script == null && !Utils.empty(scriptsCollection))
       {
+         fromCollection = true;
          String url = chain.getRequest().getApiUrl() + scriptsCollection + "?name=" + path;
          Response r = chain.getEngine().get(url);
          if (r.getStatusCode() == 200)
@@ -447,7 +604,17 @@ public class ScriptAction extends Action<ScriptAction>
          }
       }
 
-      handler.CACHE.put(path, script);
+      if (handler.CACHE != null)
+      {
+         CachedScript fresh = new CachedScript(script, files, fromCollection || !watchFiles);
+
+         //-- an unchanged reread script keeps the JSNode already handed out
+         if (cached != null && cached.hash != null && cached.hash.equals(fresh.hash))
+            fresh.script = cached.script;
+
+         handler.CACHE.put(cacheKey, fresh);
+         script = fresh.script;
+      }
 
       return script;
    }
@@ -534,6 +701,66 @@ public class ScriptAction extends Action<ScriptAction>
       return this;
    }
 
+   public int getCacheMax()
+   {
+      return cacheMax;
+   }
+
+   public ScriptAction withCacheMax(int cacheMax)
+   {
+      this.cacheMax = cacheMax;
+      return this;
+   }
+
+   /**
+    * A resolved script, or null for a path that was not found, along with the 
+    * files that were probed so an edit or a newly created file invalidates it.
+    * <p>
+    * Scripts from the scripts collection, the Engine's ResourceLoader or the 
+    * classpath, and misses that were looked up in any of those, have no file 
+    * timestamp so they are re-read every <code>checkMillis</code> and compared 
+    * by the hash of their text.
+    */
+   static class CachedScript
+   {
+      JSNode     script    = null;
+      String     hash      = null;
+      List<File> files     = null;
+      long[]     modified  = null;
+      boolean    reread    = false;
+      long       checkedAt = 0;
+
+      CachedScript(JSNode script, List<File> files, boolean reread)
+      {
+         this.script = script;
+         this.hash = script != null && script.getString("script") != null ? Utils.sha1(script.getString("script").getBytes()) : null;
+         this.files = files;
+         this.reread = reread;
+         this.modified = new long[files.size()];
+         for (int i = 0; i < modified.length; i++)
+            modified[i] = files.get(i).lastModified();
+         this.checkedAt = System.currentTimeMillis();
+      }
+
+      boolean isModified(long checkMillis)
+      {
+         long now = System.currentTimeMillis();
+         if (now - checkedAt < checkMillis)
+            return false;
+
+         if (reread)
+            return true;
+
+         for (int i = 0; i < modified.length; i++)
+         {
+            if (files.get(i).lastModified() != modified[i])
+               return true;
+         }
+         checkedAt = now;
+         return false;
+      }
+   }
+
    public static class Util
    {
 
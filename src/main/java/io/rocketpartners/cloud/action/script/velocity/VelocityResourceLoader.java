@@ -16,10 +16,10 @@
 package io.rocketpartners.cloud.action.script.velocity;
 
 import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringBufferInputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.resource.Resource;
@@ -28,10 +28,23 @@ import org.apache.velocity.util.ExtProperties;
 
 import io.rocketpartners.cloud.action.script.ScriptAction;
 import io.rocketpartners.cloud.model.JSNode;
-import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.Utils;
 
+/**
+ * Loads Velocity templates through {@link ScriptAction#findScript(String)}.
+ * <p>
+ * Scripts may come from a db collection without a timestamp so a template 
+ * is modified when the hash of its text differs from the hash of the text that 
+ * was loaded.  The last modified time is when that text was first seen.
+ * <p>
+ * findScript() reads the ScriptAction and Chain of the current thread so
+ * templates merged after the chain has completed must restore them, see
+ * ScriptAction.runScripts().
+ */
 public class VelocityResourceLoader extends ResourceLoader
 {
+   Map<String, Version> versions = new ConcurrentHashMap();
+
    @Override
    public void init(ExtProperties configuration)
    {
@@ -44,32 +57,88 @@ public class VelocityResourceLoader extends ResourceLoader
    {
       try
       {
-         JSNode script = ScriptAction.findScript(source);
-         if (script != null)
+         String text = findText(source);
+         if (text != null)
          {
-            return new InputStreamReader(new ByteArrayInputStream(script.getString("script").getBytes()));
+            version(source, text);
+            return new InputStreamReader(new ByteArrayInputStream(text.getBytes("UTF-8")), "UTF-8");
          }
       }
       catch (Exception ex)
       {
-         ex.printStackTrace();
+         log.error("Unable to load template '" + source + "'", ex);
       }
 
       return null;
    }
 
+   /**
+    * Scripts are resolved through ScriptAction's script cache so 
+    * this is cheap enough to call on Velocity's check interval.
+    */
    @Override
    public boolean isSourceModified(Resource resource)
    {
-      // TODO Auto-generated method stub
-      return false;
+      try
+      {
+         Version loaded = versions.get(resource.getName());
+         String text = findText(resource.getName());
+         return loaded == null || text == null || !loaded.hash.equals(Utils.sha1(text.getBytes("UTF-8")));
+      }
+      catch (Exception ex)
+      {
+         log.error("Unable to check template '" + resource.getName() + "' for changes", ex);
+         return false;
+      }
    }
 
    @Override
    public long getLastModified(Resource resource)
    {
-      // TODO Auto-generated method stub
+      try
+      {
+         String text = findText(resource.getName());
+         if (text != null)
+            return version(resource.getName(), text).modified;
+      }
+      catch (Exception ex)
+      {
+         log.error("Unable to check template '" + resource.getName() + "' for changes", ex);
+      }
       return 0;
    }
 
+   String findText(String name) throws Exception
+   {
+      JSNode script = ScriptAction.findScript(name);
+      return script != null ? script.getString("script") : null;
+   }
+
+   /**
+    * Records when <code>text</code> was first seen for <code>name</code>.
+    */
+   Version version(String name, String text) throws Exception
+   {
+      String hash = Utils.sha1(text.getBytes("UTF-8"));
+      Version version = versions.get(name);
+      if (version == null || !version.hash.equals(hash))
+      {
+         version = new Version(hash, System.currentTimeMillis());
+         versions.put(name, version);
+      }
+      return version;
+   }
+
+   static class Version
+   {
+      String hash     = null;
+      long   modified = 0;
+
+      Version(String hash, long modified)
+      {
+         this.hash = hash;
+         this.modified = modified;
+      }
+   }
+
 }
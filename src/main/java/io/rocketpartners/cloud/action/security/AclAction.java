@@ -31,9 +31,11 @@ import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.model.User;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.Utils;
@@ -98,45 +100,11 @@ public class AclAction extends Action<AclAction>
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response resp) throws Exception
    {
-      List<AclRule> matched = new ArrayList<>();
-      boolean allowed = false;
-
       log.debug("Request Path: " + req.getPath());
 
-      for (AclRule aclRule : aclRules)
-      {
-         if (aclRule.ruleMatches(req))
-         {
-            //log.debug("Matched AclAction: " + aclRule.getName());
-            if (!aclRule.isAllow())
-            {
-               Chain.debug("AclAction: MATCH_DENY" + aclRule);
-
-               allowed = false;
-               break;
-            }
-            else
-            {
-               if (!aclRule.isInfo() && aclRule.isAllow())
-               {
-                  Chain.debug("AclAction: MATCH_ALLOW " + aclRule);
-                  allowed = true;
-               }
-               else
-               {
-                  Chain.debug("AclAction: MATCH_INFO " + aclRule);
-               }
-            }
-
-            matched.add(aclRule);
-         }
-      }
-
-      if (!allowed)
-      {
-         Chain.debug("AclAction: NO_MATCH_DENY");
+      List<AclRule> matched = matchRules(req.getMethod(), req.getPath(), req.getUser());
+      if (matched == null)
          throw new ApiException(SC.SC_403_FORBIDDEN);
-      }
 
       Set requires = new HashSet();
       Set restricts = new HashSet();
@@ -177,6 +145,74 @@ public class AclAction extends Action<AclAction>
       }
    }
 
+   /**
+    * Checks the rules for <code>method</code> and <code>path</code> without running 
+    * a request.  This is only true when {@link #matchRules(String, Path, User)} 
+    * allows the request and none of the matched rules have requires or restricts,
+    * which can only be applied to a real request and response.
+    */
+   public boolean allows(String method, Path path, User user)
+   {
+      List<AclRule> matched = matchRules(method, path, user);
+      if (matched == null)
+         return false;
+
+      for (AclRule aclRule : matched)
+      {
+         if (aclRule.getRequires().size() > 0 || aclRule.getRestricts().size() > 0)
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Evaluates the rules in order.  The first matching deny rule denies 
+    * the request, otherwise it is allowed if at least one matching rule
+    * is a non info allow rule.
+    * 
+    * @return the matched rules up to a deny or null if the request is denied
+    */
+   protected List<AclRule> matchRules(String method, Path path, User user)
+   {
+      List<AclRule> matched = new ArrayList<>();
+      boolean allowed = false;
+
+      for (AclRule aclRule : aclRules)
+      {
+         if (aclRule.ruleMatches(method, path, user))
+         {
+            if (!aclRule.isAllow())
+            {
+               Chain.debug("AclAction: MATCH_DENY" + aclRule);
+
+               allowed = false;
+               break;
+            }
+            else
+            {
+               if (!aclRule.isInfo())
+               {
+                  Chain.debug("AclAction: MATCH_ALLOW " + aclRule);
+                  allowed = true;
+               }
+               else
+               {
+                  Chain.debug("AclAction: MATCH_INFO " + aclRule);
+               }
+            }
+
+            matched.add(aclRule);
+         }
+      }
+
+      if (!allowed)
+      {
+         Chain.debug("AclAction: NO_MATCH_DENY");
+         return null;
+      }
+      return matched;
+   }
+
    void cleanParams(Chain chain, Request req, Set<String> restricts, Set<String> requires)
    {
       for (String restricted : restricts)
@@ -19,8 +19,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Rule;
+import io.rocketpartners.cloud.model.User;
 import io.rocketpartners.cloud.utils.Utils;
 
 public class AclRule extends Rule<AclRule>
@@ -99,17 +101,22 @@ public class AclRule extends Rule<AclRule>
 
    public boolean ruleMatches(Request req)
    {
-      if (!matches(req.getMethod(), req.getPath()))
+      return ruleMatches(req.getMethod(), req.getPath(), req.getUser());
+   }
+
+   public boolean ruleMatches(String method, Path path, User user)
+   {
+      if (!matches(method, path))
          return false;
 
       //short cut 
-      if (req.getUser() == null && (roles.size() > 0 || permissions.size() > 0))
+      if (user == null && (roles.size() > 0 || permissions.size() > 0))
          return false;
 
       int matches = 0;
       for (String requiredRole : roles)
       {
-         boolean matched = req.getUser().hasRoles(requiredRole);
+         boolean matched = user.hasRoles(requiredRole);
 
          if (matched)
          {
@@ -136,7 +143,7 @@ public class AclRule extends Rule<AclRule>
       {
          for (String requiredPerm : permissions)
          {
-            boolean matched = req.getUser().hasPermissions(requiredPerm);
+            boolean matched = user.hasPermissions(requiredPerm);
 
             if (matched)
             {
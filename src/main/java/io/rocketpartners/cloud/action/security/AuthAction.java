@@ -20,13 +20,15 @@ import java.security.Permission;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.collections4.map.LRUMap;
 
 import io.rocketpartners.cloud.action.sql.SqlDb;
 import io.rocketpartners.cloud.model.Action;
@@ -63,6 +65,18 @@ public class AuthAction extends Action<AuthAction>
 
    protected boolean          shouldTrackRequestTimes = true;
 
+   /**
+    * Verified username/password credentials are cached for <code>credentialExp</code>
+    * so repeat Basic auth callers skip the user lookup, password hash and 
+    * role/permission queries.  Zero disables the cache.
+    */
+   protected int              credentialMax           = 1000;
+   protected long             credentialExp           = 1000 * 60 * 5;  //5 minutes, also the max time a password change on another host takes to apply here
+
+   transient Map<String, Credential> credentialCache      = new ConcurrentHashMap();
+   transient String                  credentialSalt       = UUID.randomUUID().toString();
+   static volatile long              credentialsChangedAt = 0;
+
    public AuthAction()
    {
       withOrder(100);
@@ -77,7 +91,7 @@ public class AuthAction extends Action<AuthAction>
          synchronized (this)
          {
             if (sessionCache == null)
-               sessionCache = new LRUAuthSessionCache(sessionMax);
+               sessionCache = new ShardedAuthSessionCache(sessionMax, sessionExp);
          }
       }
 
@@ -167,45 +181,69 @@ public class AuthAction extends Action<AuthAction>
       }
       else if (!Utils.empty(username, password))
       {
-         Connection conn = db.getConnection();
+         String credentialKey = credentialMax > 0 ? credentialKey(api, req.getTenantCode(), username, password) : null;
+         Credential credential = credentialKey != null ? getCredential(credentialKey, now) : null;
 
-         User tempUser = getUser(conn, api, req.getTenantCode(), username, null);
-         boolean authorized = false;
-         if (tempUser != null)
+         if (credential != null)
          {
-            long requestAt = tempUser.getRequestAt();
-            int failedNum = tempUser.getFailedNum();
-            if (failedNum < failedMax || now - requestAt > failedExp)
+            //-- each request gets its own copy so changes to it never leak into the cache
+            user = credential.user.copy();
+
+            //-- coalesce request time tracking to once per sessionUpdate
+            if (shouldTrackRequestTimes && now - credential.trackedAt > sessionUpdate)
             {
-               //only attempt to validate password and log the attempt 
-               //if the user has failed login fewer than failedMax times
-               String remoteAddr = req.getRemoteAddr();
-               authorized = checkPassword(conn, tempUser, password);
+               credential.trackedAt = now;
+               String sql = "UPDATE User SET requestAt = ?, failedNum = ?, remoteAddr = ? WHERE id = ?";
+               SqlUtils.execute(db.getConnection(), sql, now, 0, req.getRemoteAddr(), user.getId());
+            }
+         }
+         else
+         {
+            Connection conn = db.getConnection();
 
-               if (shouldTrackRequestTimes)
+            User tempUser = getUser(conn, api, req.getTenantCode(), username, null);
+            boolean authorized = false;
+            if (tempUser != null)
+            {
+               long requestAt = tempUser.getRequestAt();
+               int failedNum = tempUser.getFailedNum();
+               if (failedNum < failedMax || now - requestAt > failedExp)
                {
-                  String sql = "UPDATE User SET requestAt = ?, failedNum = ?, remoteAddr = ? WHERE id = ?";
-                  SqlUtils.execute(conn, sql, now, authorized ? 0 : failedNum + 1, remoteAddr, tempUser.getId());
-               }
+                  //only attempt to validate password and log the attempt 
+                  //if the user has failed login fewer than failedMax times
+                  String remoteAddr = req.getRemoteAddr();
+                  authorized = checkPassword(conn, tempUser, password);
 
-               if (authorized)
-               {
-                  tempUser.withRequestAt(now);
-                  tempUser.withRoles(getRoles(conn, req.getApi(), tempUser));
-                  tempUser.withPermissions(getPermissions(conn, req.getApi(), tempUser));
-                  if (!Utils.empty(authenticatedPerm))
+                  if (shouldTrackRequestTimes)
                   {
-                     tempUser.withPermissions(authenticatedPerm);
+                     String sql = "UPDATE User SET requestAt = ?, failedNum = ?, remoteAddr = ? WHERE id = ?";
+                     SqlUtils.execute(conn, sql, now, authorized ? 0 : failedNum + 1, remoteAddr, tempUser.getId());
                   }
 
-                  user = tempUser;
+                  if (authorized)
+                  {
+                     tempUser.withRequestAt(now);
+                     tempUser.withRoles(getRoles(conn, req.getApi(), tempUser));
+                     tempUser.withPermissions(getPermissions(conn, req.getApi(), tempUser));
+                     if (!Utils.empty(authenticatedPerm))
+                     {
+                        tempUser.withPermissions(authenticatedPerm);
+                     }
+
+                     user = tempUser;
+
+                     if (credentialKey != null)
+                        putCredential(credentialKey, new Credential(user.copy(), now));
+                  }
                }
             }
-         }
-
-         if (tempUser == null || !authorized)
-            throw new ApiException(SC.SC_401_UNAUTHORIZED);
 
+            if (tempUser == null || !authorized)
+            {
+               removeCredentials(username);
+               throw new ApiException(SC.SC_401_UNAUTHORIZED);
+            }
+         }
       }
 
       if (sessionKey != null)
@@ -346,6 +384,68 @@ public class AuthAction extends Action<AuthAction>
       return SqlUtils.selectObject(conn, sql, User.class, params);
    }
 
+   /**
+    * @return a digest of the credentials so plain text passwords are never held in the cache
+    */
+   protected String credentialKey(Api api, String tenantCode, String username, String password) throws Exception
+   {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(credentialSalt.getBytes("UTF-8"));
+      digest.update((api.getId() + ":" + tenantCode + ":" + username + ":" + password).getBytes("UTF-8"));
+      return username.toLowerCase() + ":" + Base64.encodeBase64String(digest.digest());
+   }
+
+   protected Credential getCredential(String credentialKey, long now)
+   {
+      Credential credential = credentialCache.get(credentialKey);
+      if (credential != null && (now - credential.verifiedAt > credentialExp || credential.verifiedAt <= credentialsChangedAt))
+      {
+         credentialCache.remove(credentialKey);
+         credential = null;
+      }
+      return credential;
+   }
+
+   protected void putCredential(String credentialKey, Credential credential)
+   {
+      if (credentialCache.size() >= credentialMax)
+      {
+         for (Iterator<Credential> it = credentialCache.values().iterator(); it.hasNext();)
+         {
+            Credential c = it.next();
+            if (credential.verifiedAt - c.verifiedAt > credentialExp || c.verifiedAt <= credentialsChangedAt)
+               it.remove();
+         }
+
+         if (credentialCache.size() >= credentialMax)
+            credentialCache.clear();
+      }
+      credentialCache.put(credentialKey, credential);
+   }
+
+   /**
+    * Drops every cached credential for <code>username</code>, called after a failed 
+    * login so a client guessing passwords can not keep riding a cached success.
+    */
+   protected void removeCredentials(String username)
+   {
+      String prefix = username.toLowerCase() + ":";
+      for (Iterator<String> it = credentialCache.keySet().iterator(); it.hasNext();)
+      {
+         if (it.next().startsWith(prefix))
+            it.remove();
+      }
+   }
+
+   /**
+    * Invalidates credentials cached by every AuthAction in this JVM, 
+    * call when a password is changed or a user is revoked.
+    */
+   public static void credentialsChanged()
+   {
+      credentialsChangedAt = System.currentTimeMillis();
+   }
+
    boolean checkPassword(Connection conn, User user, String password)
    {
       boolean matched = false;
@@ -519,34 +619,30 @@ public class AuthAction extends Action<AuthAction>
       return this;
    }
 
-   class LRUAuthSessionCache implements AuthSessionCache
+   public AuthAction withCredentialMax(int credentialMax)
    {
-      LRUMap map;
-
-      public LRUAuthSessionCache(int sessionMax)
-      {
-         super();
-         this.map = new LRUMap(sessionMax);;
-      }
+      this.credentialMax = credentialMax;
+      return this;
+   }
 
-      @Override
-      public User get(String sessionKey)
-      {
-         return (User) map.get(sessionKey);
-      }
+   public AuthAction withCredentialExp(long credentialExp)
+   {
+      this.credentialExp = credentialExp;
+      return this;
+   }
 
-      @Override
-      public void put(String sessionKey, User user)
-      {
-         map.put(sessionKey, user);
-      }
+   static class Credential
+   {
+      User          user       = null;
+      long          verifiedAt = 0;
+      volatile long trackedAt  = 0;
 
-      @Override
-      public void remove(String sessionKey)
+      Credential(User user, long verifiedAt)
       {
-         map.remove(sessionKey);
+         this.user = user;
+         this.verifiedAt = verifiedAt;
+         this.trackedAt = verifiedAt;
       }
-
    }
 
 }
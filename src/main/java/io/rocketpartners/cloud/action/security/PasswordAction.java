@@ -73,6 +73,7 @@ public class PasswordAction extends Action<PasswordAction>
                JSNode body = new JSNode(passwordField, encryptedPassword, "href", user.getString("href"));
                String url = Chain.buildLink(req.getCollection(), user.get("id"), null);
                engine.put(url, body.toString());
+               AuthAction.credentialsChanged();
             }
          }
       }
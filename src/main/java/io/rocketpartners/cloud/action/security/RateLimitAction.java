@@ -15,68 +15,133 @@
  */
 package io.rocketpartners.cloud.action.security;
 
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.rocketpartners.cloud.action.redis.RedisDb;
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Db;
 import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.model.User;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 
 /**
- * Provides a blank or client specific request rate limit of <code>limitRequests</code> per 
- * <code>limitMinutes</code>.  
+ * Provides a blanket or client specific request rate limit of <code>limitUserHits</code>
+ * and/or <code>limitTotalHits</code> per <code>limitMinutes</code>.  
  * 
- * Endpoint/Action configurations override limitMinutes,limitRequests,limitToken so that
- * an Endpoint/Action can customize rates to fit their needs.  
+ * Endpoint/Action configurations override limitMinutes,limitUserHits,limitTotalHits,limitBy 
+ * so that an Endpoint/Action can customize rates to fit their needs.  
  * 
- * NOTICE 
- * There is intentionally no concurrency control on this class
- * other than using Hashtables instead of HashMaps.
- * The net result of no concurrency control should be limited
- * to a slightly leaky system that may allow more hits than 
- * configured.  In exchange, we don't have to worry about 
- * synchronization performance.
- *    
+ * Hits are counted in a sliding window: the count for the current fixed
+ * window plus the previous window's count weighted by how much of it still
+ * overlaps the sliding window.  This avoids letting a client burst twice
+ * its limit across a window boundary.  Counters are atomic and per client,
+ * a window only takes a lock the first time it is hit after it rolls over.
+ * At most <code>maxClients</code> clients are tracked, the least recently
+ * seen client is dropped to make room for a new one.
  * 
+ * Clients are identified by <code>limitBy</code> which can be "remoteAddr" (the default), 
+ * "user", "tenant" or "apiKey" (the <code>apiKeyHeader</code> request header).  Override
+ * {@link #getClientKey(Chain, Request, String)} for anything else.
+ * 
+ * If <code>redisDb</code> names a RedisDb on the Api, counts are kept in Redis so the limit
+ * is shared by every node.  If Redis is unavailable the local counters are used.
+ *    
  * @author wells
  *
  */
 public class RateLimitAction extends Action<RateLimitAction>
 {
-   protected int       limitMinutes   = 1;
-   protected int       limitUserHits  = -1;
-   protected int       limitTotalHits = -1;
+   protected transient Logger         log            = LoggerFactory.getLogger(getClass());
+
+   protected int                      limitMinutes   = 1;
+   protected int                      limitUserHits  = -1;
+   protected int                      limitTotalHits = -1;
+
+   /**
+    * One of "remoteAddr", "user", "tenant" or "apiKey"
+    */
+   protected String                   limitBy        = "remoteAddr";
+   protected String                   apiKeyHeader   = "X-Api-Key";
+
+   /**
+    * The max number of clients tracked per limit configuration.
+    * The least recently seen client is evicted when this is exceeded.
+    */
+   protected int                      maxClients     = 100000;
+
+   /**
+    * Optional name of a RedisDb used to share counts across nodes
+    */
+   protected String                   redisDb        = null;
+   protected String                   redisPrefix    = "ratelimit";
 
-   Map<String, Bucket> buckets        = new Hashtable();
+   transient Map<String, Limiter>     limiters       = new ConcurrentHashMap();
 
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
    {
-      int limitMinutes = chain.getConfig("limitMinutes", this.limitMinutes);;
+      int limitMinutes = chain.getConfig("limitMinutes", this.limitMinutes);
       int limitUserHits = chain.getConfig("limitUserHits", this.limitUserHits);
       int limitTotalHits = chain.getConfig("limitTotalHits", this.limitTotalHits);
+      String limitBy = chain.getConfig("limitBy", this.limitBy);
 
-      String bucketKey = new StringBuffer(limitMinutes).append("-").append(limitUserHits).append("-").append(limitTotalHits).toString();
-
-      String clientId = req.getRemoteAddr();
+      if (limitUserHits <= 0 && limitTotalHits < 0)
+         return;
 
       //this one handler can handle different rate configurations 
       //such as 100 hits per minutes or or 10000 hits per 5 minutes
-      Bucket bucket = buckets.get(bucketKey);
-      if (bucket == null)
+      String limiterKey = limitMinutes + "-" + limitUserHits + "-" + limitTotalHits;
+      Limiter limiter = limiters.get(limiterKey);
+      if (limiter == null)
       {
-         bucket = new Bucket(limitMinutes, limitUserHits, limitTotalHits);
-         buckets.put(bucketKey, bucket);
+         limiter = new Limiter(limiterKey, limitMinutes * 60000L, limitUserHits, limitTotalHits, maxClients);
+         Limiter existing = ((ConcurrentHashMap<String, Limiter>) limiters).putIfAbsent(limiterKey, limiter);
+         if (existing != null)
+            limiter = existing;
+      }
+
+      String clientId = limitBy + ":" + getClientKey(chain, req, limitBy);
+      RedisDb redis = getRedisDb(api);
+      long now = System.currentTimeMillis();
+
+      Hit hit = null;
+      if (redis != null)
+      {
+         try
+         {
+            hit = limiter.redisHit(redis, redisPrefix, clientId, now);
+         }
+         catch (Exception ex)
+         {
+            log.warn("Unable to rate limit through Redis, falling back to local counters", ex);
+         }
       }
+      if (hit == null)
+         hit = limiter.hit(clientId, now);
 
-      if (!bucket.hit(clientId))
+      res.withHeader("X-RateLimit-Limit", hit.limit + "");
+      res.withHeader("X-RateLimit-Remaining", Math.max(0, hit.limit - hit.count) + "");
+      res.withHeader("X-RateLimit-Reset", hit.resetSeconds() + "");
+
+      if (hit.count > hit.limit)
       {
+         res.withHeader("Retry-After", hit.resetSeconds() + "");
+
          JSNode error = new JSNode("error", SC.SC_429_TOO_MANY_REQUESTS, "message", "slow down your request rate");
          res.withJson(error);
          res.withStatus(SC.SC_429_TOO_MANY_REQUESTS);
@@ -85,83 +150,306 @@ public class RateLimitAction extends Action<RateLimitAction>
       }
    }
 
-   class Bucket
+   /**
+    * @return the id rate limits are counted against for <code>limitBy</code>, 
+    *         the remote address if the request does not have one
+    */
+   protected String getClientKey(Chain chain, Request req, String limitBy)
+   {
+      String key = null;
+      if ("user".equalsIgnoreCase(limitBy))
+      {
+         User user = req.getUser();
+         if (user != null)
+            key = user.getUsername();
+      }
+      else if ("tenant".equalsIgnoreCase(limitBy))
+      {
+         key = req.getTenantCode();
+      }
+      else if ("apiKey".equalsIgnoreCase(limitBy))
+      {
+         key = req.getHeader(chain.getConfig("apiKeyHeader", apiKeyHeader));
+      }
+
+      return key != null ? key : req.getRemoteAddr();
+   }
+
+   protected RedisDb getRedisDb(Api api)
+   {
+      if (redisDb == null)
+         return null;
+
+      Db db = api.getDb(redisDb);
+      if (db instanceof RedisDb)
+         return (RedisDb) db;
+
+      return null;
+   }
+
+   static class Hit
+   {
+      int  count   = 0;
+      int  limit   = 0;
+      long resetIn = 0;
+
+      Hit(int count, int limit, long resetIn)
+      {
+         this.count = count;
+         this.limit = limit;
+         this.resetIn = resetIn;
+      }
+
+      long resetSeconds()
+      {
+         return (resetIn + 999) / 1000;
+      }
+   }
+
+   static class Limiter
    {
-      int              limitMillies   = 0;
-      int              limitUserHits  = 0;
-      int              limitTotalHits = 0;
+      String              name           = null;
+      long                windowMillis   = 0;
+      int                 limitUserHits  = 0;
+      int                 limitTotalHits = 0;
 
-      long             resetAt        = 0;
-      Map<String, Num> userHits       = new Hashtable();
-      int              totalHits      = 0;
+      Window              total          = new Window();
+      Map<String, Window> clients        = null;
 
-      Bucket(int limitMinutes, int limitUserHits, int limitTotalHits)
+      Limiter(String name, long windowMillis, int limitUserHits, int limitTotalHits, final int maxClients)
       {
-         this.limitMillies = limitMinutes * 60000;
+         this.name = name;
+         this.windowMillis = Math.max(1000, windowMillis);
          this.limitUserHits = limitUserHits;
          this.limitTotalHits = limitTotalHits;
+
+         //-- access ordered so making room for a new client is O(1)
+         this.clients = Collections.synchronizedMap(new LinkedHashMap<String, Window>(16, 0.75f, true)
+            {
+               @Override
+               protected boolean removeEldestEntry(Map.Entry<String, Window> eldest)
+               {
+                  return size() > maxClients;
+               }
+            });
       }
 
-      boolean hit(String clientId)
+      Hit hit(String clientId, long now)
       {
-         if (expired())
-            reset();
+         long resetIn = windowMillis - (now % windowMillis);
+         Hit hit = null;
 
          if (limitTotalHits >= 0)
          {
-            synchronized (this)
+            int count = total.hit(now, windowMillis);
+            hit = new Hit(count, limitTotalHits, resetIn);
+            if (count > limitTotalHits)
+               return hit;
+         }
+
+         if (limitUserHits > 0)
+         {
+            Window window = null;
+            synchronized (clients)
             {
-               totalHits += -1;
+               window = clients.get(clientId);
+               if (window == null)
+               {
+                  window = new Window();
+                  clients.put(clientId, window);
+               }
             }
 
-            if (totalHits > limitTotalHits)
-               return false;
+            int count = window.hit(now, windowMillis);
+            if (hit == null || limitUserHits - count < hit.limit - hit.count)
+               hit = new Hit(count, limitUserHits, resetIn);
          }
 
-         if (limitUserHits > 0)
+         return hit;
+      }
+
+      Hit redisHit(RedisDb redis, String prefix, String clientId, long now) throws Exception
+      {
+         long idx = now / windowMillis;
+         long resetIn = windowMillis - (now % windowMillis);
+         double weight = 1 - (now % windowMillis) / (double) windowMillis;
+
+         Jedis jedis = null;
+         try
          {
-            Num num = userHits.get(clientId);
-            if (num == null)
+            jedis = redis.getRedisClient();
+            Pipeline pipe = jedis.pipelined();
+
+            redis.clients.jedis.Response<Long> totalCount = null;
+            redis.clients.jedis.Response<String> totalPrev = null;
+            if (limitTotalHits >= 0)
             {
-               num = new Num();
-               userHits.put(clientId, num);
+               String key = prefix + ":" + name + ":*:";
+               totalCount = pipe.incr(key + idx);
+               pipe.pexpire(key + idx, 2 * windowMillis);
+               totalPrev = pipe.get(key + (idx - 1));
             }
 
-            num.inc();
+            redis.clients.jedis.Response<Long> userCount = null;
+            redis.clients.jedis.Response<String> userPrev = null;
+            if (limitUserHits > 0)
+            {
+               String key = prefix + ":" + name + ":" + clientId + ":";
+               userCount = pipe.incr(key + idx);
+               pipe.pexpire(key + idx, 2 * windowMillis);
+               userPrev = pipe.get(key + (idx - 1));
+            }
 
-            if (num.val() > limitUserHits)
-               return false;
+            pipe.sync();
+
+            Hit hit = null;
+            if (totalCount != null)
+            {
+               int count = count(totalCount.get(), totalPrev.get(), weight);
+               hit = new Hit(count, limitTotalHits, resetIn);
+               if (count > limitTotalHits)
+                  return hit;
+            }
+            if (userCount != null)
+            {
+               int count = count(userCount.get(), userPrev.get(), weight);
+               if (hit == null || limitUserHits - count < hit.limit - hit.count)
+                  hit = new Hit(count, limitUserHits, resetIn);
+            }
+            return hit;
+         }
+         finally
+         {
+            if (jedis != null)
+               jedis.close();
          }
-         return true;
       }
 
-      boolean expired()
+      static int count(Long current, String previous, double weight)
       {
-         return resetAt < System.currentTimeMillis() - limitMillies;
+         int prev = previous != null ? Integer.parseInt(previous) : 0;
+         return (int) (prev * weight) + current.intValue();
       }
+   }
+
+   /**
+    * Counts hits in fixed windows aligned to multiples of the window length,
+    * keeping the previous window's count to compute a sliding window estimate.
+    */
+   static class Window
+   {
+      volatile long   start    = 0;
+      volatile int    previous = 0;
+      AtomicInteger   current  = new AtomicInteger(0);
 
-      void reset()
+      int hit(long now, long windowMillis)
       {
-         resetAt = System.currentTimeMillis();
-         totalHits = 0;
-         userHits.clear();
+         if (now >= start + windowMillis)
+            roll(now, windowMillis);
+
+         int count = current.incrementAndGet();
+         double weight = 1 - (now - start) / (double) windowMillis;
+         return (int) (previous * Math.max(0, weight)) + count;
       }
 
-      class Num
+      synchronized void roll(long now, long windowMillis)
       {
-         int num = 0;
+         if (now < start + windowMillis)
+            return;
 
-         void inc()
-         {
-            num += 1;
-         }
-
-         int val()
-         {
-            return num;
-         }
+         long next = now - (now % windowMillis);
+         previous = next - start == windowMillis ? current.get() : 0;
+         current.set(0);
+         start = next;
       }
+   }
+
+   public int getLimitMinutes()
+   {
+      return limitMinutes;
+   }
+
+   public RateLimitAction withLimitMinutes(int limitMinutes)
+   {
+      this.limitMinutes = limitMinutes;
+      return this;
+   }
+
+   public int getLimitUserHits()
+   {
+      return limitUserHits;
+   }
+
+   public RateLimitAction withLimitUserHits(int limitUserHits)
+   {
+      this.limitUserHits = limitUserHits;
+      return this;
+   }
+
+   public int getLimitTotalHits()
+   {
+      return limitTotalHits;
+   }
+
+   public RateLimitAction withLimitTotalHits(int limitTotalHits)
+   {
+      this.limitTotalHits = limitTotalHits;
+      return this;
+   }
+
+   public String getLimitBy()
+   {
+      return limitBy;
+   }
+
+   public RateLimitAction withLimitBy(String limitBy)
+   {
+      this.limitBy = limitBy;
+      return this;
+   }
+
+   public String getApiKeyHeader()
+   {
+      return apiKeyHeader;
+   }
+
+   public RateLimitAction withApiKeyHeader(String apiKeyHeader)
+   {
+      this.apiKeyHeader = apiKeyHeader;
+      return this;
+   }
+
+   public int getMaxClients()
+   {
+      return maxClients;
+   }
+
+   public RateLimitAction withMaxClients(int maxClients)
+   {
+      this.maxClients = maxClients;
+      return this;
+   }
+
+   public String getRedisDb()
+   {
+      return redisDb;
+   }
 
+   public RateLimitAction withRedisDb(String redisDb)
+   {
+      this.redisDb = redisDb;
+      return this;
+   }
+
+   public String getRedisPrefix()
+   {
+      return redisPrefix;
+   }
+
+   public RateLimitAction withRedisPrefix(String redisPrefix)
+   {
+      this.redisPrefix = redisPrefix;
+      return this;
    }
 
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.security;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.rocketpartners.cloud.model.User;
+
+/**
+ * A thread safe in memory AuthSessionCache.
+ * <p>
+ * Sessions are spread across <code>shards</code> independently locked
+ * LRU maps so concurrent requests rarely contend for the same lock.  Each
+ * shard holds at most <code>sessionMax / shards</code> sessions, evicting
+ * the least recently used when full.
+ * <p>
+ * A session expires <code>sessionExp</code> millis after it was last put.
+ * Each shard keeps a timer wheel of <code>wheelSlots</code> buckets spanning
+ * sessionExp so expired sessions are dropped a bucket at a time instead of
+ * scanning the whole map.
+ */
+public class ShardedAuthSessionCache implements AuthSessionCache
+{
+   protected int       sessionMax  = 10000;
+   protected long      sessionExp  = 1000 * 60 * 30;
+   protected int       shards      = 16;
+   protected int       wheelSlots  = 64;
+
+   transient Shard[]   shardArr    = null;
+
+   transient LongAdder hits        = new LongAdder();
+   transient LongAdder misses      = new LongAdder();
+   transient LongAdder evictions   = new LongAdder();
+   transient LongAdder expirations = new LongAdder();
+
+   public ShardedAuthSessionCache()
+   {
+
+   }
+
+   public ShardedAuthSessionCache(int sessionMax, long sessionExp)
+   {
+      this.sessionMax = sessionMax;
+      this.sessionExp = sessionExp;
+   }
+
+   @Override
+   public User get(String sessionKey)
+   {
+      if (sessionKey == null)
+         return null;
+
+      User user = getShard(sessionKey).get(sessionKey, now());
+      if (user != null)
+         hits.increment();
+      else
+         misses.increment();
+
+      return user;
+   }
+
+   @Override
+   public void put(String sessionKey, User user)
+   {
+      if (sessionKey != null && user != null)
+         getShard(sessionKey).put(sessionKey, user, now());
+   }
+
+   @Override
+   public void remove(String sessionKey)
+   {
+      if (sessionKey != null)
+         getShard(sessionKey).remove(sessionKey);
+   }
+
+   public int size()
+   {
+      int size = 0;
+      for (Shard shard : getShards())
+         size += shard.size();
+      return size;
+   }
+
+   public long getHits()
+   {
+      return hits.sum();
+   }
+
+   public long getMisses()
+   {
+      return misses.sum();
+   }
+
+   public long getEvictions()
+   {
+      return evictions.sum();
+   }
+
+   public long getExpirations()
+   {
+      return expirations.sum();
+   }
+
+   long now()
+   {
+      return System.currentTimeMillis();
+   }
+
+   Shard getShard(String sessionKey)
+   {
+      Shard[] shards = getShards();
+      int hash = sessionKey.hashCode();
+      hash ^= (hash >>> 16);
+      return shards[hash & (shards.length - 1)];
+   }
+
+   Shard[] getShards()
+   {
+      if (shardArr == null)
+      {
+         synchronized (this)
+         {
+            if (shardArr == null)
+            {
+               int count = 1;
+               while (count < shards)
+                  count <<= 1;
+
+               Shard[] arr = new Shard[count];
+               for (int i = 0; i < count; i++)
+                  arr[i] = new Shard(Math.max(1, sessionMax / count));
+
+               shardArr = arr;
+            }
+         }
+      }
+      return shardArr;
+   }
+
+   static class Entry
+   {
+      String  key       = null;
+      User    user      = null;
+      long    expiresAt = 0;
+      boolean dead      = false;
+
+      Entry(String key, User user, long expiresAt)
+      {
+         this.key = key;
+         this.user = user;
+         this.expiresAt = expiresAt;
+      }
+   }
+
+   class Shard
+   {
+      LinkedHashMap<String, Entry> map;
+      List<Entry>[]                wheel;
+      long                         tick;
+      long                         lastTick = -1;
+
+      Shard(final int max)
+      {
+         map = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+            {
+               @Override
+               protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+               {
+                  if (size() > max)
+                  {
+                     eldest.getValue().dead = true;
+                     evictions.increment();
+                     return true;
+                  }
+                  return false;
+               }
+            };
+
+         if (sessionExp > 0)
+         {
+            tick = Math.max(1, sessionExp / wheelSlots);
+            wheel = new List[wheelSlots];
+            for (int i = 0; i < wheelSlots; i++)
+               wheel[i] = new ArrayList();
+         }
+      }
+
+      synchronized User get(String key, long now)
+      {
+         advance(now);
+
+         Entry entry = map.get(key);
+         if (entry == null)
+            return null;
+
+         if (entry.expiresAt <= now)
+         {
+            map.remove(key);
+            entry.dead = true;
+            expirations.increment();
+            return null;
+         }
+         return entry.user;
+      }
+
+      synchronized void put(String key, User user, long now)
+      {
+         advance(now);
+
+         Entry entry = new Entry(key, user, sessionExp > 0 ? now + sessionExp : Long.MAX_VALUE);
+         Entry old = map.put(key, entry);
+         if (old != null)
+            old.dead = true;
+
+         if (wheel != null)
+            wheel[(int) ((entry.expiresAt / tick) % wheel.length)].add(entry);
+      }
+
+      synchronized void remove(String key)
+      {
+         Entry old = map.remove(key);
+         if (old != null)
+            old.dead = true;
+      }
+
+      synchronized int size()
+      {
+         return map.size();
+      }
+
+      /**
+       * Expires the entries in each wheel bucket whose tick has fully passed
+       * since the last call, visiting each bucket at most once.
+       */
+      void advance(long now)
+      {
+         if (wheel == null)
+            return;
+
+         long nowTick = now / tick;
+         if (lastTick < 0 || nowTick - lastTick > wheel.length)
+            lastTick = nowTick - wheel.length - 1;
+
+         while (lastTick < nowTick - 1)
+         {
+            lastTick += 1;
+            List<Entry> bucket = wheel[(int) (lastTick % wheel.length)];
+            for (Iterator<Entry> it = bucket.iterator(); it.hasNext();)
+            {
+               Entry entry = it.next();
+               if (entry.dead)
+               {
+                  it.remove();
+               }
+               else if (entry.expiresAt <= now)
+               {
+                  it.remove();
+                  map.remove(entry.key);
+                  entry.dead = true;
+                  expirations.increment();
+               }
+            }
+         }
+      }
+   }
+
+   public ShardedAuthSessionCache withSessionMax(int sessionMax)
+   {
+      this.sessionMax = sessionMax;
+      return this;
+   }
+
+   public ShardedAuthSessionCache withSessionExp(long sessionExp)
+   {
+      this.sessionExp = sessionExp;
+      return this;
+   }
+
+   public ShardedAuthSessionCache withShards(int shards)
+   {
+      this.shards = shards;
+      return this;
+   }
+
+   public ShardedAuthSessionCache withWheelSlots(int wheelSlots)
+   {
+      this.wheelSlots = wheelSlots;
+      return this;
+   }
+
+}
@@ -15,23 +15,30 @@
  */
 package io.rocketpartners.cloud.action.sql;
 
+import java.io.File;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
+import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
-import org.apache.commons.lang3.StringUtils;
-
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
@@ -43,6 +50,8 @@ import io.rocketpartners.cloud.model.Column;
 import io.rocketpartners.cloud.model.Db;
 import io.rocketpartners.cloud.model.Entity;
 import io.rocketpartners.cloud.model.Index;
+import io.rocketpartners.cloud.model.JSArray;
+import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Relationship;
 import io.rocketpartners.cloud.model.Results;
 import io.rocketpartners.cloud.model.SC;
@@ -78,6 +87,89 @@ public class SqlDb extends Db<SqlDb>
 
    protected int                  relatedMax               = 500;
 
+   /**
+    * GET selects with a page size of at least this many rows are read through
+    * a forward only cursor and written to the response as they are read,
+    * instead of being loaded into memory.  A negative value disables streaming.
+    * MySQL only streams when "useCursorFetch=true" is set on the url.
+    */
+   protected int                  streamMinRows            = -1;
+
+   /**
+    * The JDBC fetch size used for streamed selects.
+    */
+   protected int                  fetchSize                = 1000;
+
+   /**
+    * How foundRows is computed for GET requests: "exact", "none", "cached"
+    * or "estimated".  Can be overridden per endpoint, action or collection
+    * with a "countPolicy" config param.
+    */
+   protected String               countPolicy              = "exact";
+
+   /**
+    * How long, in milliseconds, a "cached" count is reused.
+    */
+   protected long                 countCacheTtl            = 60000;
+
+   /**
+    * The max number of distinct counts held in the cache.
+    */
+   protected int                  countCacheMax            = 1000;
+
+   transient Map<String, long[]>  countCache               = new ConcurrentHashMap();
+
+   /**
+    * The max number of generated SQL statements cached by query shape.
+    * Zero disables the cache.
+    */
+   protected int                  sqlCacheMax              = 1000;
+
+   /**
+    * The number of prepared statements the MySQL or Postgres driver caches
+    * per connection, set on the connection pool.  Zero disables it.
+    */
+   protected int                  stmtCacheSize            = 250;
+
+   /**
+    * Opts MySQL into server side prepared statements.  They save parsing for
+    * statements that are reused often but cost an extra round trip for ones 
+    * that are not, so the driver's client side statements are the default.
+    */
+   protected boolean              serverPrepStmts          = false;
+
+   /**
+    * Optional file the reflected schema is saved to and, when its
+    * fingerprint still matches the db, loaded from on the next startup
+    * instead of walking JDBC metadata for every table.
+    */
+   protected String               schemaSnapshot           = null;
+
+   static final int               SNAPSHOT_VERSION         = 1;
+   transient String               snapshotFingerprint      = null;
+
+   /**
+    * The max number of rows sent to the db in a single JDBC batch by
+    * {@link #upsert(Table, List)}.
+    */
+   protected int                  upsertBatchSize          = 500;
+
+   /**
+    * Generated SQL by query shape, evicting the least recently used 
+    * shape once <code>sqlCacheMax</code> is reached.
+    */
+   transient Map<String, SqlQuery.SqlTemplate> sqlCache       = Collections.synchronizedMap(new LinkedHashMap<String, SqlQuery.SqlTemplate>(16, 0.75f, true)
+      {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, SqlQuery.SqlTemplate> eldest)
+         {
+            return size() > sqlCacheMax;
+         }
+      });
+
+   transient AtomicLong                        sqlCacheHits   = new AtomicLong();
+   transient AtomicLong                        sqlCacheMisses = new AtomicLong();
+
    static
    {
       ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger("ROOT");
@@ -215,59 +307,198 @@ public class SqlDb extends Db<SqlDb>
          query.withSelectSql(selectSql);
       }
 
+      //-- the caller sets "streamRows" when it is able to consume the results lazily 
+      if (Chain.peek().get("streamRows") != null && db.getStreamMinRows() >= 0 && query.page().getLimit() >= db.getStreamMinRows() && db.isStreamable())
+      {
+         query.withStreaming(true);
+      }
+
       return query.doSelect();
    }
 
    @Override
    public String upsert(Table table, Map<String, Object> row) throws Exception
    {
-      if (isType("h2"))
-      {
-         return h2Upsert(table, row);
-      }
-      else if (isType("mysql"))
+      return upsert(table, Arrays.asList(row)).get(0);
+   }
+
+   /**
+    * Upserts <code>rows</code> with one JDBC batch per chunk of
+    * <code>upsertBatchSize</code> rows that share the same column set.
+    * <p>
+    * Rows with a primary key value use the dialect's native upsert
+    * (MERGE for h2, ON DUPLICATE KEY UPDATE for mysql, ON CONFLICT for postgres
+    * and a staging table for redshift).  Rows without one are inserted and
+    * their generated key is read back.
+    * 
+    * @return the entity key of each row in the same order as <code>rows</code>
+    */
+   @Override
+   public List<String> upsert(Table table, List<Map<String, Object>> rows) throws Exception
+   {
+      if (getType() == null || !isType("h2", "mysql", "postgres", "redshift"))
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Need to implement SqlDb.upsert for db type '" + getType() + "'");
+
+      Index index = table.getPrimaryIndex();
+      if (index == null)
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Table '" + table.getName() + "' does not have a primary index");
+
+      List<String> keyCols = new ArrayList();
+      for (Column col : index.getColumns())
+         keyCols.add(col.getName());
+
+      //-- group rows by insert vs upsert and column set, remembering
+      //-- where each row came from so keys are returned in order
+      Map<String, List<Integer>> groups = new LinkedHashMap();
+      List<Map<String, Object>> copies = new ArrayList();
+      for (int i = 0; i < rows.size(); i++)
       {
-         return StringUtils.join(mysqlUpsert(table, row), ',');
+         Map<String, Object> row = new LinkedHashMap(rows.get(i));
+         for (String keyCol : keyCols)
+         {
+            if (row.containsKey(keyCol) && row.get(keyCol) == null)
+               row.remove(keyCol);
+         }
+         copies.add(row);
+
+         List<String> cols = new ArrayList(row.keySet());
+         Collections.sort(cols);
+         String group = (table.encodeKey(row) != null ? "upsert" : "insert") + cols;
+
+         List<Integer> members = groups.get(group);
+         if (members == null)
+         {
+            members = new ArrayList();
+            groups.put(group, members);
+         }
+         members.add(i);
       }
-      else
+
+      String[] keys = new String[rows.size()];
+      Connection conn = getConnection();
+      int batchSize = upsertBatchSize > 0 ? upsertBatchSize : rows.size();
+
+      for (List<Integer> members : groups.values())
       {
-         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Need to implement SqlDb.upsert for db type '" + getType() + "'");
+         List<String> cols = new ArrayList(copies.get(members.get(0)).keySet());
+         Collections.sort(cols);
+         boolean keyed = table.encodeKey(copies.get(members.get(0))) != null;
+
+         for (int start = 0; start < members.size(); start += batchSize)
+         {
+            List<Integer> chunk = members.subList(start, Math.min(members.size(), start + batchSize));
+            List<Map<String, Object>> batch = new ArrayList(chunk.size());
+            for (int i : chunk)
+               batch.add(copies.get(i));
+
+            if (keyed)
+            {
+               batchUpsert(conn, table, cols, keyCols, batch);
+               for (int i : chunk)
+                  keys[i] = table.encodeKey(copies.get(i));
+            }
+            else
+            {
+               List<Object> generated = batchInsert(conn, table, cols, keyCols, batch);
+               if (generated.size() != chunk.size())
+                  throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine key of upserted row: " + batch.get(Math.min(generated.size(), batch.size() - 1)));
+
+               for (int i = 0; i < chunk.size(); i++)
+                  keys[chunk.get(i)] = generated.get(i).toString();
+            }
+         }
       }
-   }
 
-   public List<String> mysqlUpsert(Table table, Map<String, Object> row) throws Exception
-   {
-      return mysqlUpsert(table, Arrays.asList(row));
+      return Arrays.asList(keys);
    }
 
-   public List<String> mysqlUpsert(Table table, List<Map<String, Object>> rows) throws Exception
+   protected void batchUpsert(Connection conn, Table table, List<String> cols, List<String> keyCols, List<Map<String, Object>> rows) throws Exception
    {
-      return SqlUtils.mysqlUpsert(getConnection(), table.getName(), rows);
+      if (isType("redshift"))
+      {
+         redshiftUpsert(conn, table, cols, keyCols, rows);
+         return;
+      }
+
+      String sql = null;
+      if (isType("h2"))
+         sql = SqlUtils.buildMergeSQL(conn, table.getName(), cols, keyCols);
+      else if (isType("mysql"))
+         sql = SqlUtils.buildInsertOnDuplicateKeySQL(conn, table.getName(), cols.toArray());
+      else
+         sql = SqlUtils.buildInsertOnConflictSQL(conn, table.getName(), cols, keyCols);
+
+      SqlUtils.executeBatch(conn, sql, cols, rows, null);
    }
 
-   public String h2Upsert(Table table, Map<String, Object> row) throws Exception
+   protected List<Object> batchInsert(Connection conn, Table table, List<String> cols, List<String> keyCols, List<Map<String, Object>> rows) throws Exception
    {
-      Object key = table.encodeKey(row);
+      if (isType("redshift"))
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Redshift does not return generated keys, rows posted to '" + table.getName() + "' must include their primary key");
 
-      if (key == null)//this must be an insert
+      if (isType("h2"))
       {
-         SqlUtils.insertMap(getConnection(), table.getName(), row);
+         //-- H2 does not reliably return generated keys for a batch
+         //-- and is in process so there is no round trip to save
+         List<Object> keys = new ArrayList();
+         for (Map<String, Object> row : rows)
+         {
+            SqlUtils.insertMap(conn, table.getName(), row);
+            keys.add(SqlUtils.selectInt(conn, "SELECT SCOPE_IDENTITY()"));
+         }
+         return keys;
       }
+
+      String sql = null;
+      if (isType("mysql"))
+         sql = SqlUtils.buildInsertOnDuplicateKeySQL(conn, table.getName(), cols.toArray());
       else
+         sql = SqlUtils.buildInsertSQL(conn, table.getName(), cols.toArray());
+
+      return SqlUtils.executeBatch(conn, sql, cols, rows, keyCols.toArray(new String[keyCols.size()]));
+   }
+
+   /**
+    * Redshift has no native upsert so rows are batch inserted into a temp
+    * staging table that is then merged into the target with an UPDATE and
+    * an INSERT of the rows that did not match.
+    */
+   protected void redshiftUpsert(Connection conn, Table table, List<String> cols, List<String> keyCols, List<Map<String, Object>> rows) throws Exception
+   {
+      String target = quoteCol(table.getName());
+      String stage = quoteCol("stage_" + table.getName());
+
+      StringBuffer match = new StringBuffer();
+      for (String keyCol : keyCols)
       {
-         String keyCol = table.getKeyName();
-         SqlUtils.upsert(getConnection(), table.getName(), keyCol, row);
+         if (match.length() > 0)
+            match.append(" AND ");
+         match.append("s.").append(quoteCol(keyCol)).append(" = t.").append(quoteCol(keyCol));
       }
 
-      if (key == null)
+      List<String> updates = new ArrayList();
+      List<String> selects = new ArrayList();
+      for (String col : cols)
       {
-         key = SqlUtils.selectInt(getConnection(), "SELECT SCOPE_IDENTITY()");
+         selects.add("s." + quoteCol(col));
+         if (!keyCols.contains(col))
+            updates.add(quoteCol(col) + " = s." + quoteCol(col));
       }
 
-      if (key == null)
-         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine key of upserted row: " + row);
+      SqlUtils.execute(conn, "CREATE TEMP TABLE " + stage + " (LIKE " + target + ")");
+      try
+      {
+         SqlUtils.executeBatch(conn, SqlUtils.buildInsertSQL(conn, "stage_" + table.getName(), cols.toArray()), cols, rows, null);
+
+         if (updates.size() > 0)
+            SqlUtils.execute(conn, "UPDATE " + target + " SET " + Utils.implode(", ", updates) + " FROM " + stage + " s WHERE " + match.toString().replace(" t.", " " + target + "."));
 
-      return key.toString();
+         SqlUtils.execute(conn, "INSERT INTO " + target + " (" + SqlUtils.getColumnStr(conn, cols) + ") SELECT " + Utils.implode(", ", selects) + " FROM " + stage + " s LEFT JOIN " + target + " t ON " + match + " WHERE t." + quoteCol(keyCols.get(0)) + " IS NULL");
+      }
+      finally
+      {
+         SqlUtils.execute(conn, "DROP TABLE " + stage);
+      }
    }
 
    public void delete(Table table, List<String> entityKeys) throws Exception
@@ -326,27 +557,7 @@ public class SqlDb extends Db<SqlDb>
          Connection conn = ConnectionLocal.getConnection(this);
          if (conn == null && !isShutdown())
          {
-            String dsKey = "name=" + getName() + ", url=" + getUrl() + ", user=" + getUser();
-
-            DataSource pool = pools.get(dsKey);
-
-            if (pool == null)
-            {
-               synchronized (pools)
-               {
-                  //System.out.println("CREATING CONNECTION POOL: " + dsKey);
-                  
-                  pool = pools.get(getName());
-
-                  if (pool == null && !isShutdown())
-                  {
-                     pool = createConnectionPool();
-                     pools.put(dsKey, pool);
-                  }
-               }
-            }
-
-            conn = pool.getConnection();
+            conn = getPool().getConnection();
             conn.setAutoCommit(false);
 
             ConnectionLocal.putConnection(this, conn);
@@ -361,6 +572,40 @@ public class SqlDb extends Db<SqlDb>
       }
    }
 
+   /**
+    * Without cursor fetch MySQL can't run another statement on a connection
+    * until a streamed result set has been fully read, so selects are only
+    * streamed on the request's connection when the url enables it.
+    */
+   public boolean isStreamable()
+   {
+      return !isType("mysql") || (getUrl() != null && getUrl().indexOf("useCursorFetch=true") > -1);
+   }
+
+   protected DataSource getPool()
+   {
+      String dsKey = "name=" + getName() + ", url=" + getUrl() + ", user=" + getUser();
+
+      DataSource pool = pools.get(dsKey);
+
+      if (pool == null)
+      {
+         synchronized (pools)
+         {
+            //System.out.println("CREATING CONNECTION POOL: " + dsKey);
+
+            pool = pools.get(dsKey);
+
+            if (pool == null && !isShutdown())
+            {
+               pool = createConnectionPool();
+               pools.put(dsKey, pool);
+            }
+         }
+      }
+      return pool;
+   }
+
    protected DataSource createConnectionPool()
    {
       HikariConfig config = new HikariConfig();
@@ -370,6 +615,33 @@ public class SqlDb extends Db<SqlDb>
       config.setUsername(getUser());
       config.setPassword(getPass());
       config.setMaximumPoolSize(Math.min(getPoolMax(), MAX_POOL_SIZE));
+
+      //-- lets the driver send a JDBC batch as multi row inserts
+      if (getType() != null)
+      {
+         if (isType("mysql"))
+            config.addDataSourceProperty("rewriteBatchedStatements", "true");
+         else if (isType("postgres"))
+            config.addDataSourceProperty("reWriteBatchedInserts", "true");
+      }
+
+      //-- lets the driver reuse parsed statements across prepareStatement() calls
+      if (stmtCacheSize > 0 && getType() != null)
+      {
+         if (isType("mysql"))
+         {
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", stmtCacheSize + "");
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "4096");
+            if (serverPrepStmts)
+               config.addDataSourceProperty("useServerPrepStmts", "true");
+         }
+         else if (isType("postgres"))
+         {
+            config.addDataSourceProperty("preparedStatementCacheQueries", stmtCacheSize + "");
+         }
+      }
+
       DataSource pool = new HikariDataSource(config);
 
       return pool;
@@ -464,6 +736,17 @@ public class SqlDb extends Db<SqlDb>
             throw toThrow;
       }
 
+      /**
+       * Closes and unbinds this thread's connection to <code>db</code>
+       */
+      public static void close(Db db)
+      {
+         Map<Db, Connection> conns = connections.get();
+         Connection conn = conns != null ? conns.remove(db) : null;
+         if (conn != null)
+            SqlUtils.close(conn);
+      }
+
       public static void close() throws Exception
       {
          Exception toThrow = null;
@@ -495,6 +778,9 @@ public class SqlDb extends Db<SqlDb>
    @Override
    protected void startup0()
    {
+      //-- Dbs may be started on a pool thread, see Api.startupDbs(),
+      //-- so don't leave the reflection connection bound to it
+      boolean hadConnection = ConnectionLocal.getConnection(this) != null;
       try
       {
          if (isType("mysql"))
@@ -502,7 +788,13 @@ public class SqlDb extends Db<SqlDb>
 
          if (isBootstrap() && getTables().size() == 0)
          {
-            reflectDb();
+            if (schemaSnapshot == null || !loadSnapshot())
+            {
+               reflectDb();
+
+               if (schemaSnapshot != null)
+                  saveSnapshot();
+            }
             configApi();
          }
       }
@@ -510,6 +802,11 @@ public class SqlDb extends Db<SqlDb>
       {
          Utils.rethrow(ex);
       }
+      finally
+      {
+         if (!hadConnection)
+            ConnectionLocal.close(this);
+      }
    }
 
    public void reflectDb() throws Exception
@@ -672,6 +969,202 @@ public class SqlDb extends Db<SqlDb>
 
    }
 
+   /**
+    * Rebuilds the Tables, Columns and Indexes from <code>schemaSnapshot</code>
+    * if it was written for this db's current fingerprint.
+    * 
+    * @return true if the snapshot was loaded
+    */
+   public boolean loadSnapshot()
+   {
+      try
+      {
+         String text = null;
+         File file = new File(schemaSnapshot);
+         if (file.exists())
+         {
+            text = Utils.read(file);
+         }
+         else
+         {
+            InputStream in = getClass().getClassLoader().getResourceAsStream(schemaSnapshot);
+            if (in != null)
+               text = Utils.read(in);
+         }
+
+         if (text == null)
+            return false;
+
+         JSNode snapshot = Utils.parseJsonMap(text);
+         String fingerprint = getSchemaFingerprint();
+
+         //-- saved for saveSnapshot() if the snapshot is out of date
+         snapshotFingerprint = fingerprint;
+
+         if (snapshot.getInt("version") != SNAPSHOT_VERSION || fingerprint == null || !fingerprint.equals(snapshot.getString("fingerprint")))
+         {
+            log.info("Schema snapshot '" + schemaSnapshot + "' is out of date, reflecting db '" + getName() + "'");
+            return false;
+         }
+
+         JSArray tablesJs = snapshot.getArray("tables");
+         for (int i = 0; i < tablesJs.length(); i++)
+         {
+            JSNode tableJs = tablesJs.getObject(i);
+            Table table = new Table(this, tableJs.getString("name"));
+            withTable(table);
+
+            JSArray columnsJs = tableJs.getArray("columns");
+            for (int j = 0; j < columnsJs.length(); j++)
+            {
+               JSNode columnJs = columnsJs.getObject(j);
+               Column column = new Column(table, j + 1, columnJs.getString("name"), columnJs.getString("type"), columnJs.getBoolean("nullable"));
+               column.withUnique(columnJs.getBoolean("unique"));
+               table.withColumn(column);
+            }
+
+            JSArray indexesJs = tableJs.getArray("indexes");
+            for (int j = 0; j < indexesJs.length(); j++)
+            {
+               JSNode indexJs = indexesJs.getObject(j);
+               JSArray cols = indexJs.getArray("columns");
+               for (int k = 0; k < cols.length(); k++)
+                  table.makeIndex(table.getColumn(cols.getString(k)), indexJs.getString("name"), indexJs.getString("type"), indexJs.getBoolean("unique"));
+            }
+         }
+
+         JSArray fksJs = snapshot.getArray("fks");
+         for (int i = 0; i < fksJs.length(); i++)
+         {
+            JSNode fkJs = fksJs.getObject(i);
+            getColumn(fkJs.getString("fkTable"), fkJs.getString("fkColumn")).withPk(getColumn(fkJs.getString("pkTable"), fkJs.getString("pkColumn")));
+         }
+
+         return true;
+      }
+      catch (Exception ex)
+      {
+         log.warn("Unable to load schema snapshot '" + schemaSnapshot + "'", ex);
+         tables.clear();
+         return false;
+      }
+   }
+
+   /**
+    * Writes the reflected schema to <code>schemaSnapshot</code>.  This can also 
+    * be called offline to ship a snapshot with a deployment.
+    */
+   public void saveSnapshot()
+   {
+      try
+      {
+         JSArray tablesJs = new JSArray();
+         JSArray fksJs = new JSArray();
+
+         for (Table table : getTables())
+         {
+            JSArray columnsJs = new JSArray();
+            for (Column column : table.getColumns())
+            {
+               columnsJs.add(new JSNode("name", column.getName(), "type", column.getType(), "nullable", column.isNullable(), "unique", column.isUnique()));
+
+               if (column.getPk() != null)
+                  fksJs.add(new JSNode("fkTable", table.getName(), "fkColumn", column.getName(), "pkTable", column.getPk().getTable().getName(), "pkColumn", column.getPk().getName()));
+            }
+
+            JSArray indexesJs = new JSArray();
+            for (Index index : table.getIndexes())
+            {
+               JSArray cols = new JSArray();
+               for (Column column : index.getColumns())
+                  cols.add(column.getName());
+
+               indexesJs.add(new JSNode("name", index.getName(), "type", index.getType(), "unique", index.isUnique(), "columns", cols));
+            }
+
+            tablesJs.add(new JSNode("name", table.getName(), "columns", columnsJs, "indexes", indexesJs));
+         }
+
+         String fingerprint = snapshotFingerprint != null ? snapshotFingerprint : getSchemaFingerprint();
+         snapshotFingerprint = null;
+
+         JSNode snapshot = new JSNode("version", SNAPSHOT_VERSION, "fingerprint", fingerprint, "tables", tablesJs, "fks", fksJs);
+         Utils.write(new File(schemaSnapshot), snapshot.toString());
+      }
+      catch (Exception ex)
+      {
+         log.warn("Unable to save schema snapshot '" + schemaSnapshot + "'", ex);
+      }
+   }
+
+   /**
+    * A hash of the column, index and foreign key definitions from the 
+    * catalog, read in three queries no matter how many tables there are.
+    * The index query includes the unique indexes that are not constraints
+    * because reflectDb() reads those too.
+    * 
+    * @return the fingerprint or null if this db type does not support it
+    */
+   public String getSchemaFingerprint()
+   {
+      String[] sqls = null;
+      if (isType("mysql"))
+      {
+         sqls = new String[]{//
+               "SELECT table_name, column_name, data_type, is_nullable FROM information_schema.columns WHERE table_schema = DATABASE() ORDER BY table_name, ordinal_position", //
+               "SELECT table_name, index_name, column_name, non_unique FROM information_schema.statistics WHERE table_schema = DATABASE() ORDER BY table_name, index_name, seq_in_index", //
+               "SELECT table_name, constraint_name, column_name, referenced_table_name, referenced_column_name FROM information_schema.key_column_usage WHERE table_schema = DATABASE() AND referenced_table_name IS NOT NULL ORDER BY table_name, constraint_name, ordinal_position"};
+      }
+      else if (isType("postgres", "redshift"))
+      {
+         sqls = new String[]{//
+               "SELECT table_name, column_name, data_type, is_nullable FROM information_schema.columns WHERE table_schema = current_schema() ORDER BY table_name, ordinal_position", //
+               "SELECT tablename, indexname, indexdef FROM pg_indexes WHERE schemaname = current_schema() ORDER BY tablename, indexname", //
+               "SELECT table_name, constraint_name, column_name FROM information_schema.key_column_usage WHERE table_schema = current_schema() ORDER BY table_name, constraint_name, ordinal_position"};
+      }
+      else if (isType("h2"))
+      {
+         //-- H2 1.4.x has no key_column_usage view
+         sqls = new String[]{//
+               "SELECT table_name, column_name, type_name, is_nullable FROM information_schema.columns WHERE table_schema = SCHEMA() ORDER BY table_name, ordinal_position", //
+               "SELECT table_name, index_name, column_name, non_unique FROM information_schema.indexes WHERE table_schema = SCHEMA() ORDER BY table_name, index_name, ordinal_position", //
+               "SELECT fktable_name, fk_name, fkcolumn_name, pktable_name, pkcolumn_name FROM information_schema.cross_references WHERE fktable_schema = SCHEMA() ORDER BY fktable_name, fk_name, ordinal_position"};
+      }
+      else
+      {
+         return null;
+      }
+
+      Statement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+         MessageDigest digest = MessageDigest.getInstance("SHA-1");
+         stmt = getConnection().createStatement();
+         for (String sql : sqls)
+         {
+            rs = stmt.executeQuery(sql);
+            int cols = rs.getMetaData().getColumnCount();
+            while (rs.next())
+            {
+               for (int i = 1; i <= cols; i++)
+                  digest.update((rs.getString(i) + "|").getBytes("UTF-8"));
+            }
+            rs.close();
+         }
+         return getType() + ":" + Base64.getEncoder().encodeToString(digest.digest());
+      }
+      catch (Exception ex)
+      {
+         log.warn("Unable to fingerprint schema of db '" + getName() + "'", ex);
+         return null;
+      }
+      finally
+      {
+         SqlUtils.close(rs, stmt);
+      }
+   }
+
    public void configApi() throws Exception
    {
       List<String> relationshipStrs = new ArrayList();
@@ -1066,4 +1559,169 @@ public class SqlDb extends Db<SqlDb>
       return this;
    }
 
+   public int getStreamMinRows()
+   {
+      return streamMinRows;
+   }
+
+   public SqlDb withStreamMinRows(int streamMinRows)
+   {
+      this.streamMinRows = streamMinRows;
+      return this;
+   }
+
+   public int getFetchSize()
+   {
+      return fetchSize;
+   }
+
+   public SqlDb withFetchSize(int fetchSize)
+   {
+      this.fetchSize = fetchSize;
+      return this;
+   }
+
+   public String getCountPolicy()
+   {
+      return countPolicy;
+   }
+
+   public SqlDb withCountPolicy(String countPolicy)
+   {
+      this.countPolicy = countPolicy;
+      return this;
+   }
+
+   public long getCountCacheTtl()
+   {
+      return countCacheTtl;
+   }
+
+   public SqlDb withCountCacheTtl(long countCacheTtl)
+   {
+      this.countCacheTtl = countCacheTtl;
+      return this;
+   }
+
+   public int getCountCacheMax()
+   {
+      return countCacheMax;
+   }
+
+   public SqlDb withCountCacheMax(int countCacheMax)
+   {
+      this.countCacheMax = countCacheMax;
+      return this;
+   }
+
+   /**
+    * @param key the count sql and its values
+    * @return the cached count or -1 if there is no unexpired entry
+    */
+   public int getCachedCount(String key)
+   {
+      long[] entry = countCache.get(key);
+      if (entry != null)
+      {
+         if (entry[1] > System.currentTimeMillis())
+            return (int) entry[0];
+
+         countCache.remove(key);
+      }
+      return -1;
+   }
+
+   public void putCachedCount(String key, int count)
+   {
+      if (countCache.size() >= countCacheMax)
+      {
+         //-- evict expired entries first and start over if that is not enough
+         long now = System.currentTimeMillis();
+         countCache.values().removeIf(e -> e[1] <= now);
+         if (countCache.size() >= countCacheMax)
+            countCache.clear();
+      }
+      countCache.put(key, new long[]{count, System.currentTimeMillis() + countCacheTtl});
+   }
+
+   public int getSqlCacheMax()
+   {
+      return sqlCacheMax;
+   }
+
+   public SqlDb withSqlCacheMax(int sqlCacheMax)
+   {
+      this.sqlCacheMax = sqlCacheMax;
+      return this;
+   }
+
+   public int getStmtCacheSize()
+   {
+      return stmtCacheSize;
+   }
+
+   public SqlDb withStmtCacheSize(int stmtCacheSize)
+   {
+      this.stmtCacheSize = stmtCacheSize;
+      return this;
+   }
+
+   public boolean isServerPrepStmts()
+   {
+      return serverPrepStmts;
+   }
+
+   public SqlDb withServerPrepStmts(boolean serverPrepStmts)
+   {
+      this.serverPrepStmts = serverPrepStmts;
+      return this;
+   }
+
+   public String getSchemaSnapshot()
+   {
+      return schemaSnapshot;
+   }
+
+   public SqlDb withSchemaSnapshot(String schemaSnapshot)
+   {
+      this.schemaSnapshot = schemaSnapshot;
+      return this;
+   }
+
+   public int getUpsertBatchSize()
+   {
+      return upsertBatchSize;
+   }
+
+   public SqlDb withUpsertBatchSize(int upsertBatchSize)
+   {
+      this.upsertBatchSize = upsertBatchSize;
+      return this;
+   }
+
+   public long getSqlCacheHits()
+   {
+      return sqlCacheHits.get();
+   }
+
+   public long getSqlCacheMisses()
+   {
+      return sqlCacheMisses.get();
+   }
+
+   SqlQuery.SqlTemplate getSqlTemplate(String key)
+   {
+      SqlQuery.SqlTemplate template = sqlCache.get(key);
+      if (template != null)
+         sqlCacheHits.incrementAndGet();
+      else
+         sqlCacheMisses.incrementAndGet();
+      return template;
+   }
+
+   void putSqlTemplate(String key, SqlQuery.SqlTemplate template)
+   {
+      sqlCache.put(key, template);
+   }
+
 }
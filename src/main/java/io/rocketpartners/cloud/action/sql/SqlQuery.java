@@ -15,15 +15,22 @@
  */
 package io.rocketpartners.cloud.action.sql;
 
+import java.io.Closeable;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.Collection;
 import io.rocketpartners.cloud.model.Column;
 import io.rocketpartners.cloud.model.Index;
 import io.rocketpartners.cloud.model.Results;
+import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.rql.Group;
 import io.rocketpartners.cloud.rql.Order;
@@ -37,10 +44,13 @@ import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.utils.Rows;
 import io.rocketpartners.cloud.utils.Rows.Row;
 import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.SqlUtils.RowCursor;
 import io.rocketpartners.cloud.utils.Utils;
 
 public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select, SqlQuery>, SqlQuery>, Where<Where<Where, SqlQuery>, SqlQuery>, Group<Group<Group, SqlQuery>, SqlQuery>, Order<Order<Order, SqlQuery>, SqlQuery>, Page<Page<Page, SqlQuery>, SqlQuery>>
 {
+   static final Pattern ESTIMATED_ROWS = Pattern.compile("rows=(\\d+)");
+
    protected char stringQuote = '\'';
    protected char columnQuote = '"';
 
@@ -48,8 +58,31 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
 
    String         type        = null;
 
+   boolean        streaming   = false;
+
+   /**
+    * The ORDER BY columns when they include the full primary key and 
+    * can therefore be used to seek to the next page with an 'after' cursor.
+    */
+   List<Sort>     keysetSorts = null;
+
    List<Term>     joins;
 
+   /**
+    * The leaves whose values were bound as "?" params while the
+    * last statement was generated, only tracked on a cache miss.
+    */
+   List<Term>     bindLeaves  = null;
+   List<String>   bindCols    = null;
+
+   /**
+    * When true LIMIT and OFFSET are bound as "?" params, so every page of 
+    * a cached query shape shares its SQL.  <code>pagingValues</code> is the 
+    * number of those trailing values, which count queries leave off.
+    */
+   boolean        bindPaging   = false;
+   int            pagingValues = 0;
+
    public SqlQuery(Table table, List<Term> terms)
    {
       super(table, terms);
@@ -88,40 +121,387 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       String sql = getPreparedStmt();
 
       List values = getColValues();
+
+      if (streaming)
+         return doStreamingSelect(db, conn, sql, values);
+
       Rows rows = SqlUtils.selectRows(conn, sql, values);
       int foundRows = -1;
+      String countPolicy = null;
 
-      if (Chain.peek().get("foundRows") == null && Chain.first().getRequest().isMethod("GET"))
+      //-- there is no need to recount for 'after' pages, page 1 already returned the total
+      if (Chain.peek().get("foundRows") == null && Chain.first().getRequest().isMethod("GET") && page().getAfter() == null)
       {
-         if (rows.size() == 0)
-         {
-            foundRows = 0;
-         }
-         else if (db.isType("mysql"))
+         if (rows.size() == 0 || (page().getOffset() <= 0 && rows.size() < page().getLimit()))
          {
-            sql = "SELECT FOUND_ROWS()";
-            foundRows = SqlUtils.selectInt(conn, sql);
+            //-- a short first page already holds every row
+            foundRows = rows.size();
+            countPolicy = "exact";
          }
          else
          {
-            if (sql.indexOf("LIMIT ") > 0)
-               sql = sql.substring(0, sql.lastIndexOf("LIMIT "));
+            countPolicy = getCountPolicy();
+            foundRows = countRows(db, conn, sql, values, countPolicy);
+            if (foundRows < 0)
+               countPolicy = null;
+         }
+
+         Chain.peek().put("foundRows", foundRows);
+      }
+
+      Results results = new Results(this, foundRows, rows).withCountPolicy(countPolicy);
+
+      if (rows.size() > 0 && rows.size() == page().getLimit())
+      {
+         Term after = buildAfterTerm(rows.get(rows.size() - 1));
+         if (after != null)
+            results.withNext(after);
+      }
+
+      return results;
+   }
 
-            if (sql.indexOf("OFFSET ") > 0)
-               sql = sql.substring(0, sql.lastIndexOf("OFFSET "));
+   /**
+    * Builds an 'after' continuation term from the keyset sort columns of 
+    * the last row of a page.  Returns null if the order is not unique or a 
+    * sort value is null in which case callers fall back to offset paging.
+    * <p>
+    * Values are quoted with any quote or backslash escaped so that commas, 
+    * parens and quotes in the data survive the round trip through the url.
+    * <p>
+    * ex: after(orderDate,'2019-01-01 00:00:00.0',orderId,'10374')
+    */
+   protected Term buildAfterTerm(Row lastRow)
+   {
+      if (keysetSorts == null)
+         return null;
+
+      Term after = Term.term(null, "after");
+      for (Sort sort : keysetSorts)
+      {
+         String col = sort.getProperty();
+         if (col.indexOf(".") > -1)
+            col = col.substring(col.lastIndexOf(".") + 1, col.length());
 
-            if (sql.indexOf("ORDER BY ") > 0)
-               sql = sql.substring(0, sql.lastIndexOf("ORDER BY "));
+         Object value = lastRow.get(col);
+         if (value == null)
+            return null;
 
-            sql = "SELECT count(1) FROM ( " + sql + " ) as q";
+         Term.term(after, col);
+         Term.term(after, "'" + escape(value + "") + "'");
+      }
+      return after;
+   }
 
-            foundRows = SqlUtils.selectInt(conn, sql, getColValues());
+   /**
+    * Backslash escapes the characters that would end a quoted rql token.
+    */
+   static String escape(String value)
+   {
+      StringBuilder buff = new StringBuilder(value.length() + 4);
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if (c == '\\' || c == '\'' || c == '"')
+            buff.append('\\');
+         buff.append(c);
+      }
+      return buff.toString();
+   }
+
+   /**
+    * Builds the seek predicate that starts a page after the row identified 
+    * by the 'after' term, for sorts (a ASC, b DESC, pk ASC) this is
+    * <p>
+    * (a > ?) OR (a IN(?) AND b < ?) OR (a IN(?) AND b IN(?) AND pk > ?)
+    * <p>
+    * Equality is written as 'in' because 'eq' would turn a value containing 
+    * '*' or '%' into a LIKE.
+    */
+   protected Term buildSeekTerm(List<Sort> sorts, Term after)
+   {
+      if (sorts == null || after.size() != sorts.size() * 2)
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "The requested sort does not match the supplied 'after' continuation token: " + after);
+
+      for (int i = 0; i < sorts.size(); i++)
+      {
+         String col = sorts.get(i).getProperty();
+         if (col.indexOf(".") > -1)
+            col = col.substring(col.lastIndexOf(".") + 1, col.length());
+
+         if (!col.equalsIgnoreCase(after.getToken(i * 2)))
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "The requested sort does not match the supplied 'after' continuation token: " + after);
+      }
+
+      Term or = Term.term(null, "or");
+      for (int i = 0; i < sorts.size(); i++)
+      {
+         Term and = Term.term(or, "and");
+         for (int j = 0; j <= i; j++)
+         {
+            Sort sort = sorts.get(j);
+            String op = j < i ? "in" : (sort.isAsc() ? "gt" : "lt");
+            Term.term(and, op, sort.getProperty(), "'" + after.getToken(j * 2 + 1) + "'");
          }
+      }
+      return or;
+   }
+
+   /**
+    * @return true if every sort is on a column of this table that is not nullable
+    */
+   protected boolean isNotNull(List<Sort> sorts)
+   {
+      for (Sort sort : sorts)
+      {
+         String col = sort.getProperty();
+         if (col.indexOf(".") > -1)
+         {
+            if (!col.substring(0, col.lastIndexOf(".")).equalsIgnoreCase(table.getName()))
+               return false;
+            col = col.substring(col.lastIndexOf(".") + 1, col.length());
+         }
+
+         Column column = table.getColumn(col);
+         if (column == null || column.isNullable())
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Returns Results backed by a forward only cursor, on the request's
+    * connection, instead of a fully loaded Rows list.
+    * 
+    * @see SqlDb#isStreamable()
+    */
+   protected Results<Row> doStreamingSelect(SqlDb db, Connection conn, String sql, List values) throws Exception
+   {
+      int foundRows = -1;
+      String countPolicy = null;
+      if (Chain.peek().get("foundRows") == null && Chain.first().getRequest().isMethod("GET") && page().getAfter() == null)
+      {
+         countPolicy = getCountPolicy();
+         foundRows = countRows(db, conn, sql, values, countPolicy);
+         if (foundRows < 0)
+            countPolicy = null;
 
          Chain.peek().put("foundRows", foundRows);
       }
 
-      return new Results(this, foundRows, rows);
+      RowCursor cursor = SqlUtils.selectCursor(conn, sql, db.getFetchSize(), values);
+
+      Results results = new Results(this).withFoundRows(foundRows).withCountPolicy(countPolicy);
+      return results.withCursor(new KeysetCursor(results, cursor));
+   }
+
+   /**
+    * Adds the 'after' continuation term to the Results when the last row 
+    * of a full page is read from the cursor.  The term is built as the row
+    * passes because the cursor reuses the same Row for every record.
+    */
+   class KeysetCursor implements Iterator<Row>, Closeable
+   {
+      Results   results = null;
+      RowCursor cursor  = null;
+      int       count   = 0;
+
+      KeysetCursor(Results results, RowCursor cursor)
+      {
+         this.results = results;
+         this.cursor = cursor;
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         return cursor.hasNext();
+      }
+
+      @Override
+      public Row next()
+      {
+         Row row = cursor.next();
+         if (++count == page().getLimit())
+         {
+            Term after = buildAfterTerm(row);
+            if (after != null)
+               results.withNext(after);
+         }
+         return row;
+      }
+
+      @Override
+      public void close()
+      {
+         cursor.close();
+      }
+   }
+
+   /**
+    * Computes foundRows for <code>sql</code> according to <code>countPolicy</code>.
+    * <ul>
+    *   <li>none - no count is run and -1 is returned
+    *   <li>exact - SELECT FOUND_ROWS() for MySQL or a count(1) wrapper query for everything else
+    *   <li>cached - an exact count that is reused by the Db for <code>countCacheTtl</code> ms
+    *   <li>estimated - the planner's row estimate from EXPLAIN where supported, otherwise exact
+    * </ul>
+    * 
+    * @return the found rows or -1 if no count was taken
+    */
+   protected int countRows(SqlDb db, Connection conn, String sql, List values, String countPolicy) throws Exception
+   {
+      if ("none".equals(countPolicy))
+         return -1;
+
+      //-- the count sql has its paging stripped so its params are dropped too
+      values = values.subList(0, values.size() - pagingValues);
+
+      if ("estimated".equals(countPolicy))
+      {
+         int estimate = estimateRows(db, conn, sql, values);
+         if (estimate >= 0)
+            return estimate;
+      }
+
+      String countSql = toCountSql(sql);
+
+      if ("cached".equals(countPolicy))
+      {
+         String key = countSql + " " + values;
+         int count = db.getCachedCount(key);
+         if (count < 0)
+         {
+            count = SqlUtils.selectInt(conn, countSql, values);
+            db.putCachedCount(key, count);
+         }
+         return count;
+      }
+
+      if (!streaming && db.isType("mysql") && sql.indexOf("SQL_CALC_FOUND_ROWS") > 0)
+         return SqlUtils.selectInt(conn, "SELECT FOUND_ROWS()");
+
+      return SqlUtils.selectInt(conn, countSql, values);
+   }
+
+   /**
+    * Asks the database for its row estimate instead of counting.
+    * 
+    * @return the estimate or -1 if the db type does not support estimates
+    */
+   protected int estimateRows(SqlDb db, Connection conn, String sql, List values) throws Exception
+   {
+      sql = "EXPLAIN " + stripPaging(sql);
+
+      if (db.isType("mysql"))
+      {
+         return estimateMysqlRows(SqlUtils.selectRows(conn, sql, values));
+      }
+      else if (db.isType("postgres") || db.isType("redshift"))
+      {
+         //-- ex: "Seq Scan on orders  (cost=0.00..18334.00 rows=1000000 width=37)"
+         Rows plan = SqlUtils.selectRows(conn, sql, values);
+         if (plan.size() > 0)
+         {
+            Matcher m = ESTIMATED_ROWS.matcher(plan.get(0).getString(0) + "");
+            if (m.find())
+               return (int) Math.min(Integer.MAX_VALUE, Long.parseLong(m.group(1)));
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Multiplies the expected rows, 'rows' scaled by the 'filtered'
+    * percentage, of each table in a MySQL join plan.  Plans with
+    * subqueries, derived tables or unions can not be estimated this way.
+    * 
+    * @return the estimate or -1 if an exact count should be used instead
+    */
+   static int estimateMysqlRows(Rows plan)
+   {
+      if (plan.size() == 0)
+         return -1;
+
+      double estimate = 1;
+      for (Row row : plan)
+      {
+         String type = row.getString("select_type");
+         if (type != null && !type.equalsIgnoreCase("SIMPLE"))
+            return -1;
+
+         String rows = row.getString("rows");
+         if (rows == null)
+         {
+            //-- ex: "Impossible WHERE", anything else without a row count is not estimable
+            String extra = row.getString("Extra");
+            return extra != null && extra.startsWith("Impossible") ? 0 : -1;
+         }
+
+         estimate *= Double.parseDouble(rows);
+
+         String filtered = row.getString("filtered");
+         if (filtered != null)
+            estimate = estimate * Double.parseDouble(filtered) / 100;
+      }
+
+      return (int) Math.min(Integer.MAX_VALUE, Math.round(estimate));
+   }
+
+   /**
+    * Resolves the count policy from, in order, the endpoint/action config,
+    * the request's Collection config when it is for this table, and the Db.
+    */
+   public String getCountPolicy()
+   {
+      Object policy = null;
+      Chain chain = Chain.peek();
+      if (chain != null)
+      {
+         policy = chain.get("countPolicy");
+
+         if (Utils.empty(policy) && chain.getRequest() != null)
+         {
+            Collection collection = chain.getRequest().getCollection();
+            if (collection != null && collection.getTable() == table)
+               policy = collection.getConfig("countPolicy");
+         }
+      }
+
+      if (Utils.empty(policy) && getDb() != null)
+         policy = getDb().getCountPolicy();
+
+      return Utils.empty(policy) ? "exact" : policy.toString().trim().toLowerCase();
+   }
+
+   protected String toCountSql(String sql)
+   {
+      return "SELECT count(1) FROM ( " + stripPaging(sql) + " ) as q";
+   }
+
+   protected String stripPaging(String sql)
+   {
+      if (sql.indexOf("LIMIT ") > 0)
+         sql = sql.substring(0, sql.lastIndexOf("LIMIT "));
+
+      if (sql.indexOf("OFFSET ") > 0)
+         sql = sql.substring(0, sql.lastIndexOf("OFFSET "));
+
+      if (sql.indexOf("ORDER BY ") > 0)
+         sql = sql.substring(0, sql.lastIndexOf("ORDER BY "));
+
+      return sql;
+   }
+
+   public boolean isStreaming()
+   {
+      return streaming;
+   }
+
+   public SqlQuery withStreaming(boolean streaming)
+   {
+      this.streaming = streaming;
+      return this;
    }
 
    @Override
@@ -134,9 +514,141 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       return this;
    }
 
+   /**
+    * Generates the prepared statement or, if a query with the same shape 
+    * has already been generated, reuses its SQL and only rebinds the values.
+    * <p>
+    * The shape is every term with the values that are bound as "?" params
+    * replaced by a placeholder.  LIMIT and OFFSET are bound too so paging 
+    * through a result reuses one statement.  Queries with an 'after' cursor 
+    * are not cached because their seek terms are generated.
+    */
    public String getPreparedStmt()
    {
-      return toSql(true);
+      SqlDb db = getDb();
+      if (db == null || db.getSqlCacheMax() <= 0 || table == null || page().getAfter() != null)
+         return toSql(true);
+
+      List<Term> leaves = new ArrayList();
+      String key = buildShapeKey(leaves);
+
+      SqlTemplate template = db.getSqlTemplate(key);
+      if (template != null)
+      {
+         clearValues();
+         keysetSorts = template.keysetSorts;
+         for (int i = 0; i < template.leaves.length; i++)
+         {
+            Term leaf = leaves.get(template.leaves[i]);
+            withColValue(template.cols[i], unquote(print(leaf, null, true)));
+         }
+
+         //-- rebinds the LIMIT/OFFSET params in the order the template printed them
+         pagingValues = 0;
+         bindPaging = true;
+         try
+         {
+            buildLimitClause(page().getOffset(), page().getLimit());
+         }
+         finally
+         {
+            bindPaging = false;
+         }
+         return template.sql;
+      }
+
+      bindLeaves = new ArrayList();
+      bindCols = new ArrayList();
+      bindPaging = true;
+      try
+      {
+         String sql = toSql(true);
+
+         int[] idxs = new int[bindLeaves.size()];
+         for (int i = 0; i < idxs.length; i++)
+         {
+            idxs[i] = -1;
+            for (int j = 0; j < leaves.size() && idxs[i] < 0; j++)
+            {
+               if (leaves.get(j) == bindLeaves.get(i))
+                  idxs[i] = j;
+            }
+
+            //-- a value was bound from a term that is not part of the shape
+            if (idxs[i] < 0)
+               return sql;
+         }
+
+         db.putSqlTemplate(key, new SqlTemplate(sql, keysetSorts, idxs, bindCols.toArray(new String[bindCols.size()])));
+         return sql;
+      }
+      finally
+      {
+         bindLeaves = null;
+         bindCols = null;
+         bindPaging = false;
+      }
+   }
+
+   /**
+    * Everything that changes the generated SQL text, with the where clause 
+    * values that will be bound replaced by "?".  The replaced leaves are 
+    * added to <code>leaves</code> in the order they appear in the key.
+    */
+   protected String buildShapeKey(List<Term> leaves)
+   {
+      StringBuilder key = new StringBuilder(table.getName());
+      key.append('|').append(getType());
+      key.append('|').append(selectSql);
+      key.append('|').append(streaming).append('|').append(isCalcFoundRows());
+      key.append('|').append(joins);
+      key.append('|').append(select());
+      key.append('|').append(group());
+      key.append('|').append(order());
+      key.append('|').append(Integer.signum(page().getOffset())).append(',').append(Integer.signum(page().getLimit()));
+      key.append('|');
+      for (Term term : where().filters())
+      {
+         printShape(term, key, leaves);
+         key.append('&');
+      }
+      return key.toString();
+   }
+
+   protected void printShape(Term term, StringBuilder key, List<Term> leaves)
+   {
+      if (term.isLeaf())
+      {
+         Term parent = term.getParent();
+         if (parent == null || isCol(term) || (parent.hasToken("if") && parent.indexOf(term) > 0 && isNum(term)))
+         {
+            key.append(term);
+         }
+         else
+         {
+            //-- the printed value decides between NULL, LIKE or = so it is part of the shape
+            String val = Utils.dequote(print(term, null, true));
+            if (val == null || val.trim().equalsIgnoreCase("null"))
+            {
+               key.append("NULL");
+            }
+            else
+            {
+               key.append(val.indexOf('%') >= 0 ? "?%" : "?");
+               leaves.add(term);
+            }
+         }
+         return;
+      }
+
+      key.append(term.getToken()).append('(');
+      for (int i = 0; i < term.size(); i++)
+      {
+         if (i > 0)
+            key.append(',');
+         printShape(term.getTerm(i), key, leaves);
+      }
+      key.append(')');
    }
 
    public String getDynamicStmt()
@@ -147,6 +659,8 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
    protected String toSql(boolean preparedStmt)
    {
       clearValues();
+      keysetSorts = null;
+      pagingValues = 0;
 
       String select = this.selectSql;
 
@@ -256,7 +770,7 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
          parts.select = parts.select.substring(0, idx) + " DISTINCT " + parts.select.substring(idx, parts.select.length());
       }
 
-      if (Chain.peek() != null && Chain.peek().get("foundRows") == null && "mysql".equalsIgnoreCase(getType()) && parts.select.toLowerCase().trim().startsWith("select"))
+      if (isCalcFoundRows() && parts.select.toLowerCase().trim().startsWith("select"))
       {
          int idx = parts.select.toLowerCase().indexOf("select") + 6;
          parts.select = parts.select.substring(0, idx) + " SQL_CALC_FOUND_ROWS " + parts.select.substring(idx, parts.select.length());
@@ -321,21 +835,52 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       }
 
       List<Sort> sorts = order().getSorts();
-      if (sorts.isEmpty() && table != null && table.getPrimaryIndex() != null)
+      if (table != null && table.getPrimaryIndex() != null && (sorts.isEmpty() || parts.group == null))
       {
+         //-- sort by the primary key by default and use it to break ties
+         //-- for any requested sorts so the order is unique and the last 
+         //-- row of a page can be used as an 'after' cursor.
+         List<Sort> pkSorts = new ArrayList();
          for (Column col : table.getPrimaryIndex().getColumns())
          {
             if (parts.select.indexOf('*') >= 0 || parts.select.contains(col.getName()))
             {
-               Sort sort = new Sort(col.getName(), true);
-               sorts.add(sort);
+               boolean sorted = false;
+               for (Sort sort : sorts)
+               {
+                  String prop = sort.getProperty();
+                  if (prop.equalsIgnoreCase(col.getName()) || prop.toLowerCase().endsWith("." + col.getName().toLowerCase()))
+                     sorted = true;
+               }
+               if (!sorted)
+                  pkSorts.add(new Sort(col.getName(), true));
             }
             else
             {
-               sorts.clear();
+               pkSorts = null;
                break;
             }
          }
+
+         if (pkSorts != null)
+         {
+            sorts.addAll(pkSorts);
+
+            //-- a seek predicate silently skips rows with NULL sort 
+            //-- values so keyset paging needs every column to be NOT NULL
+            if (parts.group == null && selectSql == null && isNotNull(sorts))
+               keysetSorts = sorts;
+         }
+      }
+
+      Term after = page().getAfter();
+      if (after != null)
+      {
+         String where = print(buildSeekTerm(keysetSorts, after), null, preparedStmt);
+         if (empty(parts.where))
+            parts.where = " WHERE " + where;
+         else
+            parts.where += " AND " + where;
       }
       for (int i = 0; i < sorts.size(); i++)
       {
@@ -361,7 +906,8 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       //-- params OR the "page" and "pageSize"
       //-- query params.  
 
-      int offset = page().getOffset();
+      //-- 'after' pages seek past the previous page so they never skip rows
+      int offset = after != null ? 0 : page().getOffset();
       int limit = page().getLimit();
 
       parts.limit = this.buildLimitClause(offset, limit);
@@ -390,6 +936,11 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
 
    }
 
+   protected boolean isCalcFoundRows()
+   {
+      return !streaming && page().getAfter() == null && Chain.peek() != null && Chain.peek().get("foundRows") == null && "mysql".equalsIgnoreCase(getType()) && "exact".equals(getCountPolicy());
+   }
+
    protected String buildLimitClause(int offset, int limit)
    {
       String s = null;
@@ -399,31 +950,41 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
          {
             s = "LIMIT ";
             if (offset > 0)
-               s += offset;
+               s += printPaging(offset);
 
             if (limit >= 0)
             {
                if (!s.endsWith("LIMIT "))
                   s += ", ";
 
-               s += limit;
+               s += printPaging(limit);
             }
          }
          else
          {
             s = "";
             if (offset >= 0)
-               s += "OFFSET " + offset;
+               s += "OFFSET " + printPaging(offset);
 
             if (limit >= 0)
             {
-               s += " LIMIT " + limit;
+               s += " LIMIT " + printPaging(limit);
             }
          }
       }
       return s;
    }
 
+   protected String printPaging(int value)
+   {
+      if (!bindPaging)
+         return value + "";
+
+      withColValue(null, value);
+      pagingValues += 1;
+      return "?";
+   }
+
    public String replace(Term parent, Term leaf, int index, String col, String val)
    {
       if (val == null || val.trim().equalsIgnoreCase("null"))
@@ -436,6 +997,13 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       }
 
       withColValue(col, val);
+
+      if (bindLeaves != null)
+      {
+         bindLeaves.add(leaf);
+         bindCols.add(col);
+      }
+
       return "?";
    }
 
@@ -497,7 +1065,7 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
                String val = strings.get(i);
                if (val.charAt(0) != columnQuote)
                {
-                  val = Utils.dequote(val);//t.getToken();//go back to the unprinted/quoted version
+                  val = unquote(val);//go back to the unprinted/quoted version
                   strings.set(i, replace(term, t, i, col, val));
                }
             }
@@ -732,6 +1300,17 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       return quoteCol(columnName);
    }
 
+   /**
+    * Removes exactly the one pair of quotes added by {@link #asString(Term)} 
+    * so values that themselves start and end with a quote are bound intact.
+    */
+   protected String unquote(String val)
+   {
+      if (val.length() >= 2 && val.charAt(0) == stringQuote && val.charAt(val.length() - 1) == stringQuote)
+         return val.substring(1, val.length() - 1);
+      return val;
+   }
+
    public String asString(String string)
    {
       return stringQuote + string + stringQuote;
@@ -763,13 +1342,13 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
          if (parent.hasToken("eq", "ne", "w", "sw", "ew", "like", "wo"))
          {
             token = token.replace('*', '%');
-         }
 
-         boolean wildcard = token.indexOf('%') >= 0;
-         if (wildcard)
-         {
-            // escape underscores because SQL pattern matching enables you to use "_" to match any single character and we don't want that behavior
-            token = token.replace("_", "\\_");
+            boolean wildcard = token.indexOf('%') >= 0;
+            if (wildcard)
+            {
+               // escape underscores because SQL pattern matching enables you to use "_" to match any single character and we don't want that behavior
+               token = token.replace("_", "\\_");
+            }
          }
 
       }
@@ -907,4 +1486,24 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
          //         }
       }
    }
+
+   /**
+    * Generated SQL for a query shape and the leaves, by position in 
+    * the shape, and columns that supply its bound values.
+    */
+   static class SqlTemplate
+   {
+      final String     sql;
+      final List<Sort> keysetSorts;
+      final int[]      leaves;
+      final String[]   cols;
+
+      SqlTemplate(String sql, List<Sort> keysetSorts, int[] leaves, String[] cols)
+      {
+         this.sql = sql;
+         this.keysetSorts = keysetSorts;
+         this.leaves = leaves;
+         this.cols = cols;
+      }
+   }
 }
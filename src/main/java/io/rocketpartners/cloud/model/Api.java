@@ -16,10 +16,28 @@
 package io.rocketpartners.cloud.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.Utils;
 
 public class Api
 {
@@ -29,8 +47,25 @@ public class Api
    transient Hashtable        cache       = new Hashtable();
    transient protected String hash        = null;
 
+   /**
+    * Rebuilt whenever endpoints or collections are added 
+    * or removed.  Requests only ever see a complete table.
+    */
+   transient volatile RouteTable routeTable = null;
+
    protected transient Engine engine      = null;
 
+   protected transient Logger log         = LoggerFactory.getLogger(getClass());
+
+   /**
+    * The max number of Dbs started concurrently and how long
+    * each one may take before startup fails.
+    */
+   protected int              startupThreads = 4;
+   protected long             startupTimeout = 1000 * 60 * 5;
+   //-- not a ConcurrentHashMap, Dbs are not required to have a name
+   transient Map<String, Long> startupTimes  = Collections.synchronizedMap(new LinkedHashMap());
+
    protected boolean          debug       = false;
 
    protected int              id          = 0;
@@ -44,7 +79,15 @@ public class Api
    protected List<Endpoint>   endpoints   = new ArrayList();
    protected List<Action>     actions     = new ArrayList();
 
-   protected List<Collection> collections = new ArrayList();
+   //-- Dbs starting concurrently add their collections
+   protected List<Collection> collections = new CopyOnWriteArrayList();
+
+   //-- not 'this' because startup() holds that lock while the Dbs start
+   transient Object           collectionsLock = new Object();
+
+   //-- collections a Db adds while starting on a startup thread, registered 
+   //-- in configured Db order once every Db has started
+   transient ThreadLocal<List<Collection>> startingCollections = new ThreadLocal();
 
    public Api()
    {
@@ -64,12 +107,11 @@ public class Api
       starting = true;
       try
       {
-         for (Db db : dbs)
-         {
-            db.startup();
-         }
+         startupDbs();
 
          //removeExcludes();
+         routeTable = new RouteTable(this);
+
          started = true;
          return this;
       }
@@ -84,6 +126,133 @@ public class Api
       return started;
    }
 
+   /**
+    * Starts the Dbs on up to <code>startupThreads</code> threads so independent
+    * reflection phases overlap, failing if any Db takes longer than 
+    * <code>startupTimeout</code> millis once it has started.
+    */
+   public void startupDbs()
+   {
+      List<Db> toStart = new ArrayList();
+      for (Db db : dbs)
+      {
+         if (!db.isStarted())
+            toStart.add(db);
+      }
+
+      if (toStart.size() == 0)
+         return;
+
+      long start = System.currentTimeMillis();
+
+      if (toStart.size() == 1 || startupThreads <= 1)
+      {
+         for (Db db : toStart)
+         {
+            long dbStart = System.currentTimeMillis();
+            db.startup();
+            startupTimes.put(db.getName(), System.currentTimeMillis() - dbStart);
+         }
+      }
+      else
+      {
+         ExecutorService executor = Executors.newFixedThreadPool(Math.min(startupThreads, toStart.size()), new ThreadFactory()
+            {
+               public Thread newThread(Runnable r)
+               {
+                  Thread t = new Thread(r, "Api-" + name + "-startup");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+
+         try
+         {
+            CompletionService<Db> completion = new ExecutorCompletionService(executor);
+            final AtomicLongArray started = new AtomicLongArray(toStart.size());
+            final List<List<Collection>> added = new ArrayList();
+            List<Future<Db>> futures = new ArrayList();
+            for (int i = 0; i < toStart.size(); i++)
+            {
+               final int idx = i;
+               final Db db = toStart.get(i);
+               final List<Collection> dbCollections = new ArrayList();
+               added.add(dbCollections);
+               futures.add(completion.submit(new Callable<Db>()
+                  {
+                     public Db call() throws Exception
+                     {
+                        started.set(idx, System.currentTimeMillis());
+                        startingCollections.set(dbCollections);
+                        try
+                        {
+                           db.startup();
+                        }
+                        finally
+                        {
+                           startingCollections.remove();
+                        }
+                        startupTimes.put(db.getName(), System.currentTimeMillis() - started.get(idx));
+                        return db;
+                     }
+                  }));
+            }
+
+            for (int done = 0; done < toStart.size();)
+            {
+               Future<Db> future = completion.poll(100, TimeUnit.MILLISECONDS);
+               if (future != null)
+               {
+                  future.get();
+                  done += 1;
+                  continue;
+               }
+
+               long now = System.currentTimeMillis();
+               for (int i = 0; i < started.length(); i++)
+               {
+                  if (started.get(i) > 0 && !futures.get(i).isDone() && now - started.get(i) > startupTimeout)
+                     throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Db '" + toStart.get(i).getName() + "' did not start within " + startupTimeout + "ms");
+               }
+            }
+
+            //-- registering in configured order keeps the first configured Db's 
+            //-- collection ahead of a same named one no matter which Db finished first
+            for (List<Collection> dbCollections : added)
+            {
+               for (Collection collection : dbCollections)
+                  withCollection(collection);
+            }
+         }
+         catch (ExecutionException ex)
+         {
+            Utils.rethrow(ex.getCause());
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+            Utils.rethrow(ex);
+         }
+         finally
+         {
+            executor.shutdownNow();
+         }
+      }
+
+      log.info("Api '" + name + "' started " + toStart.size() + " dbs in " + (System.currentTimeMillis() - start) + "ms " + startupTimes);
+   }
+
+   /**
+    * @return how long each Db took to start in millis
+    */
+   public Map<String, Long> getStartupTimes()
+   {
+      synchronized (startupTimes)
+      {
+         return new LinkedHashMap(startupTimes);
+      }
+   }
+
    public void shutdown()
    {
       for (Db db : dbs)
@@ -140,6 +309,20 @@ public class Api
       }
    }
 
+   /**
+    * @return the precompiled Endpoint/Collection index used to route requests to this Api
+    */
+   public RouteTable getRouteTable()
+   {
+      RouteTable routeTable = this.routeTable;
+      if (routeTable == null)
+      {
+         routeTable = new RouteTable(this);
+         this.routeTable = routeTable;
+      }
+      return routeTable;
+   }
+
    public Api withEngine(Engine engine)
    {
       if (this.engine != engine)
@@ -246,7 +429,7 @@ public class Api
       if (name == null)
          return null;
 
-      for (Collection collection : collections)
+      for (Collection collection : getVisibleCollections())
          if (name.equalsIgnoreCase(collection.getName()))
             return collection;
       return null;
@@ -254,7 +437,7 @@ public class Api
 
    public Collection getCollection(Table tbl)
    {
-      for (Collection collection : collections)
+      for (Collection collection : getVisibleCollections())
       {
          if (collection.getTable() == tbl)
             return collection;
@@ -264,7 +447,7 @@ public class Api
 
    public Collection getCollection(Entity entity)
    {
-      for (Collection collection : collections)
+      for (Collection collection : getVisibleCollections())
       {
          if (collection.getEntity() == entity)
             return collection;
@@ -274,7 +457,7 @@ public class Api
 
    public Entity getEntity(Table table)
    {
-      for (Collection collection : collections)
+      for (Collection collection : getVisibleCollections())
       {
          if (collection.getTable() == table)
             return collection.getEntity();
@@ -292,7 +475,22 @@ public class Api
 
    public List<Collection> getCollections()
    {
-      return new ArrayList(collections);
+      return new ArrayList(getVisibleCollections());
+   }
+
+   /**
+    * @return the registered collections plus, on a startup thread, the 
+    *         collections the starting Db has added so far
+    */
+   List<Collection> getVisibleCollections()
+   {
+      List<Collection> starting = startingCollections.get();
+      if (starting == null || starting.isEmpty())
+         return collections;
+
+      List<Collection> visible = new ArrayList(collections);
+      visible.addAll(starting);
+      return visible;
    }
 
    public Api withCollections(Collection... collections)
@@ -304,13 +502,32 @@ public class Api
    }
 
    /**
-    * Bi-directional method also sets 'this' api on the collection
+    * Bi-directional method also sets 'this' api on the collection.
+    * <p>
+    * A Db starting on a startup thread has its collections held back
+    * until every Db has started, see {@link #startupDbs()}.
+    * 
     * @param collection
     */
    public Api withCollection(Collection collection)
    {
-      if (!collections.contains(collection))
-         collections.add(collection);
+      List<Collection> starting = startingCollections.get();
+      if (starting != null)
+      {
+         if (!starting.contains(collection))
+            starting.add(collection);
+      }
+      else
+      {
+         synchronized (collectionsLock)
+         {
+            if (!collections.contains(collection))
+            {
+               collections.add(collection);
+               routeTable = null;
+            }
+         }
+      }
 
       if (collection.getApi() != this)
          collection.withApi(this);
@@ -320,7 +537,11 @@ public class Api
 
    public void removeCollection(Collection collection)
    {
-      collections.remove(collection);
+      synchronized (collectionsLock)
+      {
+         collections.remove(collection);
+         routeTable = null;
+      }
    }
 
    public Db getDb(String name)
@@ -430,6 +651,8 @@ public class Api
          if (!inserted)
             endpoints.add(endpoint);
 
+         routeTable = null;
+
          if (endpoint.getApi() != this)
             endpoint.withApi(this);
       }
@@ -507,6 +730,28 @@ public class Api
       return this;
    }
 
+   public int getStartupThreads()
+   {
+      return startupThreads;
+   }
+
+   public Api withStartupThreads(int startupThreads)
+   {
+      this.startupThreads = startupThreads;
+      return this;
+   }
+
+   public long getStartupTimeout()
+   {
+      return startupTimeout;
+   }
+
+   public Api withStartupTimeout(long startupTimeout)
+   {
+      this.startupTimeout = startupTimeout;
+      return this;
+   }
+
    public boolean isMultiTenant()
    {
       return multiTenant;
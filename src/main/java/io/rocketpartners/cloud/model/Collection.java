@@ -32,8 +32,8 @@ public class Collection extends Rule<Collection>
    public Collection(Api api, Table table, String name)
    {
       withName(name);
-      withApi(api);
       withTable(table);
+      withApi(api);
    }
 
    public Collection(Table table)
@@ -2,6 +2,8 @@ package io.rocketpartners.cloud.model;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -9,8 +11,16 @@ import io.rocketpartners.cloud.utils.Utils;
 
 public class Path
 {
-   List<String> parts = null;
-   List<String> lc    = null;
+   static Map<String, Pattern>  regexCache = new ConcurrentHashMap();
+
+   List<String>                 parts      = null;
+   List<String>                 lc         = null;
+
+   /**
+    * Regexes for the wildcard parts of this path, compiled
+    * on first use instead of on every match.
+    */
+   transient volatile Pattern[] patterns   = null;
 
    public Path()
    {
@@ -109,7 +119,7 @@ public class Path
 
          if (myPart.indexOf("*") > -1)
          {
-            if (!Utils.wildcardMatch(myPart, theirPart))
+            if (!wildcardMatch(i, theirPart))
                return false;
          }
          else
@@ -140,7 +150,7 @@ public class Path
          String myPart = lc.get(index);
          if (myPart.indexOf("*") > -1)
          {
-            return Utils.wildcardMatch(myPart, part);
+            return wildcardMatch(index, part);
          }
          else
          {
@@ -151,12 +161,45 @@ public class Path
       return false;
    }
 
+   /**
+    * Equivalent to <code>Utils.wildcardMatch(lc.get(index), part)</code>
+    * but uses the precompiled pattern for the part.
+    */
+   boolean wildcardMatch(int index, String part)
+   {
+      String myPart = lc.get(index);
+
+      if (myPart.equals("*"))
+         return true;
+
+      if (Utils.empty(part))
+         return false;
+
+      Pattern[] patterns = this.patterns;
+      if (patterns == null || patterns.length != lc.size())
+      {
+         patterns = new Pattern[lc.size()];
+         for (int i = 0; i < lc.size(); i++)
+         {
+            if (Utils.isWildcard(lc.get(i)))
+               patterns[i] = Pattern.compile(Utils.wildcardToRegex(lc.get(i)));
+         }
+         this.patterns = patterns;
+      }
+
+      if (patterns[index] == null)
+         return myPart.equals(part);
+
+      return patterns[index].matcher(part).matches();
+   }
+
    public void addPart(String part)
    {
       if (!Utils.empty(part))
       {
          parts.add(part);
          lc.add(part.toLowerCase());
+         patterns = null;
       }
    }
 
@@ -227,7 +270,12 @@ public class Path
 
                   String regex = matchPart.substring(colonIdx + 1, matchPart.lastIndexOf("}")).trim();
 
-                  Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+                  Pattern pattern = regexCache.get(regex);
+                  if (pattern == null)
+                  {
+                     pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+                     regexCache.put(regex, pattern);
+                  }
                   Matcher matcher = pattern.matcher(pathPart);
 
                   if (!matcher.matches())
@@ -16,24 +16,42 @@
 package io.rocketpartners.cloud.model;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.Utils;
 
 public class Response
 {
+   /**
+    * Writes a response body directly onto the container's OutputStream 
+    * so large payloads do not have to be materialized as a String first.
+    */
+   public static interface Streamer
+   {
+      public void stream(OutputStream out) throws Exception;
+   }
+
    protected String                                 url               = null;
 
    protected Chain                                  chain             = null;
@@ -49,6 +67,8 @@ public class Response
    protected StringBuffer                           out               = new StringBuffer();
    protected JSNode                                json              = new JSNode("meta", new JSNode("createdOn", Utils.formatIso8601(new Date())), "data", new JSArray());
    protected String                                 text              = null;
+   protected Streamer                               streamer          = null;
+   protected Iterator<JSNode>                       cursor            = null;
 
    protected String                                 fileName          = null;
    protected File                                   file              = null;
@@ -199,11 +219,124 @@ public class Response
       return this;
    }
 
+   /**
+    * If this Response is streaming and nothing has been written 
+    * to <code>out</code>, the stream is materialized.  Containers
+    * should call {@link #stream(OutputStream)} instead.
+    */
    public String getOutput()
    {
+      if (isStreaming())
+      {
+         try
+         {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            streamer.stream(baos);
+            return new String(baos.toByteArray(), "UTF-8");
+         }
+         catch (Exception ex)
+         {
+            Utils.rethrow(ex);
+         }
+      }
       return out.toString();
    }
 
+   public Streamer getStreamer()
+   {
+      return streamer;
+   }
+
+   /**
+    * Sets a callback that will write the body directly onto the 
+    * container's OutputStream in place of the <code>out</code> buffer.
+    */
+   public Response withStreamer(Streamer streamer)
+   {
+      this.streamer = streamer;
+      return this;
+   }
+
+   /**
+    * Streams <code>length</code> bytes of <code>file</code> starting at 
+    * <code>start</code> with FileChannel.transferTo so the bytes are not 
+    * copied through a heap buffer.
+    */
+   public Response withStream(final File file, final long start, final long length)
+   {
+      this.json = null;
+      return withStreamer(new Streamer()
+         {
+            @Override
+            public void stream(OutputStream out) throws Exception
+            {
+               try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+               {
+                  //-- not closed, that would close the container's stream
+                  WritableByteChannel target = Channels.newChannel(out);
+
+                  long pos = start;
+                  long end = start + length;
+                  while (pos < end)
+                  {
+                     long sent = channel.transferTo(pos, end - pos, target);
+                     if (sent <= 0)
+                        break;
+                     pos += sent;
+                  }
+               }
+            }
+         });
+   }
+
+   /**
+    * Streams <code>in</code> through a fixed size buffer and then closes it.
+    */
+   public Response withStream(final InputStream in)
+   {
+      this.json = null;
+      return withStreamer(new Streamer()
+         {
+            @Override
+            public void stream(OutputStream out) throws Exception
+            {
+               try
+               {
+                  byte[] buffer = new byte[64 * 1024];
+                  int read = 0;
+                  while ((read = in.read(buffer)) > -1)
+                     out.write(buffer, 0, read);
+               }
+               finally
+               {
+                  in.close();
+               }
+            }
+         });
+   }
+
+   public boolean isStreaming()
+   {
+      return streamer != null && out.length() == 0;
+   }
+
+   /**
+    * Writes the body onto <code>out</code>, either by running the 
+    * streamer or by writing the <code>out</code> buffer.
+    */
+   public void stream(OutputStream out) throws Exception
+   {
+      if (isStreaming())
+      {
+         streamer.stream(out);
+      }
+      else
+      {
+         out.write(this.out.toString().getBytes());
+      }
+      out.flush();
+   }
+
    public void dump()
    {
       System.out.println(getDebug());
@@ -246,9 +379,117 @@ public class Response
          json = Utils.parseJsonMap(getContent());
       }
 
+      if (cursor != null && json != null)
+      {
+         Iterator<JSNode> it = cursor;
+         cursor = null;
+         try
+         {
+            JSArray data = json.getArray("data");
+            while (it.hasNext())
+               data.add(it.next());
+         }
+         finally
+         {
+            Utils.close(it);
+         }
+      }
+
       return json;
    }
 
+   public Iterator<JSNode> getCursor()
+   {
+      return cursor;
+   }
+
+   /**
+    * Closes the cursor without reading it, releasing any db resources 
+    * held open for it.  This is a noop if the cursor has already been read.
+    */
+   public Response closeCursor()
+   {
+      Iterator<JSNode> it = cursor;
+      cursor = null;
+      Utils.close(it);
+      return this;
+   }
+
+   /**
+    * Supplies the <code>data</code> records from a lazily read cursor.  
+    * <p>
+    * The records are serialized one at a time as they are read by 
+    * {@link #writeJson(OutputStream, boolean)}.  Calling getJson() or any
+    * method that reads the document drains the cursor into memory first.
+    * If the cursor is Closeable it is closed once it has been read. 
+    */
+   public Response withCursor(Iterator<JSNode> cursor)
+   {
+      this.cursor = cursor;
+      return this;
+   }
+
+   /**
+    * Serializes the json document onto <code>out</code>, reading the
+    * <code>data</code> records straight from the cursor if there is one.
+    * When there is a cursor the <code>data</code> is written ahead of the 
+    * other properties.
+    */
+   public void writeJson(OutputStream out, boolean pretty) throws Exception
+   {
+      if (cursor == null)
+      {
+         Utils.writeJson(getJson(), out, pretty, false);
+         return;
+      }
+
+      Iterator<JSNode> it = cursor;
+      cursor = null;
+      try
+      {
+         JsonGenerator gen = Utils.createJsonGenerator(out, pretty);
+         gen.writeStartObject();
+
+         //-- the data is written first so that meta values that are only
+         //-- known once the cursor has been read, like 'next', are included
+         List<String> keys = new ArrayList(json.keySet());
+         if (keys.remove("data"))
+            keys.add(0, "data");
+
+         for (String key : keys)
+         {
+            Object value = json.get(key);
+            gen.writeFieldName(key);
+
+            if ("data".equals(key))
+            {
+               gen.writeStartArray();
+               for (Object record : ((JSArray) value).asList())
+                  Utils.writeJson((JSNode) record, gen, false);
+
+               while (it.hasNext())
+                  Utils.writeJson(it.next(), gen, false);
+
+               gen.writeEndArray();
+            }
+            else if (value instanceof JSNode)
+            {
+               Utils.writeJson((JSNode) value, gen, false);
+            }
+            else
+            {
+               gen.writeObject(value);
+            }
+         }
+         gen.writeEndObject();
+         gen.flush();
+      }
+      finally
+      {
+         Utils.close(it);
+      }
+   }
+
    /**
     * @deprecated this method sets the root json document you should use withData and withMeta
     * instead unless you REALLY want to change to wrapper document structure.
@@ -257,6 +498,8 @@ public class Response
     */
    public Response withJson(JSNode json)
    {
+      Utils.close(cursor);
+      this.cursor = null;
       this.json = json;
       return this;
    }
@@ -338,6 +581,18 @@ public class Response
       return this;
    }
 
+   /**
+    * Sets foundRows and, when the count is not exact, also sets
+    * meta.countPolicy so clients know foundRows is "cached" or "estimated".
+    */
+   public Response withFoundRows(int foundRows, String countPolicy)
+   {
+      withFoundRows(foundRows);
+      if (countPolicy != null && !"exact".equalsIgnoreCase(countPolicy))
+         withMeta("countPolicy", countPolicy);
+      return this;
+   }
+
    public int getFoundRows()
    {
       return findInt("meta.foundRows");
@@ -7,13 +7,17 @@ import java.util.Map;
 
 import io.rocketpartners.cloud.rql.Query;
 import io.rocketpartners.cloud.rql.Term;
+import io.rocketpartners.cloud.utils.Rows.Row;
+import io.rocketpartners.cloud.utils.Utils;
 
 public class Results<M extends Map> implements Iterable<M>
 {
-   protected Query      query     = null;
-   protected List       rows      = new ArrayList();
-   protected List<Term> next      = new ArrayList();
-   protected int        foundRows = -1;
+   protected Query      query       = null;
+   protected List       rows        = new ArrayList();
+   protected List<Term> next        = new ArrayList();
+   protected int        foundRows   = -1;
+   protected String     countPolicy = null;
+   protected Iterator   cursor      = null;
 
    public Results(Query query)
    {
@@ -38,33 +42,94 @@ public class Results<M extends Map> implements Iterable<M>
       return this;
    }
 
+   /**
+    * If these Results are backed by a cursor, the returned iterator 
+    * reads from the cursor and can only be obtained once.
+    */
    @Override
    public Iterator<M> iterator()
    {
+      if (cursor != null)
+      {
+         Iterator<M> it = cursor;
+         cursor = null;
+         return it;
+      }
       return rows.iterator();
    }
 
    public int size()
    {
+      drain();
       return rows.size();
    }
 
    public M getRow(int index)
    {
+      drain();
       return (M) rows.get(index);
    }
 
    public Results setRow(int index, Map row)
    {
+      drain();
       rows.set(index, row);
       return this;
    }
 
    public List<M> getRows()
    {
+      drain();
       return rows;
    }
 
+   public boolean isCursor()
+   {
+      return cursor != null;
+   }
+
+   /**
+    * Backs these Results with a lazily read cursor instead of a row list so
+    * large selects can be consumed without holding every row in memory.
+    * <p>
+    * Callers that need random access or the size cause the cursor to be 
+    * drained into the row list.
+    */
+   public Results withCursor(Iterator<M> cursor)
+   {
+      this.cursor = cursor;
+      return this;
+   }
+
+   protected void drain()
+   {
+      if (cursor != null)
+      {
+         Iterator it = cursor;
+         cursor = null;
+         try
+         {
+            while (it.hasNext())
+            {
+               Object row = it.next();
+
+               //SqlUtils.RowCursor refills the same Row for every record 
+               if (row instanceof Row)
+               {
+                  Row copy = new Row();
+                  copy.putAll((Row) row);
+                  row = copy;
+               }
+               rows.add(row);
+            }
+         }
+         finally
+         {
+            Utils.close(it);
+         }
+      }
+   }
+
    public Results withRows(List rows)
    {
       this.rows = rows;
@@ -73,6 +138,7 @@ public class Results<M extends Map> implements Iterable<M>
 
    public Results withRow(Map row)
    {
+      drain();
       rows.add(row);
       return this;
    }
@@ -106,4 +172,18 @@ public class Results<M extends Map> implements Iterable<M>
       return this;
    }
 
+   /**
+    * @return how foundRows was computed ie: "exact", "cached" or "estimated", or null if unknown
+    */
+   public String getCountPolicy()
+   {
+      return countPolicy;
+   }
+
+   public Results withCountPolicy(String countPolicy)
+   {
+      this.countPolicy = countPolicy;
+      return this;
+   }
+
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of an Api's Endpoints and Collections indexed
+ * for fast request routing.
+ * <p>
+ * Endpoints are stored in a segment trie keyed by the lower case parts of
+ * their base <code>path</code> up to the first wildcard or regex segment.
+ * Endpoints built in code have those segments moved into their includePaths
+ * by {@link Endpoint#withPath(Path)} but the Wirer sets <code>path</code>
+ * directly so a configured path like "/*" keeps them.  An Endpoint can only
+ * match a request path that starts with the literal prefix of its path, so
+ * walking the trie along the request path yields the only Endpoints that
+ * need to have {@link Endpoint#matches(String, Path)} evaluated.
+ * <p>
+ * Collections are indexed by lower case name.
+ * <p>
+ * A RouteTable is built by {@link Api#getRouteTable()} and replaced, never
+ * modified, when the Api's Endpoints or Collections change.
+ */
+public class RouteTable
+{
+   protected Node                          root        = new Node();
+   protected Map<String, List<Collection>> collections = new HashMap();
+
+   public RouteTable(Api api)
+   {
+      List<Endpoint> endpoints = api.getEndpoints();
+      for (int i = 0; i < endpoints.size(); i++)
+      {
+         Endpoint endpoint = endpoints.get(i);
+
+         Node node = root;
+         Path path = endpoint.getPath();
+         if (path != null)
+         {
+            for (String part : path.lc)
+            {
+               //-- the rest of the path is matched by Endpoint.matches()
+               if (isWildcard(part))
+                  break;
+
+               Node child = node.children.get(part);
+               if (child == null)
+               {
+                  child = new Node();
+                  node.children.put(part, child);
+               }
+               node = child;
+            }
+         }
+         node.routes.add(new Route(i, endpoint));
+      }
+
+      for (Collection collection : api.getCollections())
+      {
+         String name = collection.getName();
+         if (name == null)
+            continue;
+
+         name = name.toLowerCase();
+
+         List<Collection> named = collections.get(name);
+         if (named == null)
+         {
+            named = new ArrayList();
+            collections.put(name, named);
+         }
+         named.add(collection);
+      }
+   }
+
+   /**
+    * Finds the Endpoints whose base path is a prefix of <code>path</code>.
+    *
+    * @param path
+    * @return the candidate Endpoints in the same order as Api.getEndpoints()
+    */
+   public List<Endpoint> findEndpoints(Path path)
+   {
+      List<Route> found = new ArrayList(root.routes);
+
+      Node node = root;
+      for (int i = 0; i < path.size(); i++)
+      {
+         node = node.children.get(path.lc.get(i));
+         if (node == null)
+            break;
+
+         found.addAll(node.routes);
+      }
+
+      Collections.sort(found);
+
+      List<Endpoint> endpoints = new ArrayList(found.size());
+      for (Route route : found)
+         endpoints.add(route.endpoint);
+
+      return endpoints;
+   }
+
+   /**
+    * @param name
+    * @return all Collections with a case insensitive name match in the same order as Api.getCollections()
+    */
+   public List<Collection> findCollections(String name)
+   {
+      if (name == null)
+         return Collections.EMPTY_LIST;
+
+      List<Collection> named = collections.get(name.toLowerCase());
+      return named != null ? named : Collections.EMPTY_LIST;
+   }
+
+   static boolean isWildcard(String part)
+   {
+      return part.indexOf("*") > -1 || part.indexOf("[") > -1 || part.indexOf("{") > -1;
+   }
+
+   static class Node
+   {
+      Map<String, Node> children = new HashMap();
+      List<Route>       routes   = new ArrayList();
+   }
+
+   static class Route implements Comparable<Route>
+   {
+      int      order    = 0;
+      Endpoint endpoint = null;
+
+      Route(int order, Endpoint endpoint)
+      {
+         this.order = order;
+         this.endpoint = endpoint;
+      }
+
+      @Override
+      public int compareTo(Route o)
+      {
+         return order < o.order ? -1 : (order == o.order ? 0 : 1);
+      }
+   }
+}
@@ -65,6 +65,25 @@ public class User
       withPermissions(permissions);
    }
 
+   public User copy()
+   {
+      User u = new User();
+      u.id = id;
+      u.username = username;
+      u.password = password;
+      u.displayName = displayName;
+      u.permissions = new HashSet(permissions);
+      u.roles = new HashSet(roles);
+      u.accessKey = accessKey;
+      u.secretKey = secretKey;
+      u.tenantId = tenantId;
+      u.tenantCode = tenantCode;
+      u.requestAt = requestAt;
+      u.remoteAddr = remoteAddr;
+      u.failedNum = failedNum;
+      return u;
+   }
+
    public String getUsername()
    {
       return username;
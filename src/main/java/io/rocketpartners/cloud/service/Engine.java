@@ -16,12 +16,15 @@
 package io.rocketpartners.cloud.service;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 
@@ -39,6 +42,8 @@ import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.Response.Streamer;
+import io.rocketpartners.cloud.model.RouteTable;
 import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Url;
 import io.rocketpartners.cloud.utils.Configurator;
@@ -337,6 +342,7 @@ public class Engine
          startup();
 
       Chain chain = null;
+      boolean deferClose = false;
 
       try
       {
@@ -436,71 +442,7 @@ public class Engine
 
             req.withApiPath(new Path(apiPath));
 
-            Path remainingPath = new Path(parts); //find the endpoint that matches the fewest path segments
-            for (int i = 0; i <= parts.size(); i++)
-            {
-               Path endpointPath = new Path(i == 0 ? Collections.EMPTY_LIST : parts.subList(0, i));
-
-               for (Endpoint e : a.getEndpoints())
-               {
-                  if (e.matches(req.getMethod(), endpointPath) //
-                        && e.matches(req.getMethod(), remainingPath))
-                  {
-                     req.withEndpointPath(endpointPath);
-                     req.withEndpoint(e);
-
-                     if (i < parts.size())
-                     {
-                        String collectionKey = parts.get(i);
-
-                        req.withCollectionKey(collectionKey);
-                        i += 1;
-
-                        for (io.rocketpartners.cloud.model.Collection collection : a.getCollections())
-                        {
-                           if (collectionKey.equalsIgnoreCase(collection.getName())//
-                                 && (collection.getIncludePaths().size() > 0 //
-                                       || collection.getExcludePaths().size() > 0))
-                           {
-                              if (collection.matches(req.getMethod(), endpointPath))
-                              {
-                                 req.withCollection(collection);
-                                 break;
-                              }
-                           }
-                        }
-
-                        if (req.getCollection() == null)
-                        {
-                           for (io.rocketpartners.cloud.model.Collection collection : a.getCollections())
-                           {
-                              if (collectionKey.equalsIgnoreCase(collection.getName()) //
-                                    && collection.getIncludePaths().size() == 0 //
-                                    && collection.getExcludePaths().size() == 0)
-                              {
-                                 req.withCollection(collection);
-                                 break;
-                              }
-                           }
-                        }
-
-                     }
-                     if (i < parts.size())
-                     {
-                        req.withEntityKey(parts.get(i));
-                        i += 1;
-                     }
-                     if (i < parts.size())
-                     {
-                        req.withSubCollectionKey(parts.get(i));
-                     }
-                     break;
-                  }
-               }
-
-               if (req.getEndpoint() != null)
-                  break;
-            }
+            matchEndpoint(req, a, parts);
          }
 
          //---------------------------------
@@ -547,25 +489,11 @@ public class Engine
          //            throw new ApiException(SC.SC_400_BAD_REQUEST, "It looks like your collectionKey is empty.  You need at least one more part to your url request path.");
          //         }
 
-         //this will get all actions specifically configured on the endpoint
-         List<Action> actions = req.getEndpoint().getActions(req);
-
-         //this matches for actions that can run across multiple endpoints.
-         //this might be something like an authorization or logging action
-         //that acts like a filter
-         for (Action a : req.getApi().getActions())
-         {
-            //http://host/{apipath}/{endpointpath}/{subpath}
-            //since these actions were not assigned to 
-            if (a.matches(req.getMethod(), req.getPath()))
-               actions.add(a);
-         }
+         List<Action> actions = findActions(req);
 
          if (actions.size() == 0)
             throw new ApiException(SC.SC_404_NOT_FOUND, "No Actions are configured to handle your request.  Check your server configuration.");
 
-         Collections.sort(actions);
-
          //-- appends info to chain.debug that can be used for debugging an d
          //-- for test cases to validate what actually ran
          if (req.isDebug())
@@ -576,12 +504,32 @@ public class Engine
 
          chain.withActions(actions).go();
 
-         ConnectionLocal.commit();
+         if (res.getCursor() != null && Chain.size() > 1)
+         {
+            //-- a nested call shares the thread's connections with its 
+            //-- caller so the records are read before the transaction ends
+            res.getJson();
+         }
+
+         if (res.getCursor() != null)
+         {
+            //-- the records are still being read from an open db cursor so 
+            //-- the commit and close have to wait until they have been written
+            res.withCursor(new CursorTransaction(chain, res.getCursor()));
+            deferClose = true;
+         }
+         else
+         {
+            ConnectionLocal.commit();
+         }
 
          return chain;
       }
       catch (Throwable ex)
       {
+         deferClose = false;
+         res.closeCursor();
+
          try
          {
             ConnectionLocal.rollback();
@@ -623,13 +571,16 @@ public class Engine
       }
       finally
       {
-         try
-         {
-            ConnectionLocal.close();
-         }
-         catch (Throwable t)
+         if (!deferClose)
          {
-            log.warn("Error closing connections", t);
+            try
+            {
+               ConnectionLocal.close();
+            }
+            catch (Throwable t)
+            {
+               log.warn("Error closing connections", t);
+            }
          }
 
          try
@@ -639,6 +590,7 @@ public class Engine
          catch (Throwable ex)
          {
             log.error("Error in Engine", ex);
+            res.closeCursor();
          }
 
          Chain.pop();
@@ -657,15 +609,23 @@ public class Engine
 
       if ("OPTIONS".equals(method))
       {
-         //
+         res.closeCursor();
       }
       else
       {
+         boolean streamJson = false;
+
          res.debug("\r\n<< response -------------\r\n");
          res.debug(res.getStatusCode());
 
          String output = res.getText();
-         if (output != null)
+         if (output == null && res.getStreamer() != null)
+         {
+            //-- an action is streaming its own body
+            if (debug || explain)
+               output = res.getOutput();
+         }
+         else if (output != null)
          {
             if (res.getContentType() == null)
             {
@@ -680,12 +640,31 @@ public class Engine
             res.withHeader("Location", res.getRedirect());
             res.withStatus(SC.SC_302_FOUND);
          }
-         else if (output == null && res.getJson() != null)
+         else if (output == null && (res.getCursor() != null || res.getJson() != null))
          {
-            output = res.getJson().toString();
-
             if (res.getContentType() == null)
                res.withContentType("application/json");
+
+            if (!debug && !explain)
+            {
+               streamJson = true;
+
+               //-- serialize the json straight onto the container's 
+               //-- OutputStream instead of copying it into res.out 
+               final Response response = res;
+               res.withStreamer(new Streamer()
+                  {
+                     @Override
+                     public void stream(OutputStream out) throws Exception
+                     {
+                        response.writeJson(out, true);
+                     }
+                  });
+            }
+            else
+            {
+               output = res.getJson().toString();
+            }
          }
 
          JSNode headers = new JSNode();
@@ -702,7 +681,13 @@ public class Engine
             res.debug(key + " " + buff);
          }
 
-         res.out(output);
+         if (output != null)
+            res.out(output);
+
+         //-- an action replaced the json body so the records will never 
+         //-- be read, release the cursor and its transaction now
+         if (!streamJson)
+            res.closeCursor();
 
          res.debug("\r\n-- done -----------------\r\n");
 
@@ -718,6 +703,108 @@ public class Engine
       }
    }
 
+   /**
+    * Commits and closes the thread's db connections once a streamed 
+    * record cursor has been fully read, or rolls back if reading
+    * fails or the cursor is closed early.
+    * <p>
+    * The records are read after service() has popped the request's Chain 
+    * so it is pushed back on the stack while the cursor is read.
+    */
+   class CursorTransaction implements Iterator<JSNode>, Closeable
+   {
+      Chain            chain  = null;
+      Iterator<JSNode> cursor = null;
+      boolean          done   = false;
+
+      CursorTransaction(Chain chain, Iterator<JSNode> cursor)
+      {
+         this.chain = chain;
+         this.cursor = cursor;
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         if (done)
+            return false;
+
+         Chain.get().push(chain);
+         try
+         {
+            boolean hasNext = cursor.hasNext();
+            if (!hasNext)
+               finish(true);
+            return hasNext;
+         }
+         catch (RuntimeException ex)
+         {
+            finish(false);
+            throw ex;
+         }
+         finally
+         {
+            Chain.pop();
+         }
+      }
+
+      @Override
+      public JSNode next()
+      {
+         Chain.get().push(chain);
+         try
+         {
+            return cursor.next();
+         }
+         catch (RuntimeException ex)
+         {
+            finish(false);
+            throw ex;
+         }
+         finally
+         {
+            Chain.pop();
+         }
+      }
+
+      @Override
+      public void close()
+      {
+         finish(false);
+      }
+
+      void finish(boolean commit)
+      {
+         if (done)
+            return;
+
+         done = true;
+         Utils.close(cursor);
+         try
+         {
+            if (commit)
+               ConnectionLocal.commit();
+            else
+               ConnectionLocal.rollback();
+         }
+         catch (Throwable t)
+         {
+            log.warn("Error ending transaction", t);
+         }
+         finally
+         {
+            try
+            {
+               ConnectionLocal.close();
+            }
+            catch (Throwable t)
+            {
+               log.warn("Error closing connections", t);
+            }
+         }
+      }
+   }
+
    boolean redirectPlural(Request req, Response res)
    {
       String collection = req.getCollectionKey();
@@ -743,6 +830,114 @@ public class Engine
       return false;
    }
 
+   /**
+    * Finds the Endpoint, and the Collection, entityKey and subCollectionKey,
+    * for the path <code>parts</code> that remain after the api (and tenant) 
+    * part of the url have been removed.
+    * 
+    * @param req
+    * @param api
+    * @param parts
+    */
+   public void matchEndpoint(Request req, Api api, List<String> parts)
+   {
+      RouteTable routes = api.getRouteTable();
+
+      Path remainingPath = new Path(parts); //find the endpoint that matches the fewest path segments
+
+      //-- only endpoints whose base path is a prefix of the request path can match
+      List<Endpoint> endpoints = routes.findEndpoints(remainingPath);
+
+      for (int i = 0; i <= parts.size(); i++)
+      {
+         Path endpointPath = new Path(i == 0 ? Collections.EMPTY_LIST : parts.subList(0, i));
+
+         for (Endpoint e : endpoints)
+         {
+            if (e.matches(req.getMethod(), endpointPath) //
+                  && e.matches(req.getMethod(), remainingPath))
+            {
+               req.withEndpointPath(endpointPath);
+               req.withEndpoint(e);
+
+               if (i < parts.size())
+               {
+                  String collectionKey = parts.get(i);
+
+                  req.withCollectionKey(collectionKey);
+                  i += 1;
+
+                  List<io.rocketpartners.cloud.model.Collection> collections = routes.findCollections(collectionKey);
+
+                  for (io.rocketpartners.cloud.model.Collection collection : collections)
+                  {
+                     if ((collection.getIncludePaths().size() > 0 //
+                                 || collection.getExcludePaths().size() > 0))
+                     {
+                        if (collection.matches(req.getMethod(), endpointPath))
+                        {
+                           req.withCollection(collection);
+                           break;
+                        }
+                     }
+                  }
+
+                  if (req.getCollection() == null)
+                  {
+                     for (io.rocketpartners.cloud.model.Collection collection : collections)
+                     {
+                        if (collection.getIncludePaths().size() == 0 //
+                              && collection.getExcludePaths().size() == 0)
+                        {
+                           req.withCollection(collection);
+                           break;
+                        }
+                     }
+                  }
+
+               }
+               if (i < parts.size())
+               {
+                  req.withEntityKey(parts.get(i));
+                  i += 1;
+               }
+               if (i < parts.size())
+               {
+                  req.withSubCollectionKey(parts.get(i));
+               }
+               break;
+            }
+         }
+
+         if (req.getEndpoint() != null)
+            break;
+      }
+   }
+
+   /**
+    * @return all of the actions configured on the request's Endpoint or 
+    *         the Api that match the request method and path, in run order
+    */
+   public List<Action> findActions(Request req)
+   {
+      //this will get all actions specifically configured on the endpoint
+      List<Action> actions = req.getEndpoint().getActions(req);
+
+      //this matches for actions that can run across multiple endpoints.
+      //this might be something like an authorization or logging action
+      //that acts like a filter
+      for (Action a : req.getApi().getActions())
+      {
+         //http://host/{apipath}/{endpointpath}/{subpath}
+         //since these actions were not assigned to 
+         if (a.matches(req.getMethod(), req.getPath()))
+            actions.add(a);
+      }
+
+      Collections.sort(actions);
+      return actions;
+   }
+
    Endpoint findEndpoint(Api api, String method, String pathStr)
    {
       Path path = new Path(pathStr);
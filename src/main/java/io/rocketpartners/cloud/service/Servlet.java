@@ -16,6 +16,7 @@
 package io.rocketpartners.cloud.service;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -281,17 +282,37 @@ public class Servlet extends HttpServlet
          else
          {
             String contentType = res.getContentType();
-            byte[] bytes = res.getOutput().getBytes();
-
             http.setContentType(contentType);
-            res.withHeader("Content-Length", bytes.length + "");
-            res.debug("Content-Length " + bytes.length + "");
 
-            out.write(bytes);
+            if (!res.isStreaming() && res.getFile() != null)
+            {
+               //-- a file is sent straight from disk instead of through the output buffer
+               File file = res.getFile();
+               http.setContentLengthLong(file.length());
+               res.withStream(file, 0, file.length());
+            }
+
+            if (res.isStreaming())
+            {
+               //-- unless set above the length is unknown so the container will chunk the output
+               res.stream(out);
+            }
+            else
+            {
+               byte[] bytes = res.getOutput().getBytes();
+
+               res.withHeader("Content-Length", bytes.length + "");
+               res.debug("Content-Length " + bytes.length + "");
+
+               out.write(bytes);
+            }
          }
       }
       finally
       {
+         //-- releases the db cursor if an error kept it from being streamed
+         res.closeCursor();
+
          out.flush();
          out.close();
       }
@@ -16,10 +16,13 @@
 package io.rocketpartners.cloud.service.lambda;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +36,7 @@ import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.Url;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.JsonStringOutputStream;
 import io.rocketpartners.cloud.utils.Utils;
 
 /**
@@ -202,6 +206,58 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
          headers.put(key, buff.toString());
       }
 
+      if (res.isStreaming())
+      {
+         //-- API Gateway wants the body as a string property of the response 
+         //-- document so the body is encoded as it is streamed into the envelope
+         //-- instead of being materialized and then encoded a second time.
+         //-- Binary bodies are base64 encoded because raw bytes >= 0x80 are 
+         //-- not valid inside a UTF-8 json string.
+         boolean base64 = !isText(res.getContentType());
+
+         OutputStream out = new BufferedOutputStream(outputStream);
+         out.write(("{\"isBase64Encoded\":" + base64 + ",\"statusCode\":" + res.getStatusCode() + ",\"headers\":" + headers.toString(false) + ",\"body\":\"").getBytes("UTF-8"));
+         try
+         {
+            if (base64)
+            {
+               //-- closing the encoder writes the final padding, the
+               //-- filter keeps that from closing the envelope stream
+               OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(out)
+                  {
+                     @Override
+                     public void write(byte[] b, int off, int len) throws IOException
+                     {
+                        out.write(b, off, len);
+                     }
+
+                     @Override
+                     public void close() throws IOException
+                     {
+                        flush();
+                     }
+                  });
+               res.stream(encoder);
+               encoder.close();
+            }
+            else
+            {
+               res.stream(new JsonStringOutputStream(out));
+            }
+         }
+         catch (Exception ex)
+         {
+            Utils.rethrow(ex);
+         }
+         finally
+         {
+            res.closeCursor();
+         }
+         out.write("\"}".getBytes("UTF-8"));
+         out.close();
+         return;
+      }
+
       String output = res.getOutput();
 
       responseJson.put("body", output);
@@ -210,6 +266,22 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
       writer.close();
    }
 
+   /**
+    * @return true if a body of <code>contentType</code> can be sent to API Gateway as a plain string
+    */
+   static boolean isText(String contentType)
+   {
+      if (contentType == null)
+         return true;
+
+      contentType = contentType.toLowerCase();
+      return contentType.startsWith("text/") //
+            || contentType.indexOf("json") > -1 //
+            || contentType.indexOf("xml") > -1 //
+            || contentType.indexOf("javascript") > -1 //
+            || contentType.indexOf("x-www-form-urlencoded") > -1;
+   }
+
    public void debug(String msg)
    {
       if (isDebug())
@@ -141,10 +141,7 @@ public class Configurator
             {
                doLoad = true;
 
-               for (Db db : ((Api) api).getDbs())
-               {
-                  db.startup();
-               }
+               api.startupDbs();
             }
          }
 
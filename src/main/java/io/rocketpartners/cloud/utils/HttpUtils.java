@@ -25,16 +25,20 @@ import java.net.URI;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -55,12 +59,17 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.TrustStrategy;
 
@@ -88,6 +97,14 @@ public class HttpUtils
    static Executor  pool                     = null;
    static Timer     timer                    = null;
 
+   static final String                   DEFAULT_CLIENT_KEY  = "default";
+
+   static HttpClientConfig               defaultClientConfig = new HttpClientConfig();
+   static Map<String, HttpClientConfig>  clientConfigs       = new ConcurrentHashMap();
+   static Map<String, Integer>           clientUsers         = new HashMap();
+   static Map<String, PooledHttpClient>  clients             = new ConcurrentHashMap();
+   static SSLConnectionSocketFactory     sslSocketFactory    = null;
+
    public static FutureResponse get(String url)
    {
       return rest("GET", url, null, null, -1);
@@ -132,13 +149,14 @@ public class HttpUtils
 
                Response response = new Response(url);
                HttpRequestBase req = null;
+               PooledHttpClient pooled = null;
                File tempFile = null;
 
                try
                {
-                  int timeout = 30000;
-
-                  HttpClient h = getHttpClient();
+                  //-- timeouts come from the host's HttpClientConfig
+                  pooled = acquireHttpClient(url);
+                  HttpClient h = pooled.client;
                   HttpResponse hr = null;
 
                   response.debug("--request header------");
@@ -192,9 +210,6 @@ public class HttpUtils
                      ((HttpEntityEnclosingRequestBase) req).setEntity(new StringEntity(request.getBody(), "UTF-8"));
                   }
 
-                  RequestConfig requestConfig = RequestConfig.custom().setSocketTimeout(timeout).setConnectTimeout(timeout).setConnectionRequestTimeout(timeout).build();
-                  req.setConfig(requestConfig);
-
                   hr = h.execute(req);
 
                   HttpEntity e = hr.getEntity();
@@ -298,6 +313,9 @@ public class HttpUtils
                      }
                   }
 
+                  if (pooled != null)
+                     releaseHttpClient(pooled);
+
                   // If this is a retryable response, submit it later
                   // Since we resetRetryCount upon any successful response, we are still guarding against a crazy large amount of retries with the TOTAL_MAX_RETRY_ATTEMPTS
                   if (retryable && this.getRetryCount() < request.getRetryAttempts() && !response.isSuccess() && this.getTotalRetries() < TOTAL_MAX_RETRY_ATTEMPTS)
@@ -375,49 +393,385 @@ public class HttpUtils
    }
 
    /**
-    * @see http://literatejava.com/networks/ignore-ssl-certificate-errors-apache-httpclient-4-4/
+    * Returns the shared client used for hosts that do not
+    * have their own {@link HttpClientConfig} registered.
+    * 
     * @return
     * @throws Exception
     */
-   public static synchronized HttpClient getHttpClient() throws Exception
+   public static HttpClient getHttpClient() throws Exception
    {
-      HttpClientBuilder b = HttpClientBuilder.create();
+      return getHttpClient(null);
+   }
 
-      // setup a Trust Strategy that allows all certificates.
-      //
-      SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy()
+   /**
+    * Returns a long lived, pooled client for the host of <code>url</code>.
+    * <p>
+    * Clients are only created for hosts that have been registered via
+    * {@link #withClientConfig(String, HttpClientConfig)}, every other
+    * host shares the default client.  Clients, and their connection pools,
+    * are reused across calls so that outbound calls do not pay a TCP+TLS 
+    * handshake every time.
+    * 
+    * @param url
+    * @return
+    * @throws Exception
+    */
+   public static HttpClient getHttpClient(String url) throws Exception
+   {
+      return getPooledHttpClient(url).client;
+   }
+
+   static PooledHttpClient getPooledHttpClient(String url) throws Exception
+   {
+      String key = getClientKey(url);
+
+      PooledHttpClient client = clients.get(key);
+      if (client == null)
+      {
+         synchronized (HttpUtils.class)
          {
-            public boolean isTrusted(X509Certificate[] arg0, String arg1) throws CertificateException
+            client = clients.get(key);
+            if (client == null)
             {
-               return true;
+               HttpClientConfig config = DEFAULT_CLIENT_KEY.equals(key) ? defaultClientConfig : clientConfigs.get(key);
+               client = buildHttpClient(config);
+               clients.put(key, client);
             }
-         }).build();
-      b.setSslcontext(sslContext);
+         }
+      }
+      return client;
+   }
+
+   /**
+    * Returns the client for <code>url</code> counted as in use until 
+    * {@link #releaseHttpClient(PooledHttpClient)} so that it is not 
+    * closed out from under the request if it is retired meanwhile.
+    */
+   static PooledHttpClient acquireHttpClient(String url) throws Exception
+   {
+      while (true)
+      {
+         PooledHttpClient client = getPooledHttpClient(url);
+         client.inFlight.incrementAndGet();
+         if (!client.retired)
+            return client;
+
+         //-- lost a race with retire(), the next lookup builds a fresh client
+         releaseHttpClient(client);
+      }
+   }
+
+   static void releaseHttpClient(PooledHttpClient client)
+   {
+      if (client.inFlight.decrementAndGet() == 0 && client.retired)
+         close(client);
+   }
+
+   /**
+    * Closes <code>client</code> now if it is idle, otherwise when 
+    * the last request using it is released.  The client must already
+    * have been removed from <code>clients</code>.
+    */
+   static void retire(PooledHttpClient client)
+   {
+      if (client == null)
+         return;
+
+      client.retired = true;
+      if (client.inFlight.get() == 0)
+         close(client);
+   }
+
+   /**
+    * Registers pool/keep-alive settings for the host of <code>url</code>.
+    * <p>
+    * If a client has already been built for the host, it is retired,
+    * finishing the requests that are using it, and a new one will be 
+    * built on the next request.  Each call should be paired with a 
+    * {@link #closeHttpClient(String)} so several Dbs can share a host.
+    *  
+    * @param url
+    * @param config
+    */
+   public static synchronized void withClientConfig(String url, HttpClientConfig config)
+   {
+      String key = getHostKey(url);
+      if (key == null)
+         throw new IllegalArgumentException("Unable to determine a host for url '" + url + "'");
+
+      Integer users = clientUsers.get(key);
+      clientUsers.put(key, users == null ? 1 : users + 1);
+
+      clientConfigs.put(key, config);
+      retire(clients.remove(key));
+   }
+
+   /**
+    * Sets the pool/keep-alive settings for the shared default client.
+    * 
+    * @param config
+    */
+   public static synchronized void withDefaultClientConfig(HttpClientConfig config)
+   {
+      defaultClientConfig = config;
+      retire(clients.remove(DEFAULT_CLIENT_KEY));
+   }
+
+   /**
+    * Releases one {@link #withClientConfig(String, HttpClientConfig)} 
+    * registration for the host of <code>url</code>.  When the last one
+    * is released the client is retired.  The host config is retained so 
+    * a later request will build a fresh client with the same settings.
+    * 
+    * @param url
+    */
+   public static synchronized void closeHttpClient(String url)
+   {
+      String key = getHostKey(url);
+      if (key == null)
+         return;
+
+      Integer users = clientUsers.get(key);
+      if (users != null && users > 1)
+      {
+         clientUsers.put(key, users - 1);
+         return;
+      }
+
+      clientUsers.remove(key);
+      retire(clients.remove(key));
+   }
+
+   public static synchronized void closeHttpClients()
+   {
+      for (String key : new ArrayList<String>(clients.keySet()))
+      {
+         retire(clients.remove(key));
+      }
+   }
+
+   /**
+    * @return connection pool stats (leased/pending/available/max) keyed by host
+    */
+   public static Map<String, PoolStats> getPoolStats()
+   {
+      Map<String, PoolStats> stats = new java.util.TreeMap();
+      for (Map.Entry<String, PooledHttpClient> entry : clients.entrySet())
+      {
+         stats.put(entry.getKey(), entry.getValue().connMgr.getTotalStats());
+      }
+      return stats;
+   }
+
+   static String getClientKey(String url)
+   {
+      String key = getHostKey(url);
+      if (key == null || !clientConfigs.containsKey(key))
+         key = DEFAULT_CLIENT_KEY;
+
+      return key;
+   }
+
+   static String getHostKey(String url)
+   {
+      if (Utils.empty(url))
+         return null;
+
+      try
+      {
+         URI uri = URI.create(url.trim());
+         if (uri.getHost() == null)
+            return null;
+
+         String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+         int port = uri.getPort();
+         if (port < 0)
+            port = "https".equals(scheme) ? 443 : 80;
+
+         return scheme + "://" + uri.getHost().toLowerCase() + ":" + port;
+      }
+      catch (Exception ex)
+      {
+         return null;
+      }
+   }
+
+   static void close(PooledHttpClient client)
+   {
+      if (client == null)
+         return;
+
+      try
+      {
+         client.client.close();
+      }
+      catch (Exception ex)
+      {
+         log.info("Exception trying to close http client", ex);
+      }
+   }
+
+   /**
+    * @see http://literatejava.com/networks/ignore-ssl-certificate-errors-apache-httpclient-4-4/
+    * @return
+    * @throws Exception
+    */
+   static synchronized SSLConnectionSocketFactory getSslSocketFactory() throws Exception
+   {
+      if (sslSocketFactory == null)
+      {
+         // setup a Trust Strategy that allows all certificates.
+         //
+         SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy()
+            {
+               public boolean isTrusted(X509Certificate[] arg0, String arg1) throws CertificateException
+               {
+                  return true;
+               }
+            }).build();
 
-      // don't check Hostnames, either.
-      //      -- use SSLConnectionSocketFactory.getDefaultHostnameVerifier(), if you don't want to weaken
-      HostnameVerifier hostnameVerifier = SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
+         // don't check Hostnames, either.
+         //      -- use SSLConnectionSocketFactory.getDefaultHostnameVerifier(), if you don't want to weaken
+         HostnameVerifier hostnameVerifier = SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
 
-      // here's the special part:
-      //      -- need to create an SSL Socket Factory, to use our weakened "trust strategy";
-      //      -- and create a Registry, to register it.
-      //
-      SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
-      //Registry<ConnectionSocketFactory> socketFactoryRegistry = ;
+         // here's the special part:
+         //      -- need to create an SSL Socket Factory, to use our weakened "trust strategy";
+         //      -- and create a Registry, to register it.
+         //
+         sslSocketFactory = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
+      }
+      return sslSocketFactory;
+   }
+
+   static PooledHttpClient buildHttpClient(final HttpClientConfig config) throws Exception
+   {
+      HttpClientBuilder b = HttpClientBuilder.create();
 
       // now, we create connection-manager using our Registry.
       //      -- allows multi-threaded use
-      PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslSocketFactory).build());
+      PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", getSslSocketFactory()).build());
+      connMgr.setMaxTotal(config.getMaxTotal());
+      connMgr.setDefaultMaxPerRoute(config.getMaxPerRoute());
+      connMgr.setValidateAfterInactivity(config.getValidateAfterInactivity());
       b.setConnectionManager(connMgr);
 
-      RequestConfig requestConfig = RequestConfig.custom().setSocketTimeout(DEFAULT_TIMEOUT).setConnectTimeout(DEFAULT_TIMEOUT).setConnectionRequestTimeout(DEFAULT_TIMEOUT).build();
+      //-- honor the server's Keep-Alive header but don't hold on to
+      //-- a connection longer than we are configured to
+      b.setKeepAliveStrategy(new ConnectionKeepAliveStrategy()
+         {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+            {
+               long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+               if (duration < 0 || duration > config.getKeepAlive())
+                  duration = config.getKeepAlive();
+               return duration;
+            }
+         });
+
+      //-- starts a background thread that closes expired and idle connections
+      b.evictExpiredConnections();
+      b.evictIdleConnections(config.getIdleTimeout(), TimeUnit.MILLISECONDS);
+
+      RequestConfig requestConfig = RequestConfig.custom().setSocketTimeout(config.getTimeout()).setConnectTimeout(config.getTimeout()).setConnectionRequestTimeout(config.getTimeout()).build();
       b.setDefaultRequestConfig(requestConfig);
 
-      // finally, build the HttpClient;
-      //      -- done!
-      HttpClient client = b.build();
+      return new PooledHttpClient(b.build(), connMgr);
+   }
 
-      return client;
+   static class PooledHttpClient
+   {
+      final CloseableHttpClient                client;
+      final PoolingHttpClientConnectionManager connMgr;
+      final AtomicInteger                      inFlight = new AtomicInteger();
+      volatile boolean                         retired  = false;
+
+      PooledHttpClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connMgr)
+      {
+         this.client = client;
+         this.connMgr = connMgr;
+      }
+   }
+
+   /**
+    * Connection pool and keep-alive settings for a pooled client. 
+    * All durations are in milliseconds.
+    */
+   public static class HttpClientConfig
+   {
+      protected int  maxTotal                = POOL_MAX;
+      protected int  maxPerRoute             = POOL_MAX;
+      protected long keepAlive               = 60000;
+      protected long idleTimeout             = 30000;
+      protected int  validateAfterInactivity = 2000;
+      protected int  timeout                 = DEFAULT_TIMEOUT;
+
+      public int getMaxTotal()
+      {
+         return maxTotal;
+      }
+
+      public HttpClientConfig withMaxTotal(int maxTotal)
+      {
+         this.maxTotal = maxTotal;
+         return this;
+      }
+
+      public int getMaxPerRoute()
+      {
+         return maxPerRoute;
+      }
+
+      public HttpClientConfig withMaxPerRoute(int maxPerRoute)
+      {
+         this.maxPerRoute = maxPerRoute;
+         return this;
+      }
+
+      public long getKeepAlive()
+      {
+         return keepAlive;
+      }
+
+      public HttpClientConfig withKeepAlive(long keepAlive)
+      {
+         this.keepAlive = keepAlive;
+         return this;
+      }
+
+      public long getIdleTimeout()
+      {
+         return idleTimeout;
+      }
+
+      public HttpClientConfig withIdleTimeout(long idleTimeout)
+      {
+         this.idleTimeout = idleTimeout;
+         return this;
+      }
+
+      public int getValidateAfterInactivity()
+      {
+         return validateAfterInactivity;
+      }
+
+      public HttpClientConfig withValidateAfterInactivity(int validateAfterInactivity)
+      {
+         this.validateAfterInactivity = validateAfterInactivity;
+         return this;
+      }
+
+      public int getTimeout()
+      {
+         return timeout;
+      }
+
+      public HttpClientConfig withTimeout(int timeout)
+      {
+         this.timeout = timeout;
+         return this;
+      }
    }
 
    private static void debug(Object obj)
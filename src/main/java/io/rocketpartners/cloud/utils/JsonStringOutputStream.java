@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Escapes UTF-8 bytes written to it so that they can be streamed 
+ * as the contents of a JSON string value.  The enclosing quotes
+ * are not written.
+ * <p>
+ * Only quote, backslash and control characters need escaping and all of 
+ * those are single byte in UTF-8 so the escaping can be done byte by byte.
+ */
+public class JsonStringOutputStream extends FilterOutputStream
+{
+   static final byte[] HEX = "0123456789abcdef".getBytes();
+
+   public JsonStringOutputStream(OutputStream out)
+   {
+      super(out);
+   }
+
+   @Override
+   public void write(int b) throws IOException
+   {
+      b = b & 0xFF;
+      switch (b)
+      {
+         case '"':
+            out.write('\\');
+            out.write('"');
+            break;
+         case '\\':
+            out.write('\\');
+            out.write('\\');
+            break;
+         case '\n':
+            out.write('\\');
+            out.write('n');
+            break;
+         case '\r':
+            out.write('\\');
+            out.write('r');
+            break;
+         case '\t':
+            out.write('\\');
+            out.write('t');
+            break;
+         default :
+            if (b < 0x20)
+            {
+               out.write('\\');
+               out.write('u');
+               out.write('0');
+               out.write('0');
+               out.write(HEX[b >> 4]);
+               out.write(HEX[b & 0xF]);
+            }
+            else
+            {
+               out.write(b);
+            }
+      }
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      for (int i = off; i < off + len; i++)
+         write(b[i]);
+   }
+}
@@ -104,6 +104,17 @@ public class Rows extends ArrayList<Row>
       add(lastRow);
    }
 
+   /**
+    * Clears <code>row</code> so it can be refilled with the next
+    * record's values instead of allocating a new Row.
+    */
+   void resetRow(Row row)
+   {
+      row.keys = keys;
+      row.cloned = false;
+      row.values.clear();
+   }
+
    public void put(String key, Object value)
    {
       lastRow.put(key, value);
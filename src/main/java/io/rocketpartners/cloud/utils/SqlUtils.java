@@ -20,6 +20,7 @@ package io.rocketpartners.cloud.utils;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -39,11 +40,15 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -307,6 +312,141 @@ public class SqlUtils
       return rows;
    }
 
+   /**
+    * Opens a forward only, read only cursor over the results of <code>sql</code>.
+    * <p>
+    * Unlike {@link #selectRows(Connection, String, Object...)} the rows are not
+    * loaded into memory.  The driver fetches <code>fetchSize</code> rows at a time
+    * and the cursor hands back the same Row instance refilled with each record
+    * so callers must copy any values they want to keep before calling next().
+    * <p>
+    * The cursor closes itself when exhausted but callers must call 
+    * {@link RowCursor#close()} if they stop reading early.
+    */
+   public static RowCursor selectCursor(Connection conn, String sql, int fetchSize, Object... vals) throws Exception
+   {
+      if (vals != null && vals.length == 1 && vals[0] instanceof List)
+         vals = ((List) vals[0]).toArray();
+
+      notifyBefore("selectRows", sql, vals);
+
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      RowCursor cursor = null;
+
+      try
+      {
+         stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+         if (fetchSize != 0)
+            stmt.setFetchSize(fetchSize);
+
+         for (int i = 0; vals != null && i < vals.length; i++)
+         {
+            stmt.setObject(i + 1, vals[i]);
+         }
+         rs = stmt.executeQuery();
+         cursor = new RowCursor(sql, vals, stmt, rs);
+      }
+      catch (Exception e)
+      {
+         ex = e;
+         close(rs, stmt);
+         throw e;
+      }
+      finally
+      {
+         notifyAfter("selectRows", sql, vals, ex, cursor);
+      }
+      return cursor;
+   }
+
+   public static class RowCursor implements Iterator<Row>, Closeable
+   {
+      String    sql     = null;
+      Object[]  vals    = null;
+      Statement stmt    = null;
+      ResultSet rs      = null;
+      Rows      rows    = new Rows();
+      Row       row     = null;
+      int       cols    = 0;
+      Boolean   hasNext = null;
+
+      RowCursor(String sql, Object[] vals, Statement stmt, ResultSet rs) throws SQLException
+      {
+         this.sql = sql;
+         this.vals = vals;
+         this.stmt = stmt;
+         this.rs = rs;
+
+         ResultSetMetaData rsmd = rs.getMetaData();
+         cols = rsmd.getColumnCount();
+         for (int i = 1; i <= cols; i++)
+         {
+            rows.addKey(rsmd.getColumnLabel(i));
+         }
+         row = rows.addRow();
+         rows.clear();
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         if (hasNext == null)
+         {
+            try
+            {
+               hasNext = rs != null && rs.next();
+            }
+            catch (SQLException ex)
+            {
+               close();
+               Utils.rethrow(ex);
+            }
+
+            if (!hasNext)
+               close();
+         }
+         return hasNext;
+      }
+
+      @Override
+      public Row next()
+      {
+         if (!hasNext())
+            throw new NoSuchElementException();
+
+         hasNext = null;
+
+         rows.resetRow(row);
+         for (int i = 0; i < cols; i++)
+         {
+            Object o = null;
+            try
+            {
+               o = rs.getObject(i + 1);
+            }
+            catch (Exception e)
+            {
+               notifyError("selectRows", sql, vals, e);
+            }
+            row.add(o);
+         }
+         return row;
+      }
+
+      @Override
+      public void close()
+      {
+         if (rs != null)
+         {
+            SqlUtils.close(rs, stmt);
+            rs = null;
+            stmt = null;
+         }
+      }
+   }
+
    public static Row selectRow(Connection conn, String sql, Object... vals) throws Exception
    {
       Rows rows = selectRows(conn, sql, vals);
@@ -504,6 +644,58 @@ public class SqlUtils
       return primaryKeys;
    }
 
+   /**
+    * Runs <code>sql</code> once per row, with the row's values for <code>cols</code>
+    * as params, in a single JDBC batch.
+    * 
+    * @param keyCols if not null, the generated keys are read back for these columns
+    * @return the generated key of each row if <code>keyCols</code> was supplied
+    */
+   public static List<Object> executeBatch(Connection conn, String sql, List<String> cols, List<Map<String, Object>> rows, String[] keyCols) throws Exception
+   {
+      List<Object> keys = new ArrayList();
+
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+         notifyBefore("executeBatch", sql, rows);
+
+         stmt = keyCols != null ? conn.prepareStatement(sql, keyCols) : conn.prepareStatement(sql);
+         for (Map<String, Object> row : rows)
+         {
+            for (int i = 0; i < cols.size(); i++)
+            {
+               stmt.setObject(i + 1, row.get(cols.get(i)));
+            }
+            stmt.addBatch();
+         }
+         stmt.executeBatch();
+
+         if (keyCols != null)
+         {
+            rs = stmt.getGeneratedKeys();
+            while (rs.next())
+            {
+               keys.add(rs.getObject(1));
+            }
+         }
+      }
+      catch (Exception e)
+      {
+         notifyError("executeBatch", sql, rows, e);
+         ex = new Exception(e.getMessage() + " SQL=" + sql, Utils.getCause(e));
+         throw ex;
+      }
+      finally
+      {
+         close(rs, stmt);
+         notifyAfter("executeBatch", sql, rows, ex, keys);
+      }
+      return keys;
+   }
+
    public static Object insertMap(Connection conn, String tableName, Map row) throws Exception
    {
       List keys = new ArrayList();
@@ -560,6 +752,92 @@ public class SqlUtils
       }
    }
 
+   /**
+    * Inserts the rows in one JDBC batch per distinct set of columns so a row 
+    * never binds NULL for a column it does not have, which would override the 
+    * column's default.  Unlike insertMaps, errors are thrown.
+    * 
+    * @return the generated key of each row in order, or null if the driver 
+    * did not return a generated key for every row
+    */
+   public static List<Object> insertBatch(Connection conn, String tableName, List<Map> rows) throws Exception
+   {
+      Map<List<String>, List<Integer>> groups = new LinkedHashMap();
+      for (int i = 0; i < rows.size(); i++)
+      {
+         List<String> cols = new ArrayList(rows.get(i).keySet());
+         Collections.sort(cols);
+
+         List<Integer> group = groups.get(cols);
+         if (group == null)
+         {
+            group = new ArrayList();
+            groups.put(cols, group);
+         }
+         group.add(i);
+      }
+
+      Object[] keys = new Object[rows.size()];
+      boolean allKeys = true;
+      for (List<String> cols : groups.keySet())
+      {
+         List<Integer> group = groups.get(cols);
+         List<Map> groupRows = new ArrayList();
+         for (Integer i : group)
+            groupRows.add(rows.get(i));
+
+         List<Object> groupKeys = insertBatch(conn, tableName, cols, groupRows);
+         if (groupKeys == null)
+         {
+            allKeys = false;
+            continue;
+         }
+
+         for (int i = 0; i < group.size(); i++)
+            keys[group.get(i)] = groupKeys.get(i);
+      }
+      return allKeys ? Arrays.asList(keys) : null;
+   }
+
+   static List<Object> insertBatch(Connection conn, String tableName, List<String> cols, List<Map> rows) throws Exception
+   {
+      String sql = buildInsertSQL(conn, tableName, cols.toArray());
+
+      List<Object> keys = new ArrayList();
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+         notifyBefore("insertBatch", sql, rows);
+
+         stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+         for (Map row : rows)
+         {
+            for (int i = 0; i < cols.size(); i++)
+               stmt.setObject(i + 1, row.get(cols.get(i)));
+            stmt.addBatch();
+         }
+         stmt.executeBatch();
+
+         rs = stmt.getGeneratedKeys();
+         while (rs != null && rs.next())
+            keys.add(rs.getObject(1));
+      }
+      catch (Exception e)
+      {
+         notifyError("insertBatch", sql, rows, e);
+         ex = new Exception(e.getMessage() + " SQL=" + sql, Utils.getCause(e));
+         throw ex;
+      }
+      finally
+      {
+         close(rs, stmt);
+         notifyAfter("insertBatch", sql, rows, ex, keys);
+      }
+      return keys.size() == rows.size() ? keys : null;
+   }
+
    public static void insert(Connection conn, Object o) throws Exception
    {
       insert(conn, o.getClass().getSimpleName(), o);
@@ -775,6 +1053,37 @@ public class SqlUtils
 
    }
 
+   public static String buildMergeSQL(Connection conn, String tableName, List<String> cols, List<String> keyCols)
+   {
+      StringBuffer sql = new StringBuffer("MERGE INTO ");
+      sql.append(quote(conn, tableName)).append(" (");
+      sql.append(getColumnStr(conn, cols)).append(") KEY(");
+      sql.append(getColumnStr(conn, keyCols)).append(") VALUES (");
+      sql.append(getQuestionMarkStr(cols.size())).append(")");
+
+      return sql.toString();
+   }
+
+   public static String buildInsertOnConflictSQL(Connection conn, String tableName, List<String> cols, List<String> keyCols)
+   {
+      StringBuffer sql = new StringBuffer(buildInsertSQL(conn, tableName, cols.toArray()));
+      sql.append(" ON CONFLICT (").append(getColumnStr(conn, keyCols)).append(")");
+
+      List<String> updates = new ArrayList();
+      for (String col : cols)
+      {
+         if (!keyCols.contains(col))
+            updates.add(quote(conn, col) + " = EXCLUDED." + quote(conn, col));
+      }
+
+      if (updates.isEmpty())
+         sql.append(" DO NOTHING");
+      else
+         sql.append(" DO UPDATE SET ").append(Utils.implode(", ", updates));
+
+      return sql.toString();
+   }
+
    /*
    +------------------------------------------------------------------------------+
    | DELETE UTILS
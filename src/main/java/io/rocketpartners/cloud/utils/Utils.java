@@ -97,6 +97,8 @@ public class Utils
 
    protected static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+   static final JsonFactory        JSON_FACTORY       = new JsonFactory();
+
    public static String toJson(JSNode node)
    {
       return toJson(node, true, false);
@@ -107,12 +109,7 @@ public class Utils
       try
       {
          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-         JsonGenerator json = new JsonFactory().createGenerator(baos);
-         if (pretty)
-            json.useDefaultPrettyPrinter();
-
-         writeNode(node, json, new HashSet(), lowercaseNames);
-         json.flush();
+         writeJson(node, baos, pretty, lowercaseNames);
          baos.flush();
 
          return new String(baos.toByteArray());
@@ -123,6 +120,36 @@ public class Utils
       }
    }
 
+   /**
+    * Serializes <code>node</code> directly onto <code>out</code> without
+    * materializing an intermediate String.  <code>out</code> is flushed 
+    * but not closed.
+    */
+   public static void writeJson(JSNode node, OutputStream out, boolean pretty, boolean lowercaseNames) throws Exception
+   {
+      JsonGenerator json = createJsonGenerator(out, pretty);
+      writeJson(node, json, lowercaseNames);
+      json.flush();
+   }
+
+   public static void writeJson(JSNode node, JsonGenerator json, boolean lowercaseNames) throws Exception
+   {
+      writeNode(node, json, new HashSet(), lowercaseNames);
+   }
+
+   /**
+    * JsonFactory is thread safe and expensive to create so all 
+    * generators are created from the one shared instance.
+    */
+   public static JsonGenerator createJsonGenerator(OutputStream out, boolean pretty) throws IOException
+   {
+      JsonGenerator json = JSON_FACTORY.createGenerator(out);
+      json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      if (pretty)
+         json.useDefaultPrettyPrinter();
+      return json;
+   }
+
    static void writeNode(JSNode node, JsonGenerator json, HashSet visited, boolean lowercaseNames) throws Exception
    {
       Property href = node.getProperty("href");
@@ -0,0 +1,207 @@
+package io.rocketpartners.cloud.action.dynamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import io.rocketpartners.cloud.action.dynamo.DynamoDb.DynamoDbIndex;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.Table;
+
+public class TestDynamoDbBatchWrite
+{
+   static Table table(DynamoDb db)
+   {
+      Table table = new Table(db, "orders");
+      table.makeColumn("hk", "S");
+      table.makeColumn("value", "S");
+
+      DynamoDbIndex index = new DynamoDbIndex(table, DynamoDbIndex.PRIMARY_INDEX, DynamoDbIndex.PRIMARY_TYPE);
+      index.witHashKey(table.getColumn("hk"));
+      return table;
+   }
+
+   static List<Map<String, Object>> rows(String... keyValues)
+   {
+      List<Map<String, Object>> rows = new ArrayList();
+      for (int i = 0; i < keyValues.length; i += 2)
+      {
+         Map<String, Object> row = new HashMap();
+         row.put("hk", keyValues[i]);
+         row.put("value", keyValues[i + 1]);
+         rows.add(row);
+      }
+      return rows;
+   }
+
+   static String key(WriteRequest write)
+   {
+      return write.getPutRequest().getItem().get("hk").getS();
+   }
+
+   @Test
+   public void testUpsertKeepsTheLastRowPerKey() throws Exception
+   {
+      MockClient client = new MockClient();
+      DynamoDb db = new DynamoDb().withDynamoClient(client);
+
+      List<String> keys = db.upsert(table(db), rows("a", "1", "b", "1", "a", "2"));
+      assertEquals(Arrays.asList("a", "b", "a"), keys);
+
+      assertEquals(1, client.batches.size());
+      List<WriteRequest> batch = client.batches.get(0);
+      assertEquals(2, batch.size());
+      assertEquals("b", key(batch.get(0)));
+      assertEquals("a", key(batch.get(1)));
+      assertEquals("2", batch.get(1).getPutRequest().getItem().get("value").getS());
+   }
+
+   @Test
+   public void testWritesAreSplitIntoBatches() throws Exception
+   {
+      MockClient client = new MockClient();
+      DynamoDb db = new DynamoDb().withDynamoClient(client).withBatchMax(3);
+
+      db.upsert(table(db), rows("a", "1", "b", "1", "c", "1", "d", "1", "e", "1", "f", "1", "g", "1"));
+
+      assertEquals(3, client.batches.size());
+      List<String> written = new ArrayList();
+      List<Integer> sizes = new ArrayList();
+      for (List<WriteRequest> batch : client.batches)
+      {
+         sizes.add(batch.size());
+         for (WriteRequest write : batch)
+            written.add(key(write));
+      }
+      Collections.sort(sizes);
+      Collections.sort(written);
+      assertEquals(Arrays.asList(1, 3, 3), sizes);
+      assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g"), written);
+   }
+
+   @Test
+   public void testUnprocessedItemsAreResent() throws Exception
+   {
+      MockClient client = new MockClient();
+      client.unprocessed = 1;
+      DynamoDb db = new DynamoDb().withDynamoClient(client);
+
+      db.upsert(table(db), rows("a", "1", "b", "1"));
+
+      assertEquals(2, client.batches.size());
+      assertEquals(client.batches.get(0), client.batches.get(1));
+   }
+
+   @Test
+   public void testUnprocessedItemsGiveUpAfterRetryMax() throws Exception
+   {
+      MockClient client = new MockClient();
+      client.unprocessed = Integer.MAX_VALUE;
+      DynamoDb db = new DynamoDb().withDynamoClient(client).withRetryMax(1);
+
+      try
+      {
+         db.upsert(table(db), rows("a", "1", "b", "1"));
+         fail("the write should have given up");
+      }
+      catch (ApiException ex)
+      {
+         assertTrue(ex.getMessage(), ex.getMessage().indexOf("unprocessed") > -1);
+      }
+      assertEquals(2, client.batches.size());
+   }
+
+   @Test
+   public void testBatchErrorCancelsTheRemainingBatches() throws Exception
+   {
+      final CountDownLatch never = new CountDownLatch(1);
+      final List<String> completed = Collections.synchronizedList(new ArrayList());
+      MockClient client = new MockClient()
+         {
+            @Override
+            public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request)
+            {
+               String key = key(request.getRequestItems().get("orders").get(0));
+               if (key.equals("b"))
+                  throw new RuntimeException("boom");
+
+               if (!key.equals("a"))
+               {
+                  try
+                  {
+                     never.await();
+                  }
+                  catch (InterruptedException ex)
+                  {
+                     throw new RuntimeException("interrupted");
+                  }
+               }
+
+               completed.add(key);
+               return new BatchWriteItemResult();
+            }
+         };
+      DynamoDb db = new DynamoDb().withDynamoClient(client).withBatchMax(1).withThreadMax(4);
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         db.upsert(table(db), rows("a", "1", "b", "1", "c", "1", "d", "1"));
+         fail("the failed batch should have been rethrown");
+      }
+      catch (RuntimeException ex)
+      {
+         assertEquals("boom", ex.getMessage());
+      }
+      finally
+      {
+         db.shutdown0();
+      }
+
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      assertEquals(Arrays.asList("a"), completed);
+   }
+
+   /**
+    * Records each BatchWriteItem call and reports the whole request as
+    * unprocessed for the first <code>unprocessed</code> calls.
+    */
+   static class MockClient extends AbstractAmazonDynamoDB
+   {
+      List<List<WriteRequest>> batches     = Collections.synchronizedList(new ArrayList());
+      int                      unprocessed = 0;
+
+      @Override
+      public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request)
+      {
+         List<WriteRequest> batch = request.getRequestItems().get("orders");
+         batches.add(new ArrayList(batch));
+
+         BatchWriteItemResult result = new BatchWriteItemResult();
+         synchronized (this)
+         {
+            if (unprocessed > 0)
+            {
+               unprocessed -= 1;
+               result.withUnprocessedItems(request.getRequestItems());
+            }
+         }
+         return result;
+      }
+   }
+}
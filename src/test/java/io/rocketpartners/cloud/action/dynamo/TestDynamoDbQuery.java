@@ -0,0 +1,150 @@
+package io.rocketpartners.cloud.action.dynamo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+import io.rocketpartners.cloud.action.dynamo.DynamoDb.DynamoDbIndex;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.rql.Term;
+
+public class TestDynamoDbQuery
+{
+   static Table table(boolean withSortKey)
+   {
+      DynamoDb db = new DynamoDb();
+      Table table = new Table(db, "orders");
+      table.makeColumn("hk", "S");
+      table.makeColumn("sk", "N");
+      table.makeColumn("status", "S");
+
+      DynamoDbIndex index = new DynamoDbIndex(table, DynamoDbIndex.PRIMARY_INDEX, DynamoDbIndex.PRIMARY_TYPE);
+      index.witHashKey(table.getColumn("hk"));
+      if (withSortKey)
+         index.withSortKey(table.getColumn("sk"));
+
+      return table;
+   }
+
+   static DynamoDbQuery query(Table table, String rql)
+   {
+      DynamoDbQuery query = new DynamoDbQuery(table, null);
+      query.withTerm(rql);
+      return query;
+   }
+
+   @Test
+   public void testBatchKeysFromIn()
+   {
+      List<Map<String, Object>> keys = query(table(false), "in(hk,a,b,c)").getBatchKeys();
+      assertEquals(3, keys.size());
+      assertEquals("a", keys.get(0).get("hk"));
+      assertEquals("c", keys.get(2).get("hk"));
+   }
+
+   @Test
+   public void testBatchKeysAreDistinct()
+   {
+      List<Map<String, Object>> keys = query(table(false), "in(hk,a,b,a,c,b)").getBatchKeys();
+      assertEquals(3, keys.size());
+      assertEquals("a", keys.get(0).get("hk"));
+      assertEquals("b", keys.get(1).get("hk"));
+      assertEquals("c", keys.get(2).get("hk"));
+
+      //-- a single distinct key is a plain get
+      assertNull(query(table(false), "in(hk,a,a)").getBatchKeys());
+   }
+
+   @Test
+   public void testBatchKeysFromCompositeKeys()
+   {
+      Table table = table(true);
+      List<Map<String, Object>> keys = query(table, "or(and(eq(hk,a),eq(sk,1)),and(eq(hk,a),eq(sk,2)),and(eq(sk,1),eq(hk,a)))").getBatchKeys();
+      assertEquals(2, keys.size());
+      assertEquals(2, keys.get(0).size());
+      assertEquals("a", keys.get(0).get("hk"));
+      assertEquals("2", keys.get(1).get("sk") + "");
+   }
+
+   @Test
+   public void testNotABatchLookup()
+   {
+      assertNull(query(table(false), "eq(hk,a)").getBatchKeys());
+      assertNull(query(table(false), "in(status,a,b)").getBatchKeys());
+      assertNull(query(table(false), "in(hk,a,b)&sort(hk)").getBatchKeys());
+      assertNull(query(table(true), "in(hk,a,b)").getBatchKeys());
+      assertNull(query(table(true), "or(and(eq(hk,a),eq(status,x)),and(eq(hk,b),eq(sk,2)))").getBatchKeys());
+   }
+
+   @Test
+   public void testSegmentNext()
+   {
+      DynamoDbQuery query = query(table(true), "eq(status,x)");
+
+      Map<Integer, Term> afters = new HashMap();
+      afters.put(2, query.afterKey(new Item().with("hk", "a").with("sk", 7).with("status", "x")));
+      Term next = query.segmentNext(Arrays.asList(0, 2, 3), afters);
+
+      assertEquals("segment", next.getToken());
+      assertEquals(4, next.size());
+      assertEquals("0", next.getToken(0));
+      assertEquals("2", next.getToken(1));
+      assertEquals("3", next.getToken(3));
+
+      Term after = next.getTerm(2);
+      assertEquals("after", after.getToken());
+      assertEquals(4, after.size());
+      assertEquals("hk", after.getToken(0));
+      assertEquals("a", after.getToken(1));
+      assertEquals("sk", after.getToken(2));
+      assertEquals("7", after.getToken(3));
+   }
+
+   @Test
+   public void testAfterKeyForHashOnlyTable()
+   {
+      Term after = query(table(false), "eq(status,x)").afterKey(new Item().with("hk", "a").with("status", "x"));
+      assertEquals(2, after.size());
+      assertEquals("a", after.getToken(1));
+   }
+
+   @Test
+   public void testScanSegmentsRoundTrip()
+   {
+      DynamoDbQuery query = query(table(true), "eq(status,x)");
+      Map<Integer, Term> afters = new HashMap();
+      assertEquals(Arrays.asList(0, 1, 2, 3), query.getScanSegments(4, afters));
+      assertTrue(afters.isEmpty());
+
+      query = query(table(true), "eq(status,x)");
+      query.withTerm("segment(1,after(hk,a,sk,7),3)");
+      List<Integer> toScan = query.getScanSegments(4, afters);
+      assertEquals(Arrays.asList(1, 3), toScan);
+      assertEquals(1, afters.size());
+      assertEquals("a", afters.get(1).getToken(1));
+      assertNotNull(query.getStartKey(afters.get(1)));
+
+      try
+      {
+         query(table(true), "segment(4)").getScanSegments(4, new HashMap());
+         fail("segment 4 of 4 should be rejected");
+      }
+      catch (ApiException ex)
+      {
+         assertEquals(SC.SC_400_BAD_REQUEST, ex.getStatus());
+      }
+   }
+}
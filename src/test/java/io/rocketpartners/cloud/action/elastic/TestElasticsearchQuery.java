@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.elastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.utils.Utils;
+
+public class TestElasticsearchQuery
+{
+   ElasticsearchQuery query(String idType, String rql)
+   {
+      Table table = new Table(new ElasticsearchDb(), "books");
+      table.makeColumn("id", idType);
+      table.makeColumn("title", "text");
+      table.makeColumn("pages", "integer");
+
+      ElasticsearchQuery query = new ElasticsearchQuery(table, null);
+      query.withTerm(rql);
+      return query;
+   }
+
+   @Test
+   public void testFilters()
+   {
+      JSNode json = query("keyword", "eq(author,bob)&gt(pages,100)&sw(title,The)&in(genre,a,b)").getJson();
+      String filter = ((JSNode) json.find("query.bool.filter")).toString(false);
+
+      assertTrue(filter, filter.indexOf("{\"term\":{\"author\":\"bob\"}}") > -1);
+      assertTrue(filter, filter.indexOf("{\"range\":{\"pages\":{\"gt\":\"100\"}}}") > -1);
+      assertTrue(filter, filter.indexOf("{\"wildcard\":{\"title\":\"The*\"}}") > -1);
+      assertTrue(filter, filter.indexOf("{\"terms\":{\"genre\":[\"a\",\"b\"]}}") > -1);
+   }
+
+   @Test
+   public void testNotAndOr()
+   {
+      JSNode json = query("keyword", "or(eq(author,bob),ne(author,sue))").getJson();
+      String filter = ((JSNode) json.find("query.bool.filter")).toString(false);
+
+      assertTrue(filter, filter.indexOf("\"should\"") > -1);
+      assertTrue(filter, filter.indexOf("\"minimum_should_match\":1") > -1);
+      assertTrue(filter, filter.indexOf("{\"bool\":{\"must_not\":{\"term\":{\"author\":\"sue\"}}}}") > -1);
+   }
+
+   @Test
+   public void testKeywordKeyIsTiebreaker()
+   {
+      JSNode json = query("keyword", "sort(-pages)&limit(10)").getJson();
+      assertEquals("[{\"pages\":\"desc\"},{\"id\":\"asc\"}]", ((JSNode) json.get("sort")).toString(false));
+      assertEquals(10, json.getInt("size"));
+      assertEquals(0, json.getInt("from"));
+   }
+
+   @Test
+   public void testTextKeyIsNotSorted()
+   {
+      JSNode json = query("text", "sort(-pages)").getJson();
+      assertEquals("[{\"pages\":\"desc\"}]", ((JSNode) json.get("sort")).toString(false));
+   }
+
+   @Test
+   public void testSearchAfter()
+   {
+      JSNode json = query("keyword", "sort(-pages)&after(250,'it\\'s, (maybe)')").getJson();
+      assertEquals("[250,\"it's, (maybe)\"]", ((JSNode) json.get("search_after")).toString(false));
+      assertFalse(json.containsKey("from"));
+   }
+
+   @Test
+   public void testEscape()
+   {
+      assertEquals("it\\'s \\\"a\\\\b\\\"", ElasticsearchQuery.escape("it's \"a\\b\""));
+   }
+
+   @Test
+   public void testIsSortable()
+   {
+      Table table = new Table(new ElasticsearchDb(), "books");
+      assertTrue(ElasticsearchQuery.isSortable(table.makeColumn("isbn", "keyword")));
+      assertTrue(ElasticsearchQuery.isSortable(table.makeColumn("pages", "long")));
+      assertFalse(ElasticsearchQuery.isSortable(table.makeColumn("title", "text")));
+      assertFalse(ElasticsearchQuery.isSortable(null));
+   }
+
+   @Test
+   public void testParseBulkResults()
+   {
+      JSNode json = Utils.parseJsonMap("{\"errors\":true,\"items\":[" //
+            + "{\"update\":{\"_id\":\"1\",\"status\":200}}," //
+            + "{\"update\":{\"_id\":\"2\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"bad\"}}}," //
+            + "{\"index\":{\"_id\":\"3\",\"status\":201}}]}");
+
+      List<String> keys = new ArrayList();
+      List<String> errors = new ArrayList();
+      assertFalse(ElasticsearchDb.parseBulkResults(json, 10, keys, errors));
+      assertEquals("[1, 2, 3]", keys.toString());
+      assertEquals("[item 11 '2' 400 mapper_parsing_exception: bad]", errors.toString());
+
+      json = Utils.parseJsonMap("{\"items\":[{\"delete\":{\"_id\":\"1\",\"status\":404}},{\"delete\":{\"_id\":\"2\",\"status\":503}}]}");
+      errors.clear();
+      assertTrue(ElasticsearchDb.parseBulkResults(json, 0, null, errors));
+      assertEquals(1, errors.size());
+      assertTrue(errors.get(0), errors.get(0).startsWith("item 1 '2' 503"));
+   }
+}
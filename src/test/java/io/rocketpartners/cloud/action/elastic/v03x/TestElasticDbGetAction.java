@@ -0,0 +1,226 @@
+package io.rocketpartners.cloud.action.elastic.v03x;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.rocketpartners.cloud.action.elastic.v03x.dsl.ElasticRql;
+import io.rocketpartners.cloud.action.elastic.v03x.dsl.QueryDsl;
+import io.rocketpartners.cloud.action.elastic.v03x.rql.Rql;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.JSArray;
+import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.utils.Utils;
+
+public class TestElasticDbGetAction
+{
+   static
+   {
+      try
+      {
+         Class.forName(ElasticRql.class.getName());
+      }
+      catch (Exception ex)
+      {
+         ex.printStackTrace();
+      }
+   }
+
+   @Test
+   public void testCursorRoundTrip()
+   {
+      List after = Arrays.asList("AL", 42, "doc-7");
+      String token = new ElasticDbGetAction.Cursor("abc", 101, true, after).encode();
+
+      assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+
+      ElasticDbGetAction.Cursor cursor = ElasticDbGetAction.Cursor.decode(token);
+      assertEquals("abc", cursor.query);
+      assertEquals(101, cursor.page);
+      assertTrue(cursor.prev);
+      assertEquals(after, cursor.after);
+   }
+
+   @Test
+   public void testCursorRejectsBadTokens()
+   {
+      assertBadRequest("not a token");
+
+      String wrongVersion = java.util.Base64.getUrlEncoder().encodeToString("{\"v\":99,\"q\":\"abc\",\"p\":1,\"d\":\"next\",\"a\":[]}".getBytes());
+      assertBadRequest(wrongVersion);
+   }
+
+   @Test
+   public void testCursorMustMatchQuery() throws Exception
+   {
+      ObjectMapper mapper = new ObjectMapper();
+      String stateKey = ElasticDbGetAction.getQueryKey(mapper, dsl("eq(state,AL)&sort=city"));
+      String cityKey = ElasticDbGetAction.getQueryKey(mapper, dsl("eq(state,AL)&sort=-city"));
+      assertTrue(!stateKey.equals(cityKey));
+
+      //-- paging does not change the key
+      QueryDsl paged = dsl("eq(state,AL)&sort=city");
+      paged.setSearchAfter(Arrays.asList("Atlanta", "doc-1"));
+      assertEquals(stateKey, ElasticDbGetAction.getQueryKey(mapper, paged));
+
+      String token = new ElasticDbGetAction.Cursor(stateKey, 2, false, Arrays.asList("Atlanta", "doc-1")).encode();
+      assertEquals(2, ElasticDbGetAction.Cursor.decode(token, stateKey).page);
+      try
+      {
+         ElasticDbGetAction.Cursor.decode(token, cityKey);
+         fail("a cursor from another query should be rejected");
+      }
+      catch (ApiException ex)
+      {
+         assertEquals(SC.SC_400_BAD_REQUEST, ex.getStatus());
+      }
+   }
+
+   @Test
+   public void testTiebreakerIsLastSortKey() throws Exception
+   {
+      QueryDsl dsl = dsl("eq(state,AL)&sort=-city");
+      assertTrue(ElasticDbGetAction.addTiebreaker(dsl, "code"));
+      assertFalse(ElasticDbGetAction.addTiebreaker(dsl, "code"));
+
+      //-- the rql already sorts on 'id' last so it is never added twice
+      assertFalse(ElasticDbGetAction.addTiebreaker(dsl, "id"));
+
+      List<Map<String, String>> order = dsl.getOrder().getOrderList();
+      assertEquals(3, order.size());
+      assertEquals("asc", order.get(2).get("code"));
+
+      //-- a reversed 'prev' page reverses the tiebreaker too
+      dsl.getOrder().reverseOrdering();
+      assertEquals("ASC", order.get(0).get("city"));
+      assertEquals("DESC", order.get(2).get("code"));
+   }
+
+   @Test
+   public void testTiebreakerNeedsDocValues()
+   {
+      ElasticDbGetAction action = new ElasticDbGetAction();
+
+      Table table = new Table(null, "locations");
+      table.makeColumn("id", "keyword");
+      table.makeColumn("name", "text");
+      assertEquals("id", action.getTiebreaker(table));
+
+      Table text = new Table(null, "notes");
+      text.makeColumn("id", "text");
+      assertNull(action.getTiebreaker(text));
+      assertNull(action.getTiebreaker(new Table(null, "empty")));
+
+      action.tiebreaker = "locationCode";
+      assertEquals("locationCode", action.getTiebreaker(text));
+   }
+
+   @Test
+   public void testSeekHopsFromAfter() throws Exception
+   {
+      final List<JSNode> searches = new ArrayList();
+      ElasticDbGetAction action = new ElasticDbGetAction()
+         {
+            @Override
+            Response search(String url, String json, ArrayListValuedHashMap<String, String> headers) throws Exception
+            {
+               JSNode search = Utils.parseJsonMap(json);
+               searches.add(search);
+               assertTrue(url, url.endsWith("?filter_path=hits.hits.sort"));
+               return hits(search.getInt("size"), searches.size());
+            }
+         };
+
+      QueryDsl dsl = dsl("eq(state,AL)&sort=city");
+      ElasticDbGetAction.addTiebreaker(dsl, "code");
+
+      long skip = ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE + 5;
+      List after = action.seek(new Response(), "http://elastic/index/_search", new ArrayListValuedHashMap(), new ObjectMapper(), dsl, Arrays.asList("Atlanta", "doc-1"), skip);
+
+      assertEquals(2, searches.size());
+      assertEquals(ElasticRql.MAX_NORMAL_ELASTIC_QUERY_SIZE, searches.get(0).getInt("size"));
+      assertEquals(Arrays.asList("Atlanta", "doc-1"), searches.get(0).getArray("search_after").asList());
+      assertEquals(5, searches.get(1).getInt("size"));
+      assertEquals(Arrays.asList("city-1", "doc-1"), searches.get(1).getArray("search_after").asList());
+      assertEquals(Arrays.asList("city-2", "doc-2"), after);
+   }
+
+   @Test
+   public void testSeekPastTheLastPage() throws Exception
+   {
+      ElasticDbGetAction action = new ElasticDbGetAction()
+         {
+            @Override
+            Response search(String url, String json, ArrayListValuedHashMap<String, String> headers) throws Exception
+            {
+               return hits(3, 1);
+            }
+         };
+
+      try
+      {
+         action.seek(new Response(), "http://elastic/index/_search", new ArrayListValuedHashMap(), new ObjectMapper(), dsl("eq(state,AL)"), null, 10);
+         fail("seeking beyond the results should fail");
+      }
+      catch (ApiException ex)
+      {
+         assertEquals(SC.SC_400_BAD_REQUEST, ex.getStatus());
+      }
+   }
+
+   /**
+    * A search response with <code>size</code> hits whose last hit
+    * has the sort values ["city-{call}", "doc-{call}"].
+    */
+   static Response hits(int size, int call)
+   {
+      JSArray hits = new JSArray();
+      for (int i = 0; i < size; i++)
+         hits.add(new JSNode("sort", new JSArray("city-" + (i == size - 1 ? call : 0), "doc-" + (i == size - 1 ? call : i))));
+
+      return new Response().withStatusCode(200).withJson(new JSNode("hits", new JSNode("hits", hits)));
+   }
+
+   static QueryDsl dsl(String query) throws Exception
+   {
+      Map params = new LinkedHashMap();
+      for (String term : query.split("&"))
+      {
+         int eqIdx = term.indexOf('=');
+         if (eqIdx < 0)
+            params.put(term, null);
+         else
+            params.put(term.substring(0, eqIdx), term.substring(eqIdx + 1));
+      }
+      return ((ElasticRql) Rql.getRql("elastic")).toQueryDsl(params);
+   }
+
+   static void assertBadRequest(String token)
+   {
+      try
+      {
+         ElasticDbGetAction.Cursor.decode(token);
+         fail("'" + token + "' should not decode");
+      }
+      catch (ApiException ex)
+      {
+         assertEquals(SC.SC_400_BAD_REQUEST, ex.getStatus());
+      }
+   }
+}
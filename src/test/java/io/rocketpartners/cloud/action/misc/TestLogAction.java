@@ -0,0 +1,228 @@
+package io.rocketpartners.cloud.action.misc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.action.sql.SqlDb;
+
+public class TestLogAction
+{
+   @Test
+   public void testBatchGroupsRowsByColumns() throws Exception
+   {
+      MockConnection mock = new MockConnection(true);
+      List<LogAction.Entry> entries = Arrays.asList(entry("a", "body1"), entry("b", null), entry("c", "body3"));
+
+      new LogAction().writeBatch(mock.conn, entries);
+
+      //-- one log batch per column set and one change batch
+      assertEquals(3, mock.batches.size());
+      assertEquals("INSERT INTO \"log\" (\"body\", \"method\") VALUES (?,?)", mock.batches.get(0).sql);
+      assertEquals(2, mock.batches.get(0).rows.size());
+      assertEquals("INSERT INTO \"log\" (\"method\") VALUES (?)", mock.batches.get(1).sql);
+      assertEquals(1, mock.batches.get(1).rows.size());
+      assertEquals("INSERT INTO \"logChange\" (\"entityKey\", \"logId\") VALUES (?,?)", mock.batches.get(2).sql);
+
+      //-- keys are handed back in the order of the entries not the batches
+      assertEquals(1L, entries.get(0).changes.get(0).get("logId"));
+      assertEquals(3L, entries.get(1).changes.get(0).get("logId"));
+      assertEquals(2L, entries.get(2).changes.get(0).get("logId"));
+      assertEquals(0, mock.rollbacks);
+   }
+
+   @Test
+   public void testFallbackWhenBatchKeysAreMissing() throws Exception
+   {
+      MockConnection mock = new MockConnection(false);
+      List<LogAction.Entry> entries = Arrays.asList(entry("a", "body1"), entry("b", "body2"));
+
+      new LogAction().writeBatch(mock.conn, entries);
+
+      assertEquals(1, mock.rollbacks);
+      assertEquals(2, mock.executes);
+      assertEquals(1L, entries.get(0).changes.get(0).get("logId"));
+      assertEquals(2L, entries.get(1).changes.get(0).get("logId"));
+   }
+
+   @Test
+   public void testSpillAndReplay() throws Exception
+   {
+      File dir = Files.createTempDirectory("logaction").toFile();
+      File spill = new File(dir, "audit.spill");
+
+      MockLogAction action = new MockLogAction();
+      action.withSpillFile(spill.getAbsolutePath()).withBatchMax(2);
+      action.dbs.put("db", new SqlDb());
+
+      action.fail = true;
+      assertFalse(action.flush(Arrays.asList(entry("a", "body1"), entry("b", null), entry("c", "body3"))));
+      assertEquals(3, action.getSpilledEntries());
+      assertEquals(3, Files.readAllLines(spill.toPath()).size());
+
+      try (FileWriter out = new FileWriter(spill, true))
+      {
+         out.write("{not json\n");
+      }
+
+      action.fail = false;
+      action.replay();
+
+      assertEquals(3, action.written.size());
+      assertEquals("a", action.written.get(0).changes.get(0).get("entityKey"));
+      assertEquals("c", action.written.get(2).changes.get(0).get("entityKey"));
+      assertFalse(new File(spill.getAbsolutePath() + ".replay").exists());
+
+      //-- nothing is left to replay a second time
+      action.replay();
+      assertEquals(3, action.written.size());
+
+      spill.delete();
+      dir.delete();
+   }
+
+   static LogAction.Entry entry(String entityKey, String body)
+   {
+      Map log = new LinkedHashMap();
+      log.put("method", "POST");
+      if (body != null)
+         log.put("body", body);
+
+      Map change = new HashMap();
+      change.put("entityKey", entityKey);
+
+      return new LogAction.Entry("db", "log", "logChange", log, new ArrayList(Arrays.asList(change)));
+   }
+
+   static class MockLogAction extends LogAction
+   {
+      boolean               fail    = false;
+      List<LogAction.Entry> written = new ArrayList();
+
+      @Override
+      void writeBatch(SqlDb db, List<Entry> entries) throws Exception
+      {
+         if (fail)
+            throw new Exception("db is down");
+
+         written.addAll(entries);
+      }
+   }
+
+   static class Batch
+   {
+      String         sql  = null;
+      List<Object[]> rows = new ArrayList();
+   }
+
+   /**
+    * Records the statements run through a Connection proxy and hands back
+    * sequential generated keys.
+    */
+   static class MockConnection
+   {
+      boolean     batchKeys = true;
+      List<Batch> batches   = new ArrayList();
+      int         executes  = 0;
+      int         rollbacks = 0;
+      long        nextKey   = 1;
+      Connection  conn      = null;
+
+      MockConnection(boolean batchKeys)
+      {
+         this.batchKeys = batchKeys;
+         conn = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, new InvocationHandler()
+            {
+               @Override
+               public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+               {
+                  if (method.getName().equals("prepareStatement"))
+                     return statement((String) args[0]);
+                  if (method.getName().equals("rollback"))
+                     rollbacks += 1;
+                  if (method.getName().equals("toString"))
+                     return "MockConnection";
+                  return null;
+               }
+            });
+      }
+
+      PreparedStatement statement(final String sql)
+      {
+         final Batch batch = new Batch();
+         batch.sql = sql;
+         final List<Object> keys = new ArrayList();
+         final Object[][] params = new Object[][]{new Object[sql.split("\\?").length - 1]};
+
+         return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{PreparedStatement.class}, new InvocationHandler()
+            {
+               @Override
+               public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+               {
+                  String name = method.getName();
+                  if (name.equals("setObject"))
+                  {
+                     params[0][(Integer) args[0] - 1] = args[1];
+                  }
+                  else if (name.equals("addBatch"))
+                  {
+                     batch.rows.add(params[0]);
+                     params[0] = new Object[params[0].length];
+                     if (batchKeys)
+                        keys.add(nextKey++);
+                  }
+                  else if (name.equals("executeBatch"))
+                  {
+                     batches.add(batch);
+                     return new int[batch.rows.size()];
+                  }
+                  else if (name.equals("execute"))
+                  {
+                     executes += 1;
+                     keys.add(nextKey++);
+                     return false;
+                  }
+                  else if (name.equals("getGeneratedKeys"))
+                  {
+                     return keys(keys);
+                  }
+                  return null;
+               }
+            });
+      }
+
+      ResultSet keys(final List<Object> keys)
+      {
+         final int[] idx = new int[]{-1};
+         return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ResultSet.class}, new InvocationHandler()
+            {
+               @Override
+               public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+               {
+                  if (method.getName().equals("next"))
+                     return ++idx[0] < keys.size();
+                  if (method.getName().equals("getObject"))
+                     return keys.get(idx[0]);
+                  return null;
+               }
+            });
+      }
+   }
+}
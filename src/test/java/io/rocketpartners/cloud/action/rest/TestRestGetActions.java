@@ -67,7 +67,7 @@ public abstract class TestRestGetActions extends TestCase
       assertEquals(5, json.find("meta.pageSize"));
       assertEquals(5, res.data().length());
 
-      res.assertDebug("[1]: SQL ->", "'SELECT \"ORDERS\".* FROM \"ORDERS\" ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[] error=''");
+      res.assertDebug("[1]: SQL ->", "'SELECT \"ORDERS\".* FROM \"ORDERS\" ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 5] error=''");
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=5 scanIndexForward=true nameMap={} valueMap={} keyConditionExpression='' filterExpression='' projectionExpression=''");
    }
 
@@ -81,7 +81,7 @@ public abstract class TestRestGetActions extends TestCase
 
       res = engine.get(url);
       res.assertDebug("DynamoDb", "ScanSpec:'gs3' maxPageSize=2 scanIndexForward=true nameMap={} valueMap={} keyConditionExpression='' filterExpression='' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 2' args=[] error=''");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 2] error=''");
 
       assertEquals(2, res.data().length());
 
@@ -90,7 +90,7 @@ public abstract class TestRestGetActions extends TestCase
 
       res = engine.get(url("orders?limit=2&sort=-orderid&type=ORDER"));
       res.assertDebug("DynamoDb", "QuerySpec:'gs3' maxPageSize=2 scanIndexForward=false nameMap={#var1=sk} valueMap={:val1=ORDER} keyConditionExpression='(#var1 = :val1)' filterExpression='' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" ORDER BY \"ORDERS\".\"ORDERID\" DESC OFFSET 0 LIMIT 2' args=[] error=''");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" ORDER BY \"ORDERS\".\"ORDERID\" DESC OFFSET ? LIMIT ?' args=[0, 2] error=''");
 
       assertEquals(2, res.data().length());
       href = res.findString("data.0.href");
@@ -192,7 +192,7 @@ public abstract class TestRestGetActions extends TestCase
       assertTrue(res.findString("data.0.orderid").equals("10257"));
 
       res.assertDebug("DynamoDb", "QuerySpec:'Primary Index' maxPageSize=100 scanIndexForward=true nameMap={#var1=hk} valueMap={:val1=10257} keyConditionExpression='(#var1 = :val1)' filterExpression='' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"ORDERID\" = ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[10257] error=''");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"ORDERID\" = ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[10257, 0, 100] error=''");
       // 
 
    }
@@ -204,7 +204,7 @@ public abstract class TestRestGetActions extends TestCase
       Response res = null;
 
       res = engine.get(url("orders?limit=5&like(customerId,*VI*)")).statusOk();
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[%VI%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[%VI%, 0, 5]");
 
       JSArray data = res.data();
       assertTrue(data.length() > 0);
@@ -214,7 +214,7 @@ public abstract class TestRestGetActions extends TestCase
       }
 
       res = engine.get(url("orders?limit=5&like(customerId,VI)")).statusOk();
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" = ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[VI]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" = ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[VI, 0, 5]");
 
    }
 
@@ -228,7 +228,7 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=5&like(customerId,*ZZ*)")).statusOk();
       json = res.getJson();
       assertTrue(json.getArray("data").length() == 0);
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[%ZZ%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[%ZZ%, 0, 5]");
    }
 
    @Test
@@ -237,7 +237,7 @@ public abstract class TestRestGetActions extends TestCase
       Engine engine = service();
       Response res = null;
       res = engine.get(url("employees?w(city,ondon)")).statusOk();
-      res.assertDebug("h2", "'SELECT \"EMPLOYEES\".* FROM \"EMPLOYEES\" WHERE \"EMPLOYEES\".\"CITY\" LIKE ? ORDER BY \"EMPLOYEES\".\"EMPLOYEEID\" ASC OFFSET 0 LIMIT 100' args=[%ondon%] error=''");
+      res.assertDebug("h2", "'SELECT \"EMPLOYEES\".* FROM \"EMPLOYEES\" WHERE \"EMPLOYEES\".\"CITY\" LIKE ? ORDER BY \"EMPLOYEES\".\"EMPLOYEEID\" ASC OFFSET ? LIMIT ?' args=[%ondon%, 0, 100] error=''");
 
       assertEquals(4, res.data().length());
       for (Object obj : res.data())
@@ -246,7 +246,7 @@ public abstract class TestRestGetActions extends TestCase
       }
 
       res = engine.get(url("employees?w(city,*ondon*)")).statusOk();
-      res.assertDebug("h2", "'SELECT \"EMPLOYEES\".* FROM \"EMPLOYEES\" WHERE \"EMPLOYEES\".\"CITY\" LIKE ? ORDER BY \"EMPLOYEES\".\"EMPLOYEEID\" ASC OFFSET 0 LIMIT 100' args=[%ondon%] error=''");
+      res.assertDebug("h2", "'SELECT \"EMPLOYEES\".* FROM \"EMPLOYEES\" WHERE \"EMPLOYEES\".\"CITY\" LIKE ? ORDER BY \"EMPLOYEES\".\"EMPLOYEEID\" ASC OFFSET ? LIMIT ?' args=[%ondon%, 0, 100] error=''");
    }
 
    @Test
@@ -265,11 +265,11 @@ public abstract class TestRestGetActions extends TestCase
       assertEquals(42, json.find("meta.foundRows"));
 
       res = engine.get(url("orders?eq(employeeid,5)&w(shipcountry,witze)"));
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"EMPLOYEEID\" = ? AND \"ORDERS\".\"SHIPCOUNTRY\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[5, %witze%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"EMPLOYEEID\" = ? AND \"ORDERS\".\"SHIPCOUNTRY\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[5, %witze%, 0, 100]");
       assertTrue(res.data().size() > 0);
 
       res = engine.get(url("orders?eq(employeeid,5)&wo(shipcountry,witze)"));
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"EMPLOYEEID\" = ? AND (NOT (\"ORDERS\".\"SHIPCOUNTRY\" LIKE ?)) ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[5, %witze%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"EMPLOYEEID\" = ? AND (NOT (\"ORDERS\".\"SHIPCOUNTRY\" LIKE ?)) ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[5, %witze%, 0, 100]");
 
       json = res.getJson();
       data = json.getArray("data");
@@ -288,7 +288,7 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=5&sw(customerId,VI)")).statusOk();
 
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=5 scanIndexForward=true nameMap={#var1=customerId} valueMap={:val1=VI} keyConditionExpression='' filterExpression='begins_with(#var1,:val1)'");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[VI%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[VI%, 0, 5]");
 
       JSArray data = res.data();
       assertTrue(data.length() > 0);
@@ -301,7 +301,7 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=5&sw(customerId,VI*)")).statusOk();
 
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=5 scanIndexForward=true nameMap={#var1=customerId} valueMap={:val1=VI} keyConditionExpression='' filterExpression='begins_with(#var1,:val1)'");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[VI%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[VI%, 0, 5]");
    }
 
    @Test
@@ -313,7 +313,7 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=5&sw(customerId,Z)")).statusOk();
 
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=5 scanIndexForward=true nameMap={#var1=customerId} valueMap={:val1=Z} keyConditionExpression='' filterExpression='begins_with(#var1,:val1)'");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 5' args=[Z%]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"CUSTOMERID\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[Z%, 0, 5]");
 
       assertTrue(res.data().size() == 0);
    }
@@ -324,7 +324,7 @@ public abstract class TestRestGetActions extends TestCase
       Engine engine = service();
       Response res = null;
       res = engine.get(url("orders?ew(shipname,Chevalier)"));
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPNAME\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[%Chevalier]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPNAME\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[%Chevalier, 0, 100]");
 
       JSArray data = res.data();
       assertTrue(data.size() > 0);
@@ -335,7 +335,7 @@ public abstract class TestRestGetActions extends TestCase
 
       //check that the leading * is not doubled
       res = engine.get(url("orders?ew(shipname,*Chevalier)"));
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPNAME\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[%Chevalier]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPNAME\" LIKE ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[%Chevalier, 0, 100]");
    }
 
    @Test
@@ -350,7 +350,7 @@ public abstract class TestRestGetActions extends TestCase
       //DynamoDb  ScanSpec maxPageSize=500 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='(attribute_not_exists(#var1) or (#var2 = :val1))' projectionExpression=''
 
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=500 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='(attribute_not_exists(#var1) or (#var2 = :val1))'");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPREGION\" IS NULL ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 500'");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPREGION\" IS NULL ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 500]");
 
       res.statusOk();
       json = res.getJson();
@@ -384,7 +384,7 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=500&nemp(shipregion)"));
       assertTrue(res.data().size() > 0);
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=500 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='attribute_exists(#var1) and (#var2 <> :val1)' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NOT NULL AND \"ORDERS\".\"SHIPREGION\" != '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 500'");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NOT NULL AND \"ORDERS\".\"SHIPREGION\" != '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 500]");
 
       List<JSNode> list = res.data().asList();
       for (JSNode result : list)
@@ -395,7 +395,7 @@ public abstract class TestRestGetActions extends TestCase
 
       res = engine.get(url("orders?limit=500&emp(shipregion)"));
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=500 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='(attribute_not_exists(#var1) or (#var2 = :val1))' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NULL OR \"ORDERS\".\"SHIPREGION\" = '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 500'");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NULL OR \"ORDERS\".\"SHIPREGION\" = '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 500]");
 
       list = res.data().asList();
       for (JSNode result : list)
@@ -416,7 +416,7 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=500&nn(shipregion)")).statusOk();
 
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=500 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='attribute_exists(#var1) and (#var2 <> :val1)' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPREGION\" IS NOT NULL ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 500' args=[]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"SHIPREGION\" IS NOT NULL ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 500]");
 
       json = res.getJson();
       data = json.getArray("data");
@@ -435,14 +435,14 @@ public abstract class TestRestGetActions extends TestCase
 
       res = engine.get(url("orders?limit=1&emp(shipregion)"));
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=1 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='(attribute_not_exists(#var1) or (#var2 = :val1))' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NULL OR \"ORDERS\".\"SHIPREGION\" = '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 1' args=[]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NULL OR \"ORDERS\".\"SHIPREGION\" = '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 1]");
 
       assertTrue(res.data().size() > 0);
 
       //SELECT * FROM "ORDERS" WHERE ("SHIPREGION" IS NOT NULL AND "SHIPREGION" != '')
       res = engine.get(url("orders?limit=500&nemp(shipregion)"));
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=500 scanIndexForward=true nameMap={#var1=shipregion, #var2=shipregion} valueMap={:val1=null} keyConditionExpression='' filterExpression='attribute_exists(#var1) and (#var2 <> :val1)' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NOT NULL AND \"ORDERS\".\"SHIPREGION\" != '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 500' args=[] error=''");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE (\"ORDERS\".\"SHIPREGION\" IS NOT NULL AND \"ORDERS\".\"SHIPREGION\" != '') ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[0, 500] error=''");
 
       List<JSNode> list = res.data().asList();
       for (JSNode result : list)
@@ -461,7 +461,7 @@ public abstract class TestRestGetActions extends TestCase
 
       //ScanSpec maxPageSize=100 scanIndexForward=true nameMap={#var1=hk} valueMap={:val1=10249, :val2=10258, :val3=10252} keyConditionExpression='' filterExpression='(#var1 IN (:val1, :val2, :val3))' projectionExpression=''
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=100 scanIndexForward=true nameMap={#var1=hk} valueMap={:val1=10249, :val2=10258, :val3=10252} keyConditionExpression='' filterExpression='(#var1 IN (:val1, :val2, :val3))' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"ORDERID\" IN(?, ?, ?) ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[10249, 10258, 10252]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"ORDERID\" IN(?, ?, ?) ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[10249, 10258, 10252, 0, 100]");
 
       JSArray data = res.data();
       List<String> list = Arrays.asList("10249", "10258", "10252");
@@ -478,7 +478,7 @@ public abstract class TestRestGetActions extends TestCase
       Engine engine = service();
       Response res = engine.get(url("orders?out(orderid,10249,10258,10252)"));
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=100 scanIndexForward=true nameMap={#var1=hk} valueMap={:val1=10249, :val2=10258, :val3=10252} keyConditionExpression='' filterExpression='(NOT #var1 IN (:val1, :val2, :val3))' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"ORDERID\" NOT IN(?, ?, ?) ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 100' args=[10249, 10258, 10252]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"ORDERID\" NOT IN(?, ?, ?) ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[10249, 10258, 10252, 0, 100]");
 
       Set ids = new HashSet(Utils.explode(",", "10249,10258,10252"));
       for (Object obj : res.data())
@@ -496,11 +496,11 @@ public abstract class TestRestGetActions extends TestCase
       res = engine.get(url("orders?limit=1000&gt(freight,2)"));
       assertEquals(777, res.data().size());
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=1000 scanIndexForward=true nameMap={#var1=freight} valueMap={:val1=2} keyConditionExpression='' filterExpression='(#var1 > :val1)' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"FREIGHT\" > ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 1000' args=[2]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"FREIGHT\" > ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[2, 0, 1000]");
 
       res = engine.get(url("orders?limit=1000&lt(freight,2)"));
       res.assertDebug("DynamoDb", "ScanSpec maxPageSize=1000 scanIndexForward=true nameMap={#var1=freight} valueMap={:val1=2} keyConditionExpression='' filterExpression='(#var1 < :val1)' projectionExpression=''");
-      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"FREIGHT\" < ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET 0 LIMIT 1000' args=[2]");
+      res.assertDebug("h2", "'SELECT \"ORDERS\".* FROM \"ORDERS\" WHERE \"ORDERS\".\"FREIGHT\" < ? ORDER BY \"ORDERS\".\"ORDERID\" ASC OFFSET ? LIMIT ?' args=[2, 0, 1000]");
 
       JSArray data = res.data();
       assertTrue(data.size() > 0);
@@ -0,0 +1,49 @@
+package io.rocketpartners.cloud.action.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestS3DownloadAction
+{
+   @Test
+   public void testParseRange()
+   {
+      assertEquals("[0, 99]", Arrays.toString(S3DownloadAction.parseRange("bytes=0-99", 1000)));
+      assertEquals("[500, 999]", Arrays.toString(S3DownloadAction.parseRange("bytes=500-", 1000)));
+      assertEquals("[900, 999]", Arrays.toString(S3DownloadAction.parseRange("bytes=-100", 1000)));
+      assertEquals("[0, 999]", Arrays.toString(S3DownloadAction.parseRange("bytes=-5000", 1000)));
+      assertEquals("[990, 999]", Arrays.toString(S3DownloadAction.parseRange("bytes=990-5000", 1000)));
+
+      assertTrue(S3DownloadAction.parseRange("bytes=1000-", 1000)[0] >= 1000);
+
+      assertNull(S3DownloadAction.parseRange(null, 1000));
+      assertNull(S3DownloadAction.parseRange("bytes=0-1,5-6", 1000));
+      assertNull(S3DownloadAction.parseRange("bytes=50-10", 1000));
+      assertNull(S3DownloadAction.parseRange("items=0-10", 1000));
+      assertNull(S3DownloadAction.parseRange("bytes=abc-", 1000));
+   }
+
+   @Test
+   public void testEtagMatches()
+   {
+      assertTrue(S3DownloadAction.etagMatches("\"abc\"", "\"abc\""));
+      assertTrue(S3DownloadAction.etagMatches("\"xyz\", W/\"abc\"", "\"abc\""));
+      assertTrue(S3DownloadAction.etagMatches("*", "\"abc\""));
+      assertTrue(!S3DownloadAction.etagMatches("\"xyz\"", "\"abc\""));
+      assertTrue(!S3DownloadAction.etagMatches(null, "\"abc\""));
+   }
+
+   @Test
+   public void testContentDispositionEscapesFileName()
+   {
+      assertEquals("attachment; filename=\"logo.png\"", S3DownloadAction.contentDisposition("logo.png"));
+      assertEquals("attachment; filename=\"a\\\"b\\\\c.txt\"", S3DownloadAction.contentDisposition("a\"b\\c.txt"));
+      assertEquals("attachment; filename=\"ab.txt\"", S3DownloadAction.contentDisposition("a\r\nb.txt"));
+      assertEquals("attachment; filename=\"_.txt\"; filename*=UTF-8''%C3%A9.txt", S3DownloadAction.contentDisposition("\u00e9.txt"));
+   }
+}
@@ -6,6 +6,7 @@ package io.rocketpartners.cloud.action.security;
 import org.junit.Test;
 
 import io.rocketpartners.cloud.demo.Demo002AclRules;
+import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.service.MockActionA;
@@ -31,6 +32,38 @@ public class TestAclAction extends TestCase
 
    }
 
+   @Test
+   public void testAllowsMatchesRun()
+   {
+      AclRule allow = new AclRule().withMethods("GET").withIncludePaths("open/*");
+      allow.withOrder(1);
+      AclRule deny = new AclRule().withMethods("GET").withIncludePaths("open/secret/*").withAllow(false);
+      deny.withOrder(2);
+      AclRule restrict = new AclRule().withMethods("GET").withIncludePaths("open/restricted/*").withRestricts("password");
+      restrict.withOrder(3);
+
+      AclAction acl = new AclAction().withAclRules(restrict, deny, allow);
+
+      Engine engine = new Engine()//
+                                  .withApi("test")//
+                                  .withEndpoint("GET", "*", new MockActionA())//
+                                  .withAction(acl)//
+                                  .getEngine();
+
+      assertEquals(200, engine.get("/test/open/blah").getStatusCode());
+      assertTrue(acl.allows("GET", new Path("open", "blah"), null));
+
+      assertEquals(403, engine.get("/test/open/secret/blah").getStatusCode());
+      assertFalse(acl.allows("GET", new Path("open", "secret", "blah"), null));
+
+      assertEquals(403, engine.get("/test/blocked/blah").getStatusCode());
+      assertFalse(acl.allows("GET", new Path("blocked", "blah"), null));
+
+      //-- allowed by run but restricts can only be applied to a real request
+      assertEquals(200, engine.get("/test/open/restricted/blah").getStatusCode());
+      assertFalse(acl.allows("GET", new Path("open", "restricted", "blah"), null));
+   }
+
    /**
     * @see io.rocketpartners.cloud.demo.security.DemoAclRules1
     */
@@ -0,0 +1,67 @@
+package io.rocketpartners.cloud.action.security;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.MockActionA;
+import junit.framework.TestCase;
+
+public class TestRateLimitAction extends TestCase
+{
+   @Test
+   public void testUserHitsLimited()
+   {
+      Engine engine = new Engine()//
+                                  .withApi("test")//
+                                  .withEndpoint("GET", "limited/*", new MockActionA())//
+                                  .withAction(new RateLimitAction().withLimitUserHits(2))//
+                                  .getEngine();
+
+      Response res = engine.get("/test/limited/blah");
+      assertEquals(200, res.getStatusCode());
+      assertEquals("2", res.getHeader("X-RateLimit-Limit"));
+      assertEquals("1", res.getHeader("X-RateLimit-Remaining"));
+
+      assertEquals(200, engine.get("/test/limited/blah").getStatusCode());
+
+      res = engine.get("/test/limited/blah");
+      assertEquals(429, res.getStatusCode());
+      assertEquals("0", res.getHeader("X-RateLimit-Remaining"));
+      assertTrue(res.getHeader("Retry-After") != null);
+   }
+
+   @Test
+   public void testSlidingWindowWeightsPreviousWindow()
+   {
+      RateLimitAction.Window window = new RateLimitAction.Window();
+      long minute = 60000;
+
+      for (int i = 0; i < 10; i++)
+         window.hit(10 * minute + 1000, minute);
+
+      //-- a quarter into the next window, 75% of the previous count still applies
+      assertEquals(8, window.hit(11 * minute + minute / 4, minute));
+
+      //-- two windows later nothing carries over
+      assertEquals(1, window.hit(13 * minute, minute));
+   }
+
+   @Test
+   public void testLeastRecentlySeenClientIsEvicted()
+   {
+      RateLimitAction.Limiter limiter = new RateLimitAction.Limiter("test", 60000, 10, -1, 2);
+      limiter.hit("a", 1000);
+      limiter.hit("b", 1000);
+      limiter.hit("a", 1000);
+      limiter.hit("c", 1000);
+
+      assertEquals(2, limiter.clients.size());
+      assertTrue(limiter.clients.containsKey("a"));
+      assertTrue(limiter.clients.containsKey("c"));
+
+      //-- b starts over with a new window
+      assertEquals(1, limiter.hit("b", 1000).count);
+      assertEquals(2, limiter.hit("c", 1000).count);
+   }
+}
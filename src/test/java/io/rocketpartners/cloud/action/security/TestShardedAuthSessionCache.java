@@ -0,0 +1,73 @@
+package io.rocketpartners.cloud.action.security;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.User;
+import junit.framework.TestCase;
+
+public class TestShardedAuthSessionCache extends TestCase
+{
+   long now = 1000000;
+
+   ShardedAuthSessionCache cache(int sessionMax, long sessionExp)
+   {
+      return new ShardedAuthSessionCache(sessionMax, sessionExp)
+         {
+            long now()
+            {
+               return now;
+            }
+         }.withShards(1);
+   }
+
+   @Test
+   public void testLeastRecentlyUsedEvicted()
+   {
+      ShardedAuthSessionCache cache = cache(2, 60000);
+      cache.put("a", new User().withUsername("a"));
+      cache.put("b", new User().withUsername("b"));
+
+      assertEquals("a", cache.get("a").getUsername());
+
+      cache.put("c", new User().withUsername("c"));
+      assertNull(cache.get("b"));
+      assertNotNull(cache.get("a"));
+      assertNotNull(cache.get("c"));
+
+      assertEquals(2, cache.size());
+      assertEquals(1, cache.getEvictions());
+      assertEquals(3, cache.getHits());
+      assertEquals(1, cache.getMisses());
+   }
+
+   @Test
+   public void testSessionsExpire()
+   {
+      ShardedAuthSessionCache cache = cache(100, 60000);
+      cache.put("a", new User());
+      cache.put("b", new User());
+
+      now += 30000;
+      cache.put("b", new User());
+
+      now += 31000;
+      assertNull(cache.get("a"));
+      assertNotNull(cache.get("b"));
+
+      //-- the wheel drops expired sessions without them being read
+      now += 60000;
+      cache.put("c", new User());
+      assertEquals(1, cache.size());
+      assertEquals(2, cache.getExpirations());
+   }
+
+   @Test
+   public void testRemove()
+   {
+      ShardedAuthSessionCache cache = cache(100, 60000);
+      cache.put("a", new User());
+      cache.remove("a");
+      assertNull(cache.get("a"));
+      assertEquals(0, cache.size());
+   }
+}
@@ -0,0 +1,101 @@
+package io.rocketpartners.cloud.action.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.rql.Term;
+import io.rocketpartners.cloud.utils.Rows;
+
+public class TestSqlKeysetPagination
+{
+   SqlQuery query(String rql)
+   {
+      SqlDb db = new SqlDb().withType("mysql");
+      Table table = new Table(db, "orders");
+      Column orderId = table.makeColumn("orderId", "INTEGER");
+      table.makeColumn("shipCity", "VARCHAR");
+      table.makeColumn("shipRegion", "VARCHAR").withNullable(true);
+      table.makeIndex(orderId, "PRIMARY", "primary", true);
+
+      SqlQuery query = new SqlQuery(table, null);
+      query.withTerm(rql);
+      return query;
+   }
+
+   @Test
+   public void testSeekPredicateReplacesOffset()
+   {
+      SqlQuery query = query("sort(-shipCity)&after(shipCity,'Berlin',orderId,'10374')&limit(10)&pageNum(5)");
+      String sql = query.getPreparedStmt();
+
+      assertTrue(sql, sql.indexOf("WHERE") > 0);
+      assertTrue(sql, sql.indexOf(" < ?") > 0);
+      assertTrue(sql, sql.indexOf(" > ?") > 0);
+      assertTrue(sql, sql.endsWith("LIMIT 10"));
+      assertEquals("[Berlin, Berlin, 10374]", query.getColValues().toString());
+   }
+
+   @Test
+   public void testAfterTermFromLastRow()
+   {
+      SqlQuery query = query("sort(-shipCity)&limit(10)");
+      query.getPreparedStmt();
+
+      Rows rows = new Rows(new String[]{"orderId", "shipCity"});
+      rows.addRow(new Object[]{10374, "Berlin"});
+
+      Term after = query.buildAfterTerm(rows.get(0));
+      assertEquals("after(shipCity,'Berlin',orderId,'10374')", after.toString());
+   }
+
+   @Test
+   public void testAfterMustMatchSort()
+   {
+      try
+      {
+         query("sort(shipCity)&after(orderId,'10374')").getPreparedStmt();
+         fail("after term that does not match the sort should be rejected");
+      }
+      catch (ApiException ex)
+      {
+         assertEquals("400 Bad Request", ex.getStatus());
+      }
+   }
+
+   @Test
+   public void testAfterValuesAreEscaped()
+   {
+      SqlQuery query = query("sort(-shipCity)&limit(10)");
+      query.getPreparedStmt();
+
+      Rows rows = new Rows(new String[]{"orderId", "shipCity"});
+      rows.addRow(new Object[]{10374, "O'Brien, (North) 50%_*"});
+
+      Term after = query.buildAfterTerm(rows.get(0));
+
+      query = query("sort(-shipCity)&" + after + "&limit(10)");
+      String sql = query.getPreparedStmt();
+
+      assertTrue(sql, sql.indexOf(" LIKE ") < 0);
+      assertEquals("[O'Brien, (North) 50%_*, O'Brien, (North) 50%_*, 10374]", query.getColValues().toString());
+   }
+
+   @Test
+   public void testNullableSortFallsBackToOffset()
+   {
+      SqlQuery query = query("sort(shipRegion)&limit(10)");
+      query.getPreparedStmt();
+
+      Rows rows = new Rows(new String[]{"orderId", "shipRegion"});
+      rows.addRow(new Object[]{10374, "WA"});
+
+      assertNull(query.buildAfterTerm(rows.get(0)));
+   }
+}
@@ -0,0 +1,94 @@
+package io.rocketpartners.cloud.action.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Table;
+
+public class TestSqlQueryCache
+{
+   SqlDb db = new SqlDb().withType("mysql");
+
+   SqlQuery query(String rql)
+   {
+      Table table = new Table(db, "orders");
+      Column orderId = table.makeColumn("orderId", "INTEGER");
+      table.makeColumn("shipCity", "VARCHAR");
+      table.makeIndex(orderId, "PRIMARY", "primary", true);
+
+      SqlQuery query = new SqlQuery(table, null);
+      query.withTerm(rql);
+      return query;
+   }
+
+   @Test
+   public void testSameShapeReusesSql()
+   {
+      SqlQuery q1 = query("eq(shipCity,Berlin)&gt(orderId,10)&limit(10)");
+      String sql1 = q1.getPreparedStmt();
+
+      SqlQuery q2 = query("eq(shipCity,Paris)&gt(orderId,20)&limit(10)");
+      String sql2 = q2.getPreparedStmt();
+
+      assertTrue(sql1 == sql2);
+      assertEquals("[Berlin, 10, 10]", q1.getColValues().toString());
+      assertEquals("[Paris, 20, 10]", q2.getColValues().toString());
+      assertEquals(1, db.getSqlCacheHits());
+      assertEquals(1, db.getSqlCacheMisses());
+   }
+
+   @Test
+   public void testDifferentShapesAreNotShared()
+   {
+      String sql1 = query("eq(shipCity,Berlin)&limit(10)").getPreparedStmt();
+      String sql2 = query("eq(shipCity,Ber*)&limit(10)").getPreparedStmt();
+      String sql3 = query("eq(shipCity,null)&limit(10)").getPreparedStmt();
+      String sql4 = query("eq(shipCity,Berlin)&limit(10)&offset(20)").getPreparedStmt();
+
+      assertTrue(sql1, sql1.indexOf(" = ?") > 0);
+      assertTrue(sql2, sql2.indexOf(" LIKE ?") > 0);
+      assertTrue(sql3, sql3.indexOf(" IS NULL") > 0);
+      assertTrue(sql4, sql4.endsWith("LIMIT ?, ?"));
+      assertEquals(0, db.getSqlCacheHits());
+   }
+
+   @Test
+   public void testPagesShareSql()
+   {
+      SqlQuery q1 = query("eq(shipCity,Berlin)&limit(10)&offset(10)");
+      String sql1 = q1.getPreparedStmt();
+
+      SqlQuery q2 = query("eq(shipCity,Berlin)&limit(25)&offset(50)");
+      String sql2 = q2.getPreparedStmt();
+
+      assertTrue(sql1 == sql2);
+      assertTrue(sql1, sql1.endsWith("LIMIT ?, ?"));
+      assertEquals("[Berlin, 10, 10]", q1.getColValues().toString());
+      assertEquals("[Berlin, 50, 25]", q2.getColValues().toString());
+      assertEquals(2, q2.pagingValues);
+      assertEquals(1, db.getSqlCacheHits());
+   }
+
+   @Test
+   public void testLeastRecentlyUsedShapeIsEvicted()
+   {
+      db.withSqlCacheMax(2);
+      query("eq(shipCity,Berlin)").getPreparedStmt();
+      query("gt(orderId,10)").getPreparedStmt();
+
+      //-- touching the first shape makes the second the eldest to evict
+      query("eq(shipCity,Paris)").getPreparedStmt();
+      query("lt(orderId,10)").getPreparedStmt();
+      assertEquals(2, db.sqlCache.size());
+
+      query("eq(shipCity,Rome)").getPreparedStmt();
+      assertEquals(2, db.getSqlCacheHits());
+
+      query("gt(orderId,20)").getPreparedStmt();
+      assertEquals(2, db.getSqlCacheHits());
+      assertEquals(4, db.getSqlCacheMisses());
+   }
+}
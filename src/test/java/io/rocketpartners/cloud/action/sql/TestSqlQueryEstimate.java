@@ -0,0 +1,44 @@
+package io.rocketpartners.cloud.action.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.utils.Rows;
+
+public class TestSqlQueryEstimate
+{
+   static Rows plan(Object[]... rows)
+   {
+      Rows plan = new Rows(new String[]{"id", "select_type", "table", "rows", "filtered", "Extra"});
+      for (Object[] row : rows)
+         plan.addRow(row);
+      return plan;
+   }
+
+   @Test
+   public void testSingleTable()
+   {
+      assertEquals(250, SqlQuery.estimateMysqlRows(plan(new Object[]{1, "SIMPLE", "orders", 1000, 25.0, "Using where"})));
+      assertEquals(1000, SqlQuery.estimateMysqlRows(plan(new Object[]{1, "SIMPLE", "orders", 1000, null, null})));
+   }
+
+   @Test
+   public void testJoinMultipliesEveryTable()
+   {
+      Rows plan = plan(new Object[]{1, "SIMPLE", "orders", 1000, 10.0, "Using where"}, //
+            new Object[]{1, "SIMPLE", "details", 4, 100.0, null}, //
+            new Object[]{1, "SIMPLE", "products", 1, 50.0, null});
+
+      assertEquals(200, SqlQuery.estimateMysqlRows(plan));
+   }
+
+   @Test
+   public void testFallsBackToExact()
+   {
+      assertEquals(-1, SqlQuery.estimateMysqlRows(plan()));
+      assertEquals(-1, SqlQuery.estimateMysqlRows(plan(new Object[]{1, "PRIMARY", "<derived2>", 10, 100.0, null}, new Object[]{2, "DERIVED", "orders", 1000, 100.0, null})));
+      assertEquals(-1, SqlQuery.estimateMysqlRows(plan(new Object[]{1, "SIMPLE", null, null, null, "Select tables optimized away"})));
+      assertEquals(0, SqlQuery.estimateMysqlRows(plan(new Object[]{1, "SIMPLE", null, null, null, "Impossible WHERE"})));
+   }
+}
@@ -0,0 +1,82 @@
+package io.rocketpartners.cloud.action.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.action.sql.SqlDb.ConnectionLocal;
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Index;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.utils.Utils;
+
+public class TestSqlSchemaSnapshot
+{
+   @Test
+   public void testSaveLoadRoundTrip() throws Exception
+   {
+      String url = "jdbc:h2:./.h2/northwind-snapshot-" + Utils.time();
+      File file = new File("./.h2/northwind-snapshot-" + Utils.time() + ".json");
+      try
+      {
+         SqlDb reflected = SqlEngineFactory.createDb("snapshot", "northwind-h2.ddl", "org.h2.Driver", url, "sa", "", "snapshot/");
+         reflected.withSchemaSnapshot(file.getPath());
+
+         assertNotNull("h2 should support fingerprinting", reflected.getSchemaFingerprint());
+
+         reflected.reflectDb();
+         reflected.saveSnapshot();
+         assertTrue(file.exists());
+
+         SqlDb loaded = SqlEngineFactory.createDb("snapshot", null, "org.h2.Driver", url, "sa", "", "snapshot/");
+         loaded.withSchemaSnapshot(file.getPath());
+         assertTrue("snapshot fingerprint should match the unchanged db", loaded.loadSnapshot());
+
+         assertTrue(reflected.getTables().size() > 0);
+         assertEquals(describe(reflected), describe(loaded));
+      }
+      finally
+      {
+         ConnectionLocal.close();
+         file.delete();
+      }
+   }
+
+   /**
+    * Lists the tables, columns, indexes and foreign keys in a stable order.
+    */
+   String describe(SqlDb db)
+   {
+      List<String> lines = new ArrayList();
+      for (Table table : db.getTables())
+      {
+         lines.add("table " + table.getName());
+
+         for (Column column : table.getColumns())
+         {
+            String line = "column " + table.getName() + "." + column.getName() + " " + column.getType() + " nullable=" + column.isNullable() + " unique=" + column.isUnique();
+            if (column.getPk() != null)
+               line += " fk=" + column.getPk().getTable().getName() + "." + column.getPk().getName();
+            lines.add(line);
+         }
+
+         for (Index index : table.getIndexes())
+         {
+            List<String> cols = new ArrayList();
+            for (Column column : index.getColumns())
+               cols.add(column.getName());
+
+            lines.add("index " + table.getName() + "." + index.getName() + " " + index.getType() + " unique=" + index.isUnique() + " " + cols);
+         }
+      }
+      Collections.sort(lines);
+      return Utils.implode("\n", lines);
+   }
+}
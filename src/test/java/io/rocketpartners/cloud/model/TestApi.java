@@ -0,0 +1,128 @@
+package io.rocketpartners.cloud.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestApi
+{
+   @Test
+   public void testDbsStartConcurrently()
+   {
+      Api api = new Api("test").withStartupThreads(3);
+      api.withDbs(new MockDb("db1", "orders", 300), new MockDb("db2", "customers", 300), new MockDb("db3", "products", 300));
+
+      long start = System.currentTimeMillis();
+      api.startup();
+      long elapsed = System.currentTimeMillis() - start;
+
+      assertTrue("dbs should have started in parallel but took " + elapsed + "ms", elapsed < 800);
+      assertEquals(3, api.getCollections().size());
+      assertNotNull(api.getCollection("orders"));
+      assertNotNull(api.getCollection("customers"));
+      assertNotNull(api.getCollection("products"));
+
+      Map<String, Long> times = api.getStartupTimes();
+      assertEquals(3, times.size());
+      for (String name : new String[]{"db1", "db2", "db3"})
+         assertTrue(name + " took " + times.get(name), times.get(name) >= 250);
+   }
+
+   @Test
+   public void testSequentialStartupRecordsTimes()
+   {
+      Api api = new Api("test").withStartupThreads(1);
+      api.withDbs(new MockDb("db1", "orders", 50), new MockDb("db2", "customers", 50));
+      api.startup();
+
+      assertEquals(2, api.getCollections().size());
+      assertEquals(2, api.getStartupTimes().size());
+      assertTrue(api.getStartupTimes().get("db1") >= 40);
+   }
+
+   @Test
+   public void testStartupTimeout()
+   {
+      Api api = new Api("test").withStartupThreads(2).withStartupTimeout(200);
+      api.withDbs(new MockDb("fast", "orders", 10), new MockDb("slow", "customers", 5000));
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         api.startup();
+         fail("startup should have timed out");
+      }
+      catch (ApiException ex)
+      {
+         assertTrue(ex.getMessage(), ex.getMessage().indexOf("'slow'") > -1);
+      }
+      assertTrue(System.currentTimeMillis() - start < 3000);
+      assertTrue(!api.isStarted());
+   }
+
+   @Test
+   public void testCollectionsRegisterInConfiguredOrder()
+   {
+      Api api = new Api("test").withStartupThreads(2);
+      MockDb db1 = new MockDb("db1", "orders", 200);
+      MockDb db2 = new MockDb("db2", "customers", 10);
+      api.withDbs(db1, db2);
+      api.startup();
+
+      List<Collection> collections = api.getCollections();
+      assertEquals(2, collections.size());
+      assertEquals("orders", collections.get(0).getName());
+      assertEquals("customers", collections.get(1).getName());
+   }
+
+   @Test
+   public void testFirstConfiguredDbWinsDuplicateNames()
+   {
+      Api api = new Api("test").withStartupThreads(2);
+      MockDb db1 = new MockDb("db1", "orders", 200);
+      MockDb db2 = new MockDb("db2", "orders", 10);
+      api.withDbs(db1, db2);
+      api.startup();
+
+      assertEquals(2, api.getCollections().size());
+      assertSame(db1, api.getCollection("orders").getTable().getDb());
+   }
+
+   static class MockDb extends Db<MockDb>
+   {
+      String table  = null;
+      long   millis = 0;
+
+      MockDb(String name, String table, long millis)
+      {
+         super(name);
+         this.table = table;
+         this.millis = millis;
+      }
+
+      @Override
+      protected void startup0()
+      {
+         try
+         {
+            Thread.sleep(millis);
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+            return;
+         }
+
+         Table t = new Table(this, table);
+         withTable(t);
+         api.makeCollection(t, table);
+      }
+   }
+}
@@ -0,0 +1,31 @@
+package io.rocketpartners.cloud.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+public class TestResponse
+{
+   @Test
+   public void testStreamFileRange() throws Exception
+   {
+      File file = File.createTempFile("response", ".txt");
+      file.deleteOnExit();
+      try (FileOutputStream out = new FileOutputStream(file))
+      {
+         out.write("0123456789".getBytes("UTF-8"));
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new Response().withStream(file, 2, 5).stream(out);
+      assertEquals("23456", new String(out.toByteArray(), "UTF-8"));
+
+      out = new ByteArrayOutputStream();
+      new Response().withStream(file, 0, file.length()).stream(out);
+      assertEquals("0123456789", new String(out.toByteArray(), "UTF-8"));
+   }
+}
@@ -0,0 +1,105 @@
+package io.rocketpartners.cloud.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.utils.Wirer;
+
+public class TestRouteTable
+{
+   @Test
+   public void testFindEndpointsByBasePath()
+   {
+      Api api = new Api("test");
+      Endpoint all = new Endpoint("GET", "*");
+      Endpoint books = new Endpoint("GET", "library/books/*");
+      Endpoint authors = new Endpoint("GET", "library/authors");
+      Endpoint other = new Endpoint("GET", "other");
+      api.withEndpoints(all, books, authors, other);
+
+      List<Endpoint> found = api.getRouteTable().findEndpoints(new Path("Library/Books/1234"));
+      assertEquals(2, found.size());
+      assertTrue(found.get(0) == all);
+      assertTrue(found.get(1) == books);
+
+      found = api.getRouteTable().findEndpoints(new Path("other/thing"));
+      assertEquals(2, found.size());
+      assertTrue(found.get(1) == other);
+
+      found = api.getRouteTable().findEndpoints(new Path("library"));
+      assertEquals(1, found.size());
+   }
+
+   @Test
+   public void testFindEndpointsWiredFromProperties() throws Exception
+   {
+      Wirer w = new Wirer();
+      w.add("api.class", Api.class.getName());
+      w.add("all.class", Endpoint.class.getName());
+      w.add("all.methods", "GET,PUT,POST,DELETE");
+      w.add("all.path", "/*");
+      w.add("books.class", Endpoint.class.getName());
+      w.add("books.methods", "GET");
+      w.add("books.path", "library/books/*");
+      w.load();
+
+      Api api = (Api) w.getBean("api");
+      Endpoint all = (Endpoint) w.getBean("all");
+      Endpoint books = (Endpoint) w.getBean("books");
+      api.withEndpoints(all, books);
+
+      Path path = new Path("library/books/1234");
+      List<Endpoint> found = api.getRouteTable().findEndpoints(path);
+      assertEquals(2, found.size());
+      assertTrue(found.get(0) == all);
+      assertTrue(found.get(1) == books);
+      assertTrue(all.matches("GET", path));
+      assertTrue(books.matches("GET", path));
+
+      found = api.getRouteTable().findEndpoints(new Path("other"));
+      assertEquals(1, found.size());
+      assertTrue(found.get(0) == all);
+   }
+
+   @Test
+   public void testRouteTableRebuiltOnChange()
+   {
+      Api api = new Api("test");
+      api.withEndpoint(new Endpoint("GET", "a"));
+
+      RouteTable before = api.getRouteTable();
+      assertEquals(0, before.findEndpoints(new Path("b")).size());
+
+      api.withEndpoint(new Endpoint("GET", "b"));
+      assertEquals(1, api.getRouteTable().findEndpoints(new Path("b")).size());
+      assertEquals(0, before.findEndpoints(new Path("b")).size());
+   }
+
+   @Test
+   public void testFindCollectionsIgnoresCase()
+   {
+      Api api = new Api("test");
+      Collection books = new Collection();
+      books.withName("books");
+      api.withCollection(books);
+
+      assertTrue(api.getRouteTable().findCollections("BOOKS").get(0) == books);
+      assertEquals(0, api.getRouteTable().findCollections("authors").size());
+   }
+
+   @Test
+   public void testWildcardPathMatches()
+   {
+      Path path = new Path("actionA/asdf*");
+      assertTrue(path.matches(new Path("actionA/asdfzxcv")));
+      assertTrue(!path.matches(new Path("actionA/zxcvasdf")));
+
+      path.addPart("b*");
+      assertTrue(path.matches(new Path("actionA/asdf/bcd")));
+      assertTrue(!path.matches(new Path("actionA/asdf/cde")));
+   }
+}
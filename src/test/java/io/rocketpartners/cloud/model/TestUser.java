@@ -0,0 +1,30 @@
+package io.rocketpartners.cloud.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestUser
+{
+   @Test
+   public void testCopyIsIndependent()
+   {
+      User user = new User("bob", "user", "read").withId(7).withTenantCode("acme").withRequestAt(100);
+      User copy = user.copy();
+
+      assertEquals(7, copy.getId());
+      assertEquals("bob", copy.getUsername());
+      assertEquals("acme", copy.getTenantCode());
+      assertEquals(100, copy.getRequestAt());
+      assertTrue(copy.hasRoles("user"));
+      assertTrue(copy.hasPermissions("read"));
+
+      copy.withRequestAt(200).withRoles("admin").withPermissions("write");
+
+      assertEquals(100, user.getRequestAt());
+      assertFalse(user.hasRoles("admin"));
+      assertFalse(user.hasPermissions("write"));
+   }
+}
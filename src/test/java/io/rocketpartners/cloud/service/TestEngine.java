@@ -1,14 +1,23 @@
 package io.rocketpartners.cloud.service;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import org.junit.Test;
 
 import io.rocketpartners.cloud.action.misc.MockAction;
 import io.rocketpartners.cloud.action.misc.StatusAction;
 import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
 import junit.framework.TestCase;
 
 public class TestEngine extends TestCase
@@ -278,4 +287,88 @@ public class TestEngine extends TestCase
 
    }
 
+
+   /**
+    * A db cursor that is never streamed because a later action replaced
+    * the body or failed must still be closed.
+    */
+   @Test
+   public void testUnreadCursorIsClosed()
+   {
+      final List<String> closed = new ArrayList();
+
+      Action cursorAction = new StatusAction()
+         {
+            public void run(Engine engine, io.rocketpartners.cloud.model.Api api, Endpoint endpoint, Chain chain, io.rocketpartners.cloud.model.Request req, Response res) throws Exception
+            {
+               res.withData(new JSArray());
+               res.withCursor(new MockCursor(req.getUrl().toString(), closed));
+            }
+         };
+
+      Action textAction = new StatusAction()
+         {
+            public void run(Engine engine, io.rocketpartners.cloud.model.Api api, Endpoint endpoint, Chain chain, io.rocketpartners.cloud.model.Request req, Response res) throws Exception
+            {
+               res.withText("replaced");
+            }
+         };
+
+      Action errorAction = new StatusAction()
+         {
+            public void run(Engine engine, io.rocketpartners.cloud.model.Api api, Endpoint endpoint, Chain chain, io.rocketpartners.cloud.model.Request req, Response res) throws Exception
+            {
+               throw new ApiException(SC.SC_400_BAD_REQUEST, "failed");
+            }
+         };
+
+      cursorAction.withOrder(1);
+      textAction.withOrder(2);
+      errorAction.withOrder(2);
+
+      Engine engine = new Engine()//
+                                  .withApi("test")//
+                                  .withEndpoint(new Endpoint("GET", "text/*", "*").withAction(cursorAction).withAction(textAction))//
+                                  .withEndpoint(new Endpoint("GET", "error/*", "*").withAction(cursorAction).withAction(errorAction))//
+                                  .getEngine();
+
+      Response res = engine.get("test/text");
+      assertEquals("replaced", res.getText());
+      assertEquals(1, closed.size());
+
+      res = engine.get("test/error");
+      assertEquals(400, res.getStatusCode());
+      assertEquals(2, closed.size());
+   }
+
+   static class MockCursor implements Iterator<JSNode>, Closeable
+   {
+      String       name   = null;
+      List<String> closed = null;
+
+      MockCursor(String name, List<String> closed)
+      {
+         this.name = name;
+         this.closed = closed;
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         return false;
+      }
+
+      @Override
+      public JSNode next()
+      {
+         throw new NoSuchElementException();
+      }
+
+      @Override
+      public void close()
+      {
+         closed.add(name);
+      }
+   }
+
 }
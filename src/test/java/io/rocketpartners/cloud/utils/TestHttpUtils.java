@@ -0,0 +1,54 @@
+package io.rocketpartners.cloud.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.utils.HttpUtils.HttpClientConfig;
+import io.rocketpartners.cloud.utils.HttpUtils.PooledHttpClient;
+
+public class TestHttpUtils
+{
+   @Test
+   public void testSharedHostClientOutlivesOneRelease() throws Exception
+   {
+      String url = "http://shared.example.com:9200/index";
+      HttpUtils.withClientConfig(url, new HttpClientConfig());
+      HttpUtils.withClientConfig(url, new HttpClientConfig().withMaxPerRoute(5));
+
+      PooledHttpClient client = HttpUtils.getPooledHttpClient(url);
+      HttpUtils.closeHttpClient(url);
+      assertFalse(client.retired);
+      assertTrue(client == HttpUtils.getPooledHttpClient(url));
+
+      HttpUtils.closeHttpClient(url);
+      assertTrue(client.retired);
+   }
+
+   @Test
+   public void testRetiredClientWaitsForInFlightRequests() throws Exception
+   {
+      String url = "http://retire.example.com/";
+      HttpUtils.withClientConfig(url, new HttpClientConfig());
+
+      PooledHttpClient client = HttpUtils.acquireHttpClient(url);
+
+      //-- a new config swaps the client without closing the one in use
+      HttpUtils.withClientConfig(url, new HttpClientConfig().withTimeout(1000));
+      assertTrue(client.retired);
+      assertEquals(1, client.inFlight.get());
+
+      PooledHttpClient next = HttpUtils.acquireHttpClient(url);
+      assertTrue(next != client);
+      assertFalse(next.retired);
+
+      HttpUtils.releaseHttpClient(client);
+      assertEquals(0, client.inFlight.get());
+      HttpUtils.releaseHttpClient(next);
+      HttpUtils.closeHttpClient(url);
+      HttpUtils.closeHttpClient(url);
+      assertTrue(next.retired);
+   }
+}